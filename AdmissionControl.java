@@ -0,0 +1,199 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Flood protection in front of the command handlers. Every datagram first spends a token from its source
+// address's packet budget; a request for an expensive command also spends one from that address's budget for
+// the command. Both checks run on the receive thread, from the first bytes of the packet, before it is queued
+// for a worker or parsed. Once the arguments are known, LOGIN, SEND/DELETE/MOVE and LIST/READ/SEARCH/SYNC/SELECT
+// also spend from a per-user budget, so one account cannot be hammered from many addresses either.
+//
+// Budgets are mail.limit.<name>=<tokens per second>/<burst>; mail.limits=off turns the whole layer off and
+// mail.limitExempt lists addresses that are never limited.
+public class AdmissionControl {
+    public enum Verdict {
+        // Let it through.
+        ADMIT,
+        // Over the packet budget: drop without a word, answering a flood only feeds it.
+        DROP,
+        // Over a command budget: answer with an error so a well-behaved client backs off.
+        THROTTLE
+    }
+
+    // Commands with a budget of their own; SEND also covers DELETE and MOVE, which write to the mailbox, and LIST
+    // covers READ, SEARCH, SYNC and SELECT. HELLO, HEARTBEAT and LOGOUT only spend packet tokens.
+    public enum Kind {
+        REGISTER("ipRegister", 2, 10, null, 0, 0),
+        LOGIN("ipLogin", 10, 20, "userLogin", 5, 10),
+        SEND("ipSend", 20, 50, "userSend", 10, 30),
+        LIST("ipList", 50, 100, "userList", 25, 50);
+
+        final String ipBudget;
+        final double ipRate;
+        final double ipBurst;
+        final String userBudget;
+        final double userRate;
+        final double userBurst;
+
+        Kind(String ipBudget, double ipRate, double ipBurst, String userBudget, double userRate, double userBurst) {
+            this.ipBudget = ipBudget;
+            this.ipRate = ipRate;
+            this.ipBurst = ipBurst;
+            this.userBudget = userBudget;
+            this.userRate = userRate;
+            this.userBurst = userBurst;
+        }
+    }
+
+    public static final String THROTTLED = "Too many requests, slow down";
+
+    private static final byte[][] TEXT_COMMANDS = {
+            "REGISTER".getBytes(StandardCharsets.US_ASCII), "LOGIN".getBytes(StandardCharsets.US_ASCII),
+            "SEND".getBytes(StandardCharsets.US_ASCII), "LIST".getBytes(StandardCharsets.US_ASCII),
+            "READ".getBytes(StandardCharsets.US_ASCII), "SEARCH".getBytes(StandardCharsets.US_ASCII),
+            "SYNC".getBytes(StandardCharsets.US_ASCII), "SELECT".getBytes(StandardCharsets.US_ASCII),
+            "DELETE".getBytes(StandardCharsets.US_ASCII), "MOVE".getBytes(StandardCharsets.US_ASCII) };
+    private static final Kind[] TEXT_KINDS = { Kind.REGISTER, Kind.LOGIN, Kind.SEND, Kind.LIST, Kind.LIST,
+            Kind.LIST, Kind.LIST, Kind.LIST, Kind.SEND, Kind.SEND };
+
+    private final boolean enabled;
+    private final Set<InetAddress> exempt;
+    private final RateLimiter<InetAddress> packets;
+    private final Map<Kind, RateLimiter<InetAddress>> byAddress = new EnumMap<>(Kind.class);
+    private final Map<Kind, RateLimiter<String>> byUser = new EnumMap<>(Kind.class);
+    private final Metrics.Counter droppedPackets;
+    private final Map<Kind, Metrics.Counter> throttledByAddress = new EnumMap<>(Kind.class);
+    private final Map<Kind, Metrics.Counter> throttledByUser = new EnumMap<>(Kind.class);
+
+    public AdmissionControl(boolean enabled, Set<InetAddress> exempt, int maxKeys) {
+        this.enabled = enabled;
+        this.exempt = exempt;
+        this.packets = limiter("packets", 1000, 2000, maxKeys);
+        this.droppedPackets = Metrics.counter("mail_admission_rejected_total",
+                "Requests refused by admission control", "budget", "packets");
+        for (Kind kind : Kind.values()) {
+            byAddress.put(kind, limiter(kind.ipBudget, kind.ipRate, kind.ipBurst, maxKeys));
+            throttledByAddress.put(kind, Metrics.counter("mail_admission_rejected_total",
+                    "Requests refused by admission control", "budget", kind.ipBudget));
+            if (kind.userBudget != null) {
+                byUser.put(kind, limiter(kind.userBudget, kind.userRate, kind.userBurst, maxKeys));
+                throttledByUser.put(kind, Metrics.counter("mail_admission_rejected_total",
+                        "Requests refused by admission control", "budget", kind.userBudget));
+            }
+        }
+    }
+
+    public static AdmissionControl fromConfig() {
+        boolean enabled = !"off".equalsIgnoreCase(System.getProperty("mail.limits", "on").trim());
+        Set<InetAddress> exempt = new HashSet<>();
+        for (String host : System.getProperty("mail.limitExempt", "").split(",")) {
+            if (host.isBlank())
+                continue;
+            try {
+                exempt.add(InetAddress.getByName(host.trim()));
+            } catch (UnknownHostException e) {
+                ServerLog.warn("Ignoring unknown host '" + host.trim() + "' in mail.limitExempt");
+            }
+        }
+        return new AdmissionControl(enabled, exempt, Integer.getInteger("mail.limitKeys", 65536));
+    }
+
+    // Called on the receive thread for every datagram.
+    public Verdict admitPacket(InetAddress from, ByteBuffer data) {
+        if (!enabled || exempt.contains(from))
+            return Verdict.ADMIT;
+        if (!packets.tryAcquire(from)) {
+            droppedPackets.increment();
+            return Verdict.DROP;
+        }
+        // A reliable-transport fragment carries no readable command; its message is checked once reassembled.
+        return ReliableUdp.isFrame(data) ? Verdict.ADMIT : admitCommand(from, data);
+    }
+
+    // Called for a message reassembled by the reliable transport, whose fragments already paid packet tokens.
+    public Verdict admitMessage(InetAddress from, ByteBuffer message) {
+        if (!enabled || exempt.contains(from))
+            return Verdict.ADMIT;
+        return admitCommand(from, message);
+    }
+
+    // Called once the user is known; false means the request should be refused with THROTTLED.
+    public boolean admitUser(Kind kind, String username) {
+        RateLimiter<String> limiter = byUser.get(kind);
+        if (!enabled || limiter == null || limiter.tryAcquire(username))
+            return true;
+        throttledByUser.get(kind).increment();
+        return false;
+    }
+
+    private Verdict admitCommand(InetAddress from, ByteBuffer data) {
+        Kind kind = classify(data);
+        if (kind == null || byAddress.get(kind).tryAcquire(from))
+            return Verdict.ADMIT;
+        throttledByAddress.get(kind).increment();
+        return Verdict.THROTTLE;
+    }
+
+    // The budgeted command a request is for, from its opcode or its leading ASCII word; null for anything else.
+    static Kind classify(ByteBuffer data) {
+        if (MailProtocol.isFrame(data)) {
+            switch (MailProtocol.opcodeOf(data)) {
+                case MailProtocol.REGISTER:
+                    return Kind.REGISTER;
+                case MailProtocol.LOGIN:
+                    return Kind.LOGIN;
+                case MailProtocol.SEND:
+                case MailProtocol.DELETE:
+                case MailProtocol.MOVE:
+                    return Kind.SEND;
+                case MailProtocol.LIST:
+                case MailProtocol.READ:
+                case MailProtocol.SEARCH:
+                case MailProtocol.SYNC:
+                case MailProtocol.SELECT:
+                    return Kind.LIST;
+                default:
+                    return null;
+            }
+        }
+        int start = data.position();
+        int end = data.limit();
+        while (start < end && (data.get(start) & 0xFF) <= ' ')
+            start++;
+        for (int c = 0; c < TEXT_COMMANDS.length; c++) {
+            byte[] word = TEXT_COMMANDS[c];
+            if (end - start < word.length)
+                continue;
+            boolean match = true;
+            for (int i = 0; i < word.length && match; i++)
+                match = (data.get(start + i) & 0xDF) == word[i];
+            if (match && (end - start == word.length || (data.get(start + word.length) & 0xFF) <= ' '))
+                return TEXT_KINDS[c];
+        }
+        return null;
+    }
+
+    private static <K> RateLimiter<K> limiter(String name, double defaultRate, double defaultBurst, int maxKeys) {
+        double rate = defaultRate;
+        double burst = defaultBurst;
+        String spec = System.getProperty("mail.limit." + name);
+        if (spec != null) {
+            try {
+                String[] parts = spec.trim().split("/");
+                rate = Double.parseDouble(parts[0]);
+                burst = parts.length > 1 ? Double.parseDouble(parts[1]) : Math.max(1, rate);
+            } catch (NumberFormatException e) {
+                ServerLog.warn("Ignoring mail.limit." + name + "=" + spec + ", expected <per second>/<burst>");
+            }
+        }
+        RateLimiter<K> limiter = new RateLimiter<>(rate, burst, maxKeys);
+        Metrics.gauge("mail_admission_tracked_keys", "Addresses or users with a token bucket in memory",
+                limiter::size, "budget", name);
+        return limiter;
+    }
+}
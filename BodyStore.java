@@ -0,0 +1,165 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Bodies shared by the copies of a multi-recipient mail, stored once under <dir>/<2 hex>/<sha-256 hex> as
+// [int reference count][UTF-8 content]. Every mailbox record that points at a body holds one reference and
+// the file is removed when the last one is released. Identical bodies sent twice share one file as well.
+public class BodyStore {
+    private static final int LOCK_STRIPES = 64;
+    private static final int COUNT_BYTES = 4;
+
+    private final File dir;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Set<Path> unsynced = ConcurrentHashMap.newKeySet();
+
+    public BodyStore(File dir) {
+        this.dir = dir;
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    // Stores content (or finds it already stored) and adds references to it; returns the key to refer to it by.
+    public String put(String content, int references) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        String key = sha256Hex(bytes);
+        Path file = bodyFile(key);
+        synchronized (lockFor(key)) {
+            // A body whose write never reached the disk before a crash is rewritten instead of reused.
+            if (Files.isRegularFile(file) && Files.size(file) == COUNT_BYTES + bytes.length) {
+                addReferences(file, references);
+                return key;
+            }
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(key + ".tmp");
+            ByteBuffer buffer = ByteBuffer.allocate(COUNT_BYTES + bytes.length);
+            buffer.putInt(references).put(bytes).flip();
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                SegmentMailStore.writeFully(channel, buffer, 0);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            unsynced.add(file);
+        }
+        return key;
+    }
+
+    // The stored UTF-8 content as a read-only mapped buffer.
+    public ByteBuffer read(String key) throws IOException {
+        Path file = bodyFile(key);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < COUNT_BYTES)
+                throw new IOException("Shared body " + key + " is truncated");
+            if (size == COUNT_BYTES)
+                return ByteBuffer.allocate(0).asReadOnlyBuffer();
+            return channel.map(FileChannel.MapMode.READ_ONLY, COUNT_BYTES, size - COUNT_BYTES).asReadOnlyBuffer();
+        } catch (NoSuchFileException e) {
+            throw new IOException("Shared body " + key + " is missing");
+        }
+    }
+
+    public void retain(String key, int references) throws IOException {
+        synchronized (lockFor(key)) {
+            addReferences(bodyFile(key), references);
+        }
+    }
+
+    // Drops one reference; returns true if that was the last one and the body is gone.
+    public boolean release(String key) throws IOException {
+        Path file = bodyFile(key);
+        synchronized (lockFor(key)) {
+            if (!Files.exists(file))
+                return true;
+            if (addReferences(file, -1) > 0)
+                return false;
+            unsynced.remove(file);
+            Files.deleteIfExists(file);
+            return true;
+        }
+    }
+
+    public int references(String key) throws IOException {
+        Path file = bodyFile(key);
+        synchronized (lockFor(key)) {
+            if (!Files.exists(file))
+                return 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer count = ByteBuffer.allocate(COUNT_BYTES);
+                SegmentMailStore.readFully(channel, count, 0);
+                return count.getInt(0);
+            }
+        }
+    }
+
+    public void sync() throws IOException {
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Path file : unsynced) {
+            unsynced.remove(file);
+            MailStore.force(file);
+            if (dirs.add(file.getParent()))
+                dirs.add(file.getParent().getParent());
+        }
+        for (Path dir : dirs)
+            MailStore.forceDirectory(dir);
+    }
+
+    public static boolean isKey(String value) {
+        if (value == null || value.length() != 64)
+            return false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    // Callers hold the stripe lock.
+    private int addReferences(Path file, int delta) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer count = ByteBuffer.allocate(COUNT_BYTES);
+            SegmentMailStore.readFully(channel, count, 0);
+            int updated = Math.max(0, count.getInt(0) + delta);
+            count.clear();
+            count.putInt(updated).flip();
+            SegmentMailStore.writeFully(channel, count, 0);
+            unsynced.add(file);
+            return updated;
+        }
+    }
+
+    private Path bodyFile(String key) throws IOException {
+        if (!isKey(key))
+            throw new IOException("Bad shared body key " + key);
+        return new File(dir, key.substring(0, 2) + File.separator + key).toPath();
+    }
+
+    private Object lockFor(String key) {
+        return locks[(key.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    private static String sha256Hex(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Checks and creates passwords away from the packet workers. PBKDF2 is slow on purpose, so it runs on a small
+// bounded pool of its own: a LOGIN storm fills that pool's queue and is answered "Server busy" instead of holding
+// the workers SEND and LIST need. A successful login is remembered for a while as a keyed SHA-256 fingerprint of
+// the password, so a client that logs in again soon is checked without the slow hash.
+public class CredentialService {
+    private static final class Verified {
+        final String stored;
+        final byte[] fingerprint;
+        final long verifiedAt;
+
+        Verified(String stored, byte[] fingerprint, long verifiedAt) {
+            this.stored = stored;
+            this.fingerprint = fingerprint;
+            this.verifiedAt = verifiedAt;
+        }
+    }
+
+    private final UserDirectory users;
+    private final PasswordHasher hasher;
+    private final ThreadPoolExecutor pool;
+    private final Map<String, Verified> verified;
+    private final long cacheMillis;
+    private final byte[] secret = new byte[32];
+
+    public CredentialService(UserDirectory users, PasswordHasher hasher, int threads, int queueCapacity,
+            int cachedLogins, long cacheMillis) {
+        this.users = users;
+        this.hasher = hasher;
+        this.pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), PacketDispatcher.namedDaemonThreads("mail-hash"),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.verified = new LinkedHashMap<String, Verified>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+                return size() > cachedLogins;
+            }
+        };
+        this.cacheMillis = cachedLogins > 0 ? cacheMillis : 0;
+        new SecureRandom().nextBytes(secret);
+    }
+
+    public static CredentialService fromConfig(UserDirectory users) {
+        return new CredentialService(users,
+                new PasswordHasher(Integer.getInteger("mail.pbkdf2Iterations", PasswordHasher.DEFAULT_ITERATIONS)),
+                Integer.getInteger("mail.hashThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                Integer.getInteger("mail.hashQueue", 256),
+                Integer.getInteger("mail.loginCache", 10_000),
+                Long.getLong("mail.loginCacheMillis", 10 * 60_000L));
+    }
+
+    // Completes with whether the password is right, or with a RejectedExecutionException when the hashing queue
+    // is full. A legacy or weaker stored hash is replaced by a fresh PBKDF2 hash once the password checks out.
+    public CompletableFuture<Boolean> verify(String username, String password) {
+        UserDirectory.User user = users.get(username);
+        if (user == null)
+            return CompletableFuture.completedFuture(false);
+        if (rememberedLogin(username, user.passwordHash, password))
+            return CompletableFuture.completedFuture(true);
+        return submit(() -> check(username, user.passwordHash, password));
+    }
+
+    // Completes with false if the name is taken.
+    public CompletableFuture<Boolean> register(String username, String password, String createdAt) {
+        return submit(() -> users.register(username, hasher.hash(password), createdAt));
+    }
+
+    public int queueDepth() {
+        return pool.getQueue().size();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private boolean check(String username, String stored, String password) {
+        if (!hasher.verify(password, stored))
+            return false;
+        String current = stored;
+        if (hasher.needsUpgrade(stored)) {
+            String upgraded = hasher.hash(password);
+            try {
+                if (users.updatePassword(username, stored, upgraded)) {
+                    current = upgraded;
+                    ServerLog.info("Upgraded password hash of '" + username + "' to PBKDF2 ("
+                            + hasher.iterations() + " iterations)");
+                }
+            } catch (IOException e) {
+                ServerLog.warn("Failed to upgrade password hash of " + username + ": " + e.getMessage());
+            }
+        }
+        remember(username, current, password);
+        return true;
+    }
+
+    private boolean rememberedLogin(String username, String stored, String password) {
+        if (cacheMillis <= 0)
+            return false;
+        Verified entry;
+        synchronized (verified) {
+            entry = verified.get(username);
+        }
+        if (entry == null || !entry.stored.equals(stored)
+                || System.currentTimeMillis() - entry.verifiedAt > cacheMillis)
+            return false;
+        return MessageDigest.isEqual(entry.fingerprint, PasswordHasher.fingerprint(secret, password));
+    }
+
+    private void remember(String username, String stored, String password) {
+        if (cacheMillis <= 0)
+            return;
+        Verified entry = new Verified(stored, PasswordHasher.fingerprint(secret, password),
+                System.currentTimeMillis());
+        synchronized (verified) {
+            verified.put(username, entry);
+        }
+    }
+
+    private CompletableFuture<Boolean> submit(Callable<Boolean> task) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        try {
+            pool.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+}
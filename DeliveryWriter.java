@@ -0,0 +1,517 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Group-commit stage in front of the MailStore. Handlers enqueue mails; one writer thread appends each batch to
+// a delivery write-ahead log, fsyncs it according to the policy, applies the batch to the store and only then
+// completes the senders' futures. Every WAL record carries the message id each recipient's inbox files it under,
+// and nothing else hands out inbox ids, so replaying the log after a crash skips exactly the mails the store
+// already has: those with an id at or below the inbox's last one. A mail for several recipients
+// is logged once, its body is stored once through MailStore.shareBody, and the mailboxes of a batch are
+// filled in parallel, one task per recipient so each mailbox still sees its ids in order. The writer holds one
+// reference to a shared body while its mailboxes are filled and each mailbox takes its own just before pointing
+// at it, so the count never includes a mail that was not stored, nor one a replay stores again.
+public class DeliveryWriter {
+    public enum FsyncPolicy {
+        ALWAYS, INTERVAL, NEVER
+    }
+
+    // Told about every mail the writer stores in a mailbox, together with the body it was sent with.
+    public interface StoredListener {
+        void stored(String recipient, MailboxIndex.Entry entry, String content);
+    }
+
+    private static final int WAL_MAGIC = 0x4457414D;
+    private static final int WAL_HEADER_BYTES = 12;
+
+    private static final Metrics.Timer walAppends = Metrics.timer("mail_wal_append_seconds",
+            "Time to append one batch of mails to the delivery log");
+    private static final Metrics.Timer walSyncs = Metrics.timer("mail_wal_fsync_seconds",
+            "Time to force the delivery log to disk");
+    private static final Metrics.Timer storeApplies = Metrics.timer("mail_store_apply_seconds",
+            "Time to store one committed batch in the recipients' mailboxes");
+    private static final Metrics.Counter mailsStored = Metrics.counter("mail_mailbox_deliveries_total",
+            "Mails stored in a recipient's mailbox");
+    private static final Metrics.Counter mailsFailed = Metrics.counter("mail_mailbox_delivery_failures_total",
+            "Mails that could not be stored in a recipient's mailbox");
+
+    private static class Pending {
+        final List<String> recipients;
+        final String from;
+        final String date;
+        final String title;
+        final String content;
+        final CompletableFuture<List<MailboxIndex.Entry>> result = new CompletableFuture<>();
+        final long[] ids;
+        final MailboxIndex.Entry[] entries;
+        volatile Exception error;
+        int encodedSize;
+
+        Pending(List<String> recipients, String from, String date, String title, String content) {
+            this.recipients = recipients;
+            this.from = from;
+            this.date = date;
+            this.title = title;
+            this.content = content;
+            this.ids = new long[recipients.size()];
+            this.entries = new MailboxIndex.Entry[recipients.size()];
+        }
+    }
+
+    // One mailbox's copy of a pending mail.
+    private static class Delivery {
+        final Pending pending;
+        final int recipient;
+        final String bodyKey;
+
+        Delivery(Pending pending, int recipient, String bodyKey) {
+            this.pending = pending;
+            this.recipient = recipient;
+            this.bodyKey = bodyKey;
+        }
+    }
+
+    private final MailStore store;
+    private final StoredListener listener;
+    private final File walFile;
+    private final FsyncPolicy policy;
+    private final long intervalMillis;
+    private final int maxBatch;
+    private final long checkpointBytes;
+    private final BlockingQueue<Pending> queue;
+    private final ExecutorService fanout;
+    private final List<Pending> unsynced = new ArrayList<>();
+    private final Map<String, Long> reservedIds = new HashMap<>();
+    // Where the first record of unsynced starts in the WAL.
+    private long unsyncedStart;
+    private FileChannel wal;
+    private Thread thread;
+    private volatile boolean running;
+
+    public DeliveryWriter(MailStore store, StoredListener listener, File walFile, FsyncPolicy policy,
+            long intervalMillis, int maxBatch, int queueCapacity, long checkpointBytes, int fanoutThreads) {
+        this.store = store;
+        this.listener = listener;
+        this.walFile = walFile;
+        this.policy = policy;
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.checkpointBytes = checkpointBytes;
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        this.fanout = fanoutThreads > 1
+                ? Executors.newFixedThreadPool(fanoutThreads, PacketDispatcher.namedDaemonThreads("mail-fanout"))
+                : null;
+    }
+
+    // mail.fsync is "always", "never" or "interval:<ms>".
+    public static DeliveryWriter fromConfig(MailStore store, StoredListener listener, File walFile) {
+        String fsync = System.getProperty("mail.fsync", "always").trim().toLowerCase();
+        FsyncPolicy policy;
+        long interval = 0;
+        if (fsync.startsWith("interval")) {
+            policy = FsyncPolicy.INTERVAL;
+            int sep = fsync.indexOf(':');
+            interval = sep < 0 ? 1000 : Long.parseLong(fsync.substring(sep + 1));
+        } else {
+            policy = FsyncPolicy.valueOf(fsync.toUpperCase());
+        }
+        return new DeliveryWriter(store, listener, walFile, policy, interval,
+                Integer.getInteger("mail.commitBatch", 512), Integer.getInteger("mail.commitQueue", 16384),
+                Long.getLong("mail.walBytes", 64L * 1024 * 1024),
+                Integer.getInteger("mail.fanoutThreads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public void start() throws IOException {
+        wal = FileChannel.open(walFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        recover();
+        running = true;
+        thread = new Thread(this::writeLoop, "mail-delivery-writer");
+        thread.setDaemon(true);
+        thread.start();
+        ServerLog.info("Delivery writer started (fsync " + policy
+                + (policy == FsyncPolicy.INTERVAL ? " every " + intervalMillis + " ms" : "") + ")");
+    }
+
+    // Completes with one entry per recipient, in order; null marks a mailbox the mail could not be stored in.
+    public CompletableFuture<List<MailboxIndex.Entry>> submit(List<String> recipients, String from, String date,
+            String title, String content) {
+        Pending pending = new Pending(new ArrayList<>(recipients), from, date, title, content);
+        if (!running || !queue.offer(pending))
+            pending.result.completeExceptionally(new IOException("Delivery queue is full"));
+        return pending.result;
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public void close() {
+        running = false;
+        if (thread != null) {
+            // No interrupt: it would close the WAL channel under the writer.
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (fanout != null)
+            fanout.shutdown();
+        try {
+            if (wal != null)
+                wal.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void writeLoop() {
+        long nextSync = System.currentTimeMillis() + intervalMillis;
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                long wait = policy == FsyncPolicy.INTERVAL && !unsynced.isEmpty()
+                        ? Math.max(0, nextSync - System.currentTimeMillis())
+                        : 100;
+                Pending first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                    append(batch);
+                    batch.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (policy != FsyncPolicy.INTERVAL || now >= nextSync || !running) {
+                    commit();
+                    nextSync = now + intervalMillis;
+                }
+                if (wal.size() >= checkpointBytes && unsynced.isEmpty())
+                    checkpoint();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                // batch still holds what append could not log; a failed commit has failed its mails itself.
+                ServerLog.error("Delivery writer I/O error: " + e.getMessage());
+                fail(batch, e);
+            }
+        }
+        try {
+            commit();
+        } catch (IOException e) {
+            ServerLog.error("Delivery writer I/O error: " + e.getMessage());
+        }
+    }
+
+    private void append(List<Pending> batch) throws IOException {
+        long startNanos = System.nanoTime();
+        long start = wal.size();
+        long position = start;
+        int committed = unsynced.size();
+        if (committed == 0)
+            unsyncedStart = start;
+        try {
+            for (Pending pending : batch) {
+                for (int i = 0; i < pending.recipients.size(); i++) {
+                    String recipient = pending.recipients.get(i);
+                    Long reserved = reservedIds.get(recipient);
+                    long base = reserved != null ? reserved : store.index(recipient).lastId();
+                    pending.ids[i] = base + 1;
+                    reservedIds.put(recipient, pending.ids[i]);
+                }
+                ByteBuffer record = encode(pending);
+                SegmentMailStore.writeFully(wal, record, position);
+                position += record.limit();
+                unsynced.add(pending);
+            }
+            walAppends.since(startNanos);
+        } catch (IOException e) {
+            // Drop the half-written batch so later batches are not stranded behind a torn record.
+            unsynced.subList(committed, unsynced.size()).clear();
+            reservedIds.clear();
+            for (Pending pending : unsynced)
+                for (int i = 0; i < pending.recipients.size(); i++)
+                    reservedIds.merge(pending.recipients.get(i), pending.ids[i], Math::max);
+            try {
+                wal.truncate(start);
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    // Makes the appended records durable per the policy, applies them to the store and acknowledges the senders.
+    private void commit() throws IOException {
+        if (unsynced.isEmpty())
+            return;
+        if (policy != FsyncPolicy.NEVER) {
+            long start = System.nanoTime();
+            try {
+                wal.force(false);
+            } catch (IOException e) {
+                abandonUnsynced(e);
+                throw e;
+            }
+            walSyncs.since(start);
+        }
+        long start = System.nanoTime();
+        Map<String, List<Delivery>> byRecipient = new LinkedHashMap<>();
+        List<String> heldBodies = new ArrayList<>();
+        for (Pending pending : unsynced) {
+            String bodyKey = null;
+            if (pending.recipients.size() > 1) {
+                try {
+                    bodyKey = store.shareBody(pending.content, 1);
+                    heldBodies.add(bodyKey);
+                } catch (IOException e) {
+                    ServerLog.warn("Failed to store shared body, storing one copy per mailbox: "
+                            + e.getMessage());
+                }
+            }
+            for (int i = 0; i < pending.recipients.size(); i++)
+                byRecipient.computeIfAbsent(pending.recipients.get(i), r -> new ArrayList<>())
+                        .add(new Delivery(pending, i, bodyKey));
+        }
+        fanOut(byRecipient);
+        for (String bodyKey : heldBodies)
+            release(bodyKey);
+        storeApplies.since(start);
+        for (Pending pending : unsynced) {
+            List<MailboxIndex.Entry> entries = Arrays.asList(pending.entries);
+            if (pending.error != null && entries.stream().allMatch(entry -> entry == null))
+                pending.result.completeExceptionally(pending.error);
+            else
+                pending.result.complete(entries);
+        }
+        unsynced.clear();
+        reservedIds.clear();
+    }
+
+    // None of these mails has reached a mailbox yet. They are cut from the log, so a restart does not deliver
+    // mails whose senders were told they failed, and their reserved ids are given up.
+    private void abandonUnsynced(IOException error) {
+        try {
+            wal.truncate(unsyncedStart);
+        } catch (IOException e) {
+            ServerLog.error("Failed to cut unsynced mails from the delivery log: " + e.getMessage());
+        }
+        fail(unsynced, error);
+        reservedIds.clear();
+    }
+
+    // Fills the mailboxes of a batch, one task per recipient; a batch for one mailbox stays on this thread.
+    private void fanOut(Map<String, List<Delivery>> byRecipient) {
+        if (fanout == null || byRecipient.size() < 2) {
+            for (List<Delivery> deliveries : byRecipient.values())
+                applyAll(deliveries);
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(byRecipient.size());
+        for (List<Delivery> deliveries : byRecipient.values()) {
+            tasks.add(() -> {
+                applyAll(deliveries);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> done : fanout.invokeAll(tasks)) {
+                try {
+                    done.get();
+                } catch (ExecutionException e) {
+                    ServerLog.error("Mailbox fan-out task failed: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void applyAll(List<Delivery> deliveries) {
+        for (Delivery delivery : deliveries) {
+            Pending pending = delivery.pending;
+            String recipient = pending.recipients.get(delivery.recipient);
+            try {
+                MailboxIndex.Entry entry = deliver(pending, delivery.recipient, delivery.bodyKey);
+                pending.entries[delivery.recipient] = entry;
+                mailsStored.increment();
+                if (listener != null && entry != null)
+                    listener.stored(recipient, entry, pending.content);
+            } catch (IOException | RuntimeException e) {
+                mailsFailed.increment();
+                ServerLog.error("Failed to store mail for " + recipient + ": " + e.getMessage());
+                pending.error = e;
+            }
+        }
+    }
+
+    // Stores one mail under the id the log recorded. A shared body gains its reference right before the mailbox
+    // points at it and loses it again if the mail is not stored. A crash in between leaves one reference no
+    // mailbox holds, which keeps that body on disk for good; a body still in use is never removed.
+    private MailboxIndex.Entry deliver(Pending pending, int recipient, String bodyKey) throws IOException {
+        String to = pending.recipients.get(recipient);
+        long id = pending.ids[recipient];
+        if (bodyKey == null)
+            return store.deliver(to, id, pending.from, pending.date, pending.title, pending.content);
+        store.retainBody(bodyKey);
+        try {
+            return store.deliverShared(to, id, pending.from, pending.date, pending.title, bodyKey);
+        } catch (IOException | RuntimeException e) {
+            release(bodyKey);
+            throw e;
+        }
+    }
+
+    private void release(String bodyKey) {
+        try {
+            store.releaseBody(bodyKey);
+        } catch (IOException e) {
+            ServerLog.warn("Failed to release shared body " + bodyKey + ": " + e.getMessage());
+        }
+    }
+
+    // Everything in the WAL has been applied; once the store is durable the log can start over.
+    private void checkpoint() throws IOException {
+        if (policy != FsyncPolicy.NEVER)
+            store.sync();
+        wal.truncate(0);
+        if (policy != FsyncPolicy.NEVER)
+            wal.force(true);
+    }
+
+    private void recover() throws IOException {
+        long position = 0;
+        int replayed = 0;
+        int skipped = 0;
+        while (true) {
+            Pending pending = readRecord(position);
+            if (pending == null)
+                break;
+            position += pending.encodedSize;
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < pending.recipients.size(); i++) {
+                if (store.index(pending.recipients.get(i)).lastId() >= pending.ids[i])
+                    skipped++;
+                else
+                    missing.add(i);
+            }
+            // Mails stored before the crash hold their references already; only the replayed ones take new ones.
+            String bodyKey = missing.size() > 1 ? store.shareBody(pending.content, 1) : null;
+            try {
+                for (int i : missing) {
+                    deliver(pending, i, bodyKey);
+                    replayed++;
+                }
+            } finally {
+                if (bodyKey != null)
+                    release(bodyKey);
+            }
+        }
+        if (position < wal.size())
+            ServerLog.warn("Ignoring torn delivery log tail at " + position);
+        if (position > 0 || wal.size() > 0) {
+            ServerLog.info("Delivery log recovery: replayed " + replayed + ", already stored " + skipped);
+            store.sync();
+            wal.truncate(0);
+            wal.force(true);
+        }
+    }
+
+    // Payload: int recipient count, (long id, recipient) per recipient, then from, date, title and content.
+    private static ByteBuffer encode(Pending pending) {
+        byte[][] recipients = new byte[pending.recipients.size()][];
+        int payload = 4;
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = utf8(pending.recipients.get(i));
+            payload += 8 + 4 + recipients[i].length;
+        }
+        byte[][] fields = { utf8(pending.from), utf8(pending.date), utf8(pending.title), utf8(pending.content) };
+        for (byte[] field : fields)
+            payload += 4 + field.length;
+        ByteBuffer buffer = ByteBuffer.allocate(WAL_HEADER_BYTES + payload);
+        buffer.putInt(WAL_MAGIC).putInt(payload).putInt(0).putInt(recipients.length);
+        for (int i = 0; i < recipients.length; i++)
+            buffer.putLong(pending.ids[i]).putInt(recipients[i].length).put(recipients[i]);
+        for (byte[] field : fields)
+            buffer.putInt(field.length).put(field);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), WAL_HEADER_BYTES, payload);
+        buffer.putInt(8, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private Pending readRecord(long position) throws IOException {
+        if (position + WAL_HEADER_BYTES > wal.size())
+            return null;
+        ByteBuffer header = ByteBuffer.allocate(WAL_HEADER_BYTES);
+        SegmentMailStore.readFully(wal, header, position);
+        header.flip();
+        int magic = header.getInt();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (magic != WAL_MAGIC || length < 8 || position + WAL_HEADER_BYTES + length > wal.size())
+            return null;
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        SegmentMailStore.readFully(wal, payload, position + WAL_HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, length);
+        if ((int) crc.getValue() != checksum)
+            return null;
+        payload.flip();
+        try {
+            int count = payload.getInt();
+            if (count <= 0 || count > length / 12)
+                return null;
+            long[] ids = new long[count];
+            List<String> recipients = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ids[i] = payload.getLong();
+                recipients.add(readString(payload));
+            }
+            Pending pending = new Pending(recipients, readString(payload), readString(payload), readString(payload),
+                    readString(payload));
+            System.arraycopy(ids, 0, pending.ids, 0, count);
+            pending.encodedSize = WAL_HEADER_BYTES + length;
+            return pending;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer payload) {
+        int length = payload.getInt();
+        String value = new String(payload.array(), payload.position(), length, StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return value;
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void fail(List<Pending> pendings, IOException error) {
+        for (Pending pending : pendings)
+            pending.result.completeExceptionally(error);
+        pendings.clear();
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The original layout: one yyyyMMdd_HHmmss_SSS.txt file per mail under <user>/inbox. A mail whose body is
+// shared with other recipients has a "body: <key>" header line and no body of its own. Other folders repeat the
+// layout under <user>/folders/<name>; a mail moves between folders by renaming its file.
+public class FileMailStore implements MailStore {
+    public static final String INDEX_FILE_NAME = "inbox.idx";
+    private static final int HEADER_SCAN_BYTES = 16384;
+
+    private final File mailboxesDir;
+    private final MailboxIndexCache indexes;
+    private final BodyStore bodies;
+    private final Set<Path> unsynced = ConcurrentHashMap.newKeySet();
+
+    public FileMailStore(File mailboxesDir, int cachedIndexes) {
+        this(mailboxesDir, cachedIndexes, MailStore.sharedBodies(mailboxesDir));
+    }
+
+    public FileMailStore(File mailboxesDir, int cachedIndexes, BodyStore bodies) {
+        this.mailboxesDir = mailboxesDir;
+        this.bodies = bodies;
+        this.indexes = new MailboxIndexCache(this::loadIndex, cachedIndexes);
+    }
+
+    @Override
+    public MailboxIndex.Entry deliver(String recipient, long id, String from, String date, String title,
+            String content) throws IOException {
+        return write(recipient, id, from, date, title, null, content);
+    }
+
+    @Override
+    public String shareBody(String content, int references) throws IOException {
+        return bodies.put(content, references);
+    }
+
+    @Override
+    public void retainBody(String bodyKey) throws IOException {
+        bodies.retain(bodyKey, 1);
+    }
+
+    @Override
+    public void releaseBody(String bodyKey) throws IOException {
+        bodies.release(bodyKey);
+    }
+
+    @Override
+    public MailboxIndex.Entry deliverShared(String recipient, long id, String from, String date, String title,
+            String bodyKey) throws IOException {
+        return write(recipient, id, from, date, title, bodyKey, "");
+    }
+
+    private MailboxIndex.Entry write(String recipient, long id, String from, String date, String title,
+            String bodyKey, String content) throws IOException {
+        File recipientInbox = mailDir(recipient, INBOX);
+        if (!recipientInbox.exists()) {
+            recipientInbox.mkdirs();
+        }
+
+        synchronized (indexes.lockFor(recipient)) {
+            // Load the index before the new file lands, or a rebuild would already pick the new mail up.
+            MailboxIndex index = indexes.get(recipient);
+            if (id > 0 && id < index.nextId())
+                throw new IOException("Message id " + id + " of " + recipient + " is taken, next is " + index.nextId());
+            String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date());
+            File mailFile = new File(recipientInbox, timestamp + ".txt");
+            for (int attempt = 2; ; attempt++) {
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(
+                        mailFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+                        StandardCharsets.UTF_8))) {
+                    writer.write("from: " + from + "\n");
+                    writer.write("to: " + recipient + "\n");
+                    writer.write("date: " + date + "\n");
+                    writer.write("title: " + title + "\n");
+                    if (bodyKey != null)
+                        writer.write("body: " + bodyKey + "\n");
+                    writer.write("\n");
+                    writer.write(content);
+                    unsynced.add(mailFile.toPath());
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                    mailFile = new File(recipientInbox, timestamp + "_" + attempt + ".txt");
+                }
+            }
+
+            try {
+                return id > 0 ? index.append(new MailboxIndex.Entry(id, mailFile.getName(), date, from, title))
+                        : index.append(mailFile.getName(), date, from, title);
+            } catch (IOException e) {
+                // The mail itself is on disk; a reload notices the index is stale and rebuilds it.
+                ServerLog.warn("Failed to update mailbox index for " + recipient + ": " + e.getMessage());
+                indexes.invalidate(recipient);
+                MailboxIndex rebuilt = indexes.get(recipient);
+                return rebuilt.find(rebuilt.lastId());
+            }
+        }
+    }
+
+    // Deletes the mail files first: the index line that follows keeps the index newer than its directory.
+    @Override
+    public List<MailboxIndex.Entry> expunge(String username, String folder, Collection<Long> ids)
+            throws IOException {
+        List<String> released = new ArrayList<>();
+        List<MailboxIndex.Entry> removed;
+        synchronized (indexes.lockFor(username)) {
+            MailboxIndex index = indexes.get(username, folder);
+            List<Long> found = new ArrayList<>();
+            for (long id : ids) {
+                MailboxIndex.Entry entry = index.find(id);
+                if (entry == null)
+                    continue;
+                Path mailFile = new File(mailDir(username, folder), entry.location).toPath();
+                String bodyKey = sharedBodyKey(mailFile);
+                Files.deleteIfExists(mailFile);
+                unsynced.remove(mailFile);
+                if (bodyKey != null)
+                    released.add(bodyKey);
+                found.add(id);
+            }
+            removed = index.remove(found);
+        }
+        for (String bodyKey : released)
+            bodies.release(bodyKey);
+        return removed;
+    }
+
+    @Override
+    public List<MailboxIndex.Entry> move(String username, String folder, Collection<Long> ids, String target)
+            throws IOException {
+        if (INBOX.equals(target))
+            throw new IllegalArgumentException("Mail cannot be moved into the inbox");
+        List<MailboxIndex.Entry> moved = new ArrayList<>();
+        if (folder.equals(target))
+            return moved;
+        synchronized (indexes.lockFor(username)) {
+            MailboxIndex from = indexes.get(username, folder);
+            MailboxIndex to = indexes.get(username, target);
+            File targetDir = mailDir(username, target);
+            Files.createDirectories(targetDir.toPath());
+            List<Long> found = new ArrayList<>();
+            for (long id : ids) {
+                MailboxIndex.Entry entry = from.find(id);
+                if (entry == null)
+                    continue;
+                Path source = new File(mailDir(username, folder), entry.location).toPath();
+                String name = entry.location;
+                for (int attempt = 2; new File(targetDir, name).exists(); attempt++)
+                    name = entry.location.replace(".txt", "_m" + attempt + ".txt");
+                Files.move(source, new File(targetDir, name).toPath());
+                if (unsynced.remove(source))
+                    unsynced.add(new File(targetDir, name).toPath());
+                moved.add(to.append(name, entry.date, entry.from, entry.title));
+                found.add(id);
+            }
+            from.remove(found);
+        }
+        return moved;
+    }
+
+    // Finds the blank line that ends the header block with a positional read, then maps just the body.
+    @Override
+    public ByteBuffer readBody(String username, String folder, MailboxIndex.Entry entry) throws IOException {
+        Path mailFile = new File(mailDir(username, folder), entry.location).toPath();
+        try (FileChannel channel = FileChannel.open(mailFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, HEADER_SCAN_BYTES));
+            channel.read(head, 0);
+            long bodyStart = size;
+            String bodyKey = sharedBodyKey(head);
+            if (bodyKey != null)
+                return bodies.read(bodyKey);
+            for (int i = 0; i + 1 < head.position(); i++) {
+                if (head.get(i) == '\n' && head.get(i + 1) == '\n') {
+                    bodyStart = i + 2;
+                    break;
+                }
+                if (head.get(i) == '\n' && head.get(i + 1) == '\r' && i + 2 < head.position()
+                        && head.get(i + 2) == '\n') {
+                    bodyStart = i + 3;
+                    break;
+                }
+            }
+            if (bodyStart >= size)
+                return ByteBuffer.allocate(0);
+            return channel.map(FileChannel.MapMode.READ_ONLY, bodyStart, size - bodyStart).asReadOnlyBuffer();
+        }
+    }
+
+    private static String sharedBodyKey(Path mailFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(mailFile, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(channel.size(), HEADER_SCAN_BYTES));
+            channel.read(head, 0);
+            return sharedBodyKey(head);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    // The key from a "body: " line in the header block, or null for a mail that carries its own body.
+    private static String sharedBodyKey(ByteBuffer head) {
+        int lineStart = 0;
+        for (int i = 0; i < head.position(); i++) {
+            if (head.get(i) != '\n')
+                continue;
+            int lineEnd = i > lineStart && head.get(i - 1) == '\r' ? i - 1 : i;
+            if (lineEnd == lineStart)
+                return null;
+            if (lineEnd - lineStart > 6 && head.get(lineStart) == 'b' && head.get(lineStart + 4) == ':') {
+                String line = new String(head.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                if (line.startsWith("body: ") && BodyStore.isKey(line.substring(6)))
+                    return line.substring(6);
+            }
+            lineStart = i + 1;
+        }
+        return null;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        bodies.sync();
+        // A mail file sits in <folder>/inbox, next to <folder>/inbox.idx; the folder may itself be new.
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Path mailFile : unsynced) {
+            unsynced.remove(mailFile);
+            MailStore.force(mailFile);
+            Path folderDir = mailFile.getParent().getParent();
+            if (dirs.add(mailFile.getParent())) {
+                MailStore.force(folderDir.resolve(INDEX_FILE_NAME));
+                dirs.add(folderDir);
+                dirs.add(folderDir.getParent());
+            }
+        }
+        for (Path dir : dirs)
+            MailStore.forceDirectory(dir);
+    }
+
+    @Override
+    public MailboxIndex index(String username, String folder) throws IOException {
+        return indexes.get(username, folder);
+    }
+
+    @Override
+    public void evict(String username) {
+        synchronized (indexes.lockFor(username)) {
+            indexes.invalidate(username);
+        }
+    }
+
+    @Override
+    public File mailboxDir(String username) {
+        return new File(mailboxesDir, username);
+    }
+
+    @Override
+    public File indexFile(String username, String folder) {
+        return new File(folderDir(username, folder), INDEX_FILE_NAME);
+    }
+
+    File mailDir(String username, String folder) {
+        return new File(folderDir(username, folder), "inbox");
+    }
+
+    private MailboxIndex loadIndex(String username, String folder) throws IOException {
+        return MailboxIndex.open(indexFile(username, folder).toPath(),
+                MailboxIndex.inboxDirectory(mailDir(username, folder)));
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Server-side recipient groups for SEND, one file per group under <dir>/<name>.txt with one member per line
+// ('#' starts a comment). A file is parsed again only when its modification time changes, so groups can be
+// edited in place while the server runs.
+public class GroupDirectory {
+    private static final String GROUP_FILE_SUFFIX = ".txt";
+
+    private static class Group {
+        final long modified;
+        final List<String> members;
+
+        Group(long modified, List<String> members) {
+            this.modified = modified;
+            this.members = members;
+        }
+    }
+
+    private final Path groupsDir;
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+
+    public GroupDirectory(Path groupsDir) {
+        this.groupsDir = groupsDir;
+    }
+
+    // Members of a group in file order, or null if there is no such group.
+    public List<String> members(String name) throws IOException {
+        if (!isValidName(name))
+            return null;
+        Path file = groupsDir.resolve(name + GROUP_FILE_SUFFIX);
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (NoSuchFileException e) {
+            groups.remove(name);
+            return null;
+        }
+        Group cached = groups.get(name);
+        if (cached != null && cached.modified == modified)
+            return cached.members;
+
+        List<String> members = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                String member = (comment < 0 ? line : line.substring(0, comment)).trim();
+                if (!member.isEmpty())
+                    members.add(member);
+            }
+        }
+        Group group = new Group(modified, Collections.unmodifiableList(members));
+        groups.put(name, group);
+        return group.members;
+    }
+
+    public static boolean isValidName(String name) {
+        if (name == null || name.isEmpty())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.')
+                return false;
+        }
+        return !name.startsWith(".");
+    }
+}
@@ -0,0 +1,205 @@
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The inbox as a table of every mail in the mailbox, newest first, of which only the pages the user has scrolled
+// past are held. A row that is not held yet shows as loading and asks the server for its page through the loader;
+// the reply fills it in. Only the EDT touches the model.
+//
+// Rows are kept by their position counted from the oldest mail, which new mail does not shift; the table row of a
+// position is total - 1 - position. A reply whose total went down (mail removed) drops everything held.
+public class InboxTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    public static final int PAGE_SIZE = 50;
+    private static final int CACHED_PAGES = 40;
+    private static final long RETRY_NANOS = 3_000_000_000L;
+    private static final String[] COLUMNS = { "#", "Date", "From", "Title" };
+
+    public interface PageLoader {
+        // Asks for limit mails starting offset mails back from the newest, as LIST does.
+        void load(long offset, int limit);
+    }
+
+    public static final class Row {
+        final long id;
+        final String date;
+        final String from;
+        final String title;
+
+        public Row(long id, String date, String from, String title) {
+            this.id = id;
+            this.date = date;
+            this.from = from;
+            this.title = title;
+        }
+    }
+
+    private final PageLoader loader;
+    private final Map<Integer, Row[]> pages = new LinkedHashMap<Integer, Row[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Row[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    // Pages asked for and when, so a lost or throttled request is asked again.
+    private final Map<Integer, Long> requested = new LinkedHashMap<>();
+    private final Timer retryTimer = new Timer(1000, e -> retryStale());
+    // Set from reload until clear, so replies and pushes arriving after a logout are ignored.
+    private boolean active;
+    private int total;
+
+    public InboxTableModel(PageLoader loader) {
+        this.loader = loader;
+    }
+
+    // Forgets everything and fetches the newest page; total is unknown until it comes back.
+    public void reload() {
+        clear();
+        active = true;
+        requestPage(-1);
+        retryTimer.start();
+    }
+
+    public void clear() {
+        active = false;
+        retryTimer.stop();
+        pages.clear();
+        requested.clear();
+        total = 0;
+        fireTableDataChanged();
+    }
+
+    // count mails were pushed to us; their rows appear on top and load when shown.
+    public void mailsArrived(long count) {
+        if (count <= 0 || !active)
+            return;
+        int before = total;
+        total = (int) Math.min(Integer.MAX_VALUE, total + count);
+        fireTableRowsInserted(0, total - before - 1);
+    }
+
+    // A LIST page: rows start offset mails back from the newest of a mailbox holding total mails.
+    public void pageLoaded(long offset, int total, List<Row> rows) {
+        if (!active)
+            return;
+        if (offset == 0)
+            requested.remove(-1);
+        if (total < this.total) {
+            pages.clear();
+            requested.clear();
+            this.total = total;
+            fireTableDataChanged();
+        } else if (total > this.total) {
+            int before = this.total;
+            this.total = total;
+            fireTableRowsInserted(0, total - before - 1);
+        }
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (int i = 0; i < rows.size(); i++) {
+            long position = total - 1 - offset - i;
+            if (position < 0 || position >= this.total)
+                continue;
+            int page = (int) (position / PAGE_SIZE);
+            pages.computeIfAbsent(page, p -> new Row[PAGE_SIZE])[(int) (position % PAGE_SIZE)] = rows.get(i);
+            requested.remove(page);
+            first = Math.min(first, page);
+            last = Math.max(last, page);
+        }
+        // Repaints whole pages, so rows a short reply left out ask again.
+        if (last >= 0)
+            fireTableRowsUpdated(rowOf(Math.min(this.total - 1L, (last + 1L) * PAGE_SIZE - 1)),
+                    rowOf((long) first * PAGE_SIZE));
+    }
+
+    // The mail shown in a table row, or null while it is loading.
+    public Row rowAt(int row) {
+        if (row < 0 || row >= total)
+            return null;
+        long position = total - 1L - row;
+        int page = (int) (position / PAGE_SIZE);
+        Row[] held = pages.get(page);
+        Row found = held == null ? null : held[(int) (position % PAGE_SIZE)];
+        if (found == null)
+            requestPage(page);
+        return found;
+    }
+
+    @Override
+    public int getRowCount() {
+        return total;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        Row row = rowAt(rowIndex);
+        if (row == null)
+            return columnIndex == 3 ? "Loading..." : "";
+        switch (columnIndex) {
+            case 0:
+                return row.id;
+            case 1:
+                return row.date;
+            case 2:
+                return row.from;
+            default:
+                return row.title;
+        }
+    }
+
+    // page -1 is the newest page before the total is known.
+    private void requestPage(int page) {
+        Long since = requested.get(page);
+        if (since != null && System.nanoTime() - since < RETRY_NANOS)
+            return;
+        requested.put(page, System.nanoTime());
+        if (page < 0) {
+            loader.load(0, PAGE_SIZE);
+            return;
+        }
+        // From the newest position of the page still missing down to the bottom of the page.
+        Row[] held = pages.get(page);
+        long top = Math.min(total - 1L, (page + 1L) * PAGE_SIZE - 1);
+        while (top > (long) page * PAGE_SIZE && held != null && held[(int) (top % PAGE_SIZE)] != null)
+            top--;
+        loader.load(total - 1 - top, (int) (top - (long) page * PAGE_SIZE + 1));
+    }
+
+    private void retryStale() {
+        long now = System.nanoTime();
+        Integer stale = null;
+        for (Map.Entry<Integer, Long> entry : requested.entrySet()) {
+            if (now - entry.getValue() >= RETRY_NANOS) {
+                stale = entry.getKey();
+                break;
+            }
+        }
+        if (stale == null)
+            return;
+        requested.remove(stale);
+        if (stale < 0 || total == 0) {
+            requestPage(-1);
+            return;
+        }
+        // Repainting the page makes the rows still on screen ask for it again.
+        long bottom = (long) stale * PAGE_SIZE;
+        if (bottom < total)
+            fireTableRowsUpdated(rowOf(Math.min(total - 1L, bottom + PAGE_SIZE - 1)), rowOf(bottom));
+    }
+
+    private int rowOf(long position) {
+        return (int) (total - 1 - position);
+    }
+}
@@ -0,0 +1,228 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+// The client's copy of one account's mailbox: every header it has synced and the bodies it has read, under
+// mail.clientCache/<server>_<port>/<user>. headers.log is append-only, one "+" line per mail and one "-" line per
+// range of removed ids; it is rewritten when it holds mostly removals or ends in a torn line. Bodies are one file
+// each in bodies/, and the lowest ids go first once they pass mail.clientBodyCache bytes. Used from one thread.
+public class LocalMailCache {
+    private static final String MAGIC = "MAILCACHE 1";
+    private static final long MAX_BODY_BYTES = Long.getLong("mail.clientBodyCache", 64L * 1024 * 1024);
+
+    private final Path headersFile;
+    private final File bodiesDir;
+    // Oldest first, by id.
+    private final List<InboxTableModel.Row> rows = new ArrayList<>();
+    private final TreeMap<Long, Long> bodySizes = new TreeMap<>();
+    private long bodyBytes;
+    private long lastId;
+    private int removedLines;
+
+    private LocalMailCache(Path dir) {
+        this.headersFile = dir.resolve("headers.log");
+        this.bodiesDir = dir.resolve("bodies").toFile();
+    }
+
+    public static LocalMailCache open(String server, int port, String username) throws IOException {
+        Path dir = Paths.get(System.getProperty("mail.clientCache", "client_cache"), safe(server) + "_" + port,
+                safe(username));
+        LocalMailCache cache = new LocalMailCache(dir);
+        Files.createDirectories(cache.bodiesDir.toPath());
+        cache.load();
+        return cache;
+    }
+
+    public long lastId() {
+        return lastId;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    // MailProtocol.headerCheck of the newest mail held, which SYNC uses to tell the copy still matches.
+    public long check() {
+        if (rows.isEmpty())
+            return 0;
+        InboxTableModel.Row newest = rows.get(rows.size() - 1);
+        return MailProtocol.headerCheck(newest.id, newest.date, newest.from, newest.title);
+    }
+
+    // Up to limit rows starting offset mails back from the newest one, newest first, as LIST pages them.
+    public List<InboxTableModel.Row> newest(long offset, int limit) {
+        List<InboxTableModel.Row> page = new ArrayList<>();
+        for (long i = rows.size() - 1 - offset; i >= 0 && page.size() < limit; i--)
+            page.add(rows.get((int) i));
+        return page;
+    }
+
+    // Applies one SYNC reply: drops the removed {first, last} id ranges and their bodies, then appends the mails
+    // newer than any held.
+    public void apply(List<long[]> removed, List<InboxTableModel.Row> added) throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (long[] range : removed) {
+            rows.removeIf(row -> row.id >= range[0] && row.id <= range[1]);
+            for (Long id : new ArrayList<>(bodySizes.subMap(range[0], true, range[1], true).keySet()))
+                deleteBody(id);
+            log.append("-\t").append(range[0]).append('\t').append(range[1]).append('\n');
+            removedLines++;
+        }
+        for (InboxTableModel.Row row : added) {
+            if (row.id <= lastId)
+                continue;
+            rows.add(row);
+            lastId = row.id;
+            log.append(encode(row));
+        }
+        if (log.length() == 0)
+            return;
+        if (removedLines > 1000 && removedLines > rows.size()) {
+            rewrite();
+            return;
+        }
+        boolean fresh = !Files.exists(headersFile);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(headersFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8))) {
+            if (fresh)
+                writer.write(MAGIC + "\n");
+            writer.write(log.toString());
+        }
+    }
+
+    // Forgets everything, for a copy the server says cannot be patched.
+    public void clear() throws IOException {
+        rows.clear();
+        lastId = 0;
+        for (Long id : new ArrayList<>(bodySizes.keySet()))
+            deleteBody(id);
+        rewrite();
+    }
+
+    // The stored "<headers>\n\n<body>" text of a mail, or null if it was never read or has been dropped.
+    public String body(long id) {
+        if (!bodySizes.containsKey(id))
+            return null;
+        try {
+            return new String(Files.readAllBytes(bodyFile(id).toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            bodySizes.remove(id);
+            return null;
+        }
+    }
+
+    public void storeBody(long id, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_BODY_BYTES)
+            return;
+        Files.write(bodyFile(id).toPath(), bytes);
+        Long old = bodySizes.put(id, (long) bytes.length);
+        bodyBytes += bytes.length - (old == null ? 0 : old);
+        while (bodyBytes > MAX_BODY_BYTES)
+            deleteBody(bodySizes.firstKey());
+    }
+
+    private void load() throws IOException {
+        File[] bodies = bodiesDir.listFiles((dir, name) -> name.endsWith(".txt"));
+        if (bodies != null) {
+            for (File body : bodies) {
+                try {
+                    long id = Long.parseLong(body.getName().substring(0, body.getName().length() - 4));
+                    bodySizes.put(id, body.length());
+                    bodyBytes += body.length();
+                } catch (NumberFormatException e) {
+                    body.delete();
+                }
+            }
+        }
+        String text = Files.isRegularFile(headersFile)
+                ? new String(Files.readAllBytes(headersFile), StandardCharsets.UTF_8) : MAGIC + "\n";
+        boolean clean = text.startsWith(MAGIC + "\n");
+        String[] lines = clean ? text.split("\n") : new String[0];
+        int complete = text.endsWith("\n") ? lines.length : lines.length - 1;
+        clean &= complete == lines.length;
+        for (int i = 1; i < complete; i++) {
+            String[] fields = lines[i].split("\t", -1);
+            try {
+                if (fields.length == 3 && fields[0].equals("-")) {
+                    long first = Long.parseLong(fields[1]);
+                    long last = Long.parseLong(fields[2]);
+                    rows.removeIf(row -> row.id >= first && row.id <= last);
+                    removedLines++;
+                } else if (fields.length == 5 && fields[0].equals("+") && Long.parseLong(fields[1]) > lastId) {
+                    rows.add(new InboxTableModel.Row(Long.parseLong(fields[1]), MailboxIndex.unescape(fields[2]),
+                            MailboxIndex.unescape(fields[3]), MailboxIndex.unescape(fields[4])));
+                    lastId = Long.parseLong(fields[1]);
+                } else {
+                    clean = false;
+                }
+            } catch (IllegalArgumentException e) {
+                clean = false;
+            }
+        }
+        // Bodies of mails that are no longer held are leftovers of a crash between the two.
+        for (Long id : new ArrayList<>(bodySizes.keySet())) {
+            if (!holds(id))
+                deleteBody(id);
+        }
+        if (!clean || (removedLines > 1000 && removedLines > rows.size()))
+            rewrite();
+    }
+
+    private boolean holds(long id) {
+        int lo = 0, hi = rows.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = rows.get(mid).id;
+            if (midId < id)
+                lo = mid + 1;
+            else if (midId > id)
+                hi = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    private void rewrite() throws IOException {
+        Path tmp = headersFile.resolveSibling(headersFile.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(MAGIC + "\n");
+            for (InboxTableModel.Row row : rows)
+                writer.write(encode(row));
+        }
+        Files.move(tmp, headersFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        removedLines = 0;
+    }
+
+    private void deleteBody(long id) {
+        Long size = bodySizes.remove(id);
+        if (size != null)
+            bodyBytes -= size;
+        bodyFile(id).delete();
+    }
+
+    private File bodyFile(long id) {
+        return new File(bodiesDir, id + ".txt");
+    }
+
+    private static String encode(InboxTableModel.Row row) {
+        return "+\t" + row.id + "\t" + MailboxIndex.escape(row.date) + "\t" + MailboxIndex.escape(row.from) + "\t"
+                + MailboxIndex.escape(row.title) + "\n";
+    }
+
+    private static String safe(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
@@ -1,31 +1,105 @@
 import javax.swing.*;
 import java.awt.*;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+// Sockets are only touched off the EDT: sends go through the io thread, and everything the receive thread hands
+// over is decoded on the decoder thread, which posts nothing bigger than a page of rows or one mail to the EDT.
+//
+// Each account's headers and read mails are kept on disk (LocalMailCache). After login the client sends SYNC
+// with the newest mail it holds and gets back only what changed since, then pages the inbox from its own copy.
+// Against a server without SYNC it falls back to paging the inbox with LIST.
 public class MailClient extends JFrame {
+    private static final int HEARTBEAT_MILLIS = 30_000;
+    private static final int MAX_LOG_LINES = 500;
+    // Bodies still missing chunks; the oldest is given up on when more than this many are.
+    private static final int MAX_PENDING_BODIES = 16;
+    private static final int SYNC_LIMIT = 500;
+    // A SYNC unanswered for this long is taken for lost, and the next one goes out.
+    private static final long SYNC_TIMEOUT_NANOS = 5_000_000_000L;
+    // One mail of a text LIST reply: "[<id>] Time: <date> | From: <user> | Title: <title>".
+    private static final Pattern LIST_LINE = Pattern.compile(
+            "^\\[(\\d+)\\] Time: (.*?) \\| From: (.*?) \\| Title: (.*)$", Pattern.MULTILINE);
 
-    private DatagramSocket socket;
-    private InetAddress serverAddress;
+    private volatile MailConnection connection;
+    private String serverHost;
     private int serverPort;
-    private String currentUser;
+    private volatile String currentUser;
+    private volatile long sessionToken;
+    // The last query searched for and the id its next page of older matches starts before, or -1.
+    private String lastSearchQuery;
+    private long searchBefore = -1;
+    // Set once the server answers HELLO; until then (and against older servers) commands go out as text.
+    private volatile boolean binaryProtocol;
+    private final Map<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    // Keeps the server-side session alive (and NEW_MAIL coming) while the client sits idle.
+    private final Timer heartbeatTimer = new Timer(HEARTBEAT_MILLIS, e -> sendHeartbeat());
+    private final ExecutorService io = Executors.newSingleThreadExecutor(
+            PacketDispatcher.namedDaemonThreads("mail-client-io"));
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor(
+            PacketDispatcher.namedDaemonThreads("mail-client-decoder"));
+    private final InboxTableModel inbox = new InboxTableModel(this::requestInboxPage);
 
-    private JTextField serverIpField, serverPortField, usernameField, recipientField, titleField;
+    // Only used on the decoder thread. cache is null until login, and for good once the server turns SYNC down.
+    private LocalMailCache cache;
+    private long syncSentAt;
+    private boolean resyncWanted;
+    private final Map<Long, byte[][]> pendingBodies = new LinkedHashMap<Long, byte[][]>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[][]> eldest) {
+            if (size() <= MAX_PENDING_BODIES)
+                return false;
+            pendingHeaders.remove(eldest.getKey());
+            return true;
+        }
+    };
+    private final Map<Long, String> pendingHeaders = new LinkedHashMap<Long, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > MAX_PENDING_BODIES;
+        }
+    };
+
+    private JTextField serverIpField, serverPortField, usernameField, recipientField, titleField, readIdField,
+            searchField;
     private JPasswordField passwordField;
-    private JTextArea messageArea, composeArea;
-    private JButton connectButton, loginButton, registerButton, sendButton, listButton, logoutButton;
+    private JTextArea messageArea, mailArea, composeArea;
+    private JTable inboxTable;
+    private JButton connectButton, loginButton, registerButton, sendButton, listButton, readButton, logoutButton,
+            searchButton;
     private JLabel statusLabel;
 
+    // What a binary request was, so its reply can be matched up by request id.
+    private static class PendingRequest {
+        final byte opcode;
+
+        PendingRequest(byte opcode) {
+            this.opcode = opcode;
+        }
+    }
+
     public MailClient() {
         super("UDP Mail Client");
         initComponents();
         layoutComponents();
         addEventListeners();
 
-        setSize(800, 600);
+        setSize(900, 700);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
     }
@@ -43,7 +117,22 @@ public class MailClient extends JFrame {
         messageArea.setEditable(false);
         messageArea.setLineWrap(true);
         messageArea.setWrapStyleWord(true);
-        listButton = new JButton("List My Mails (Inbox)");
+        mailArea = new JTextArea();
+        mailArea.setEditable(false);
+        mailArea.setLineWrap(true);
+        mailArea.setWrapStyleWord(true);
+        inboxTable = new JTable(inbox);
+        inboxTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        inboxTable.setFillsViewportHeight(true);
+        inboxTable.getColumnModel().getColumn(0).setPreferredWidth(60);
+        inboxTable.getColumnModel().getColumn(1).setPreferredWidth(160);
+        inboxTable.getColumnModel().getColumn(2).setPreferredWidth(120);
+        inboxTable.getColumnModel().getColumn(3).setPreferredWidth(480);
+        listButton = new JButton("Refresh Inbox");
+        readIdField = new JTextField(6);
+        readButton = new JButton("Read Mail #");
+        searchField = new JTextField(15);
+        searchButton = new JButton("Search");
         recipientField = new JTextField(15);
         titleField = new JTextField(20);
         composeArea = new JTextArea(5, 40);
@@ -80,16 +169,25 @@ public class MailClient extends JFrame {
 
         JPanel centerPanel = new JPanel(new BorderLayout(5, 5));
         centerPanel.setBorder(BorderFactory.createTitledBorder("Inbox / Server Messages"));
-        centerPanel.add(new JScrollPane(messageArea), BorderLayout.CENTER);
+        JSplitPane readingPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, new JScrollPane(mailArea),
+                new JScrollPane(messageArea));
+        readingPane.setResizeWeight(0.6);
+        JSplitPane inboxPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, new JScrollPane(inboxTable), readingPane);
+        inboxPane.setResizeWeight(0.5);
+        centerPanel.add(inboxPane, BorderLayout.CENTER);
 
         JPanel actionsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         actionsPanel.add(listButton);
+        actionsPanel.add(readButton);
+        actionsPanel.add(readIdField);
+        actionsPanel.add(searchField);
+        actionsPanel.add(searchButton);
         centerPanel.add(actionsPanel, BorderLayout.SOUTH);
 
         JPanel composePanel = new JPanel(new BorderLayout(5, 5));
         composePanel.setBorder(BorderFactory.createTitledBorder("Compose Mail"));
         JPanel composeInfoPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        composeInfoPanel.add(new JLabel("To (username):"));
+        composeInfoPanel.add(new JLabel("To (users, @groups):"));
         composeInfoPanel.add(recipientField);
         composeInfoPanel.add(new JLabel("Title:"));
         composeInfoPanel.add(titleField);
@@ -116,7 +214,10 @@ public class MailClient extends JFrame {
                 logMessage("Client: Username and password cannot be empty for registration.");
                 return;
             }
-            sendCommand("REGISTER " + user + " " + pass);
+            if (binaryProtocol)
+                sendFrame(request(MailProtocol.REGISTER).string(user).string(pass));
+            else
+                sendCommand("REGISTER " + user + " " + pass);
         });
 
         loginButton.addActionListener(e -> {
@@ -126,13 +227,16 @@ public class MailClient extends JFrame {
                 logMessage("Client: Username and password cannot be empty for login.");
                 return;
             }
-            sendCommand("LOGIN " + user + " " + pass);
+            if (binaryProtocol)
+                sendFrame(request(MailProtocol.LOGIN).string(user).string(pass));
+            else
+                sendCommand("LOGIN " + user + " " + pass);
             currentUser = user;
         });
 
         logoutButton.addActionListener(e -> {
             if (currentUser != null) {
-                sendCommand("LOGOUT " + currentUser);
+                sendLogout();
                 logMessage("Client: Logged out.");
                 currentUser = null;
                 setLoggedInState(false);
@@ -140,115 +244,687 @@ public class MailClient extends JFrame {
         });
 
         listButton.addActionListener(e -> {
-            if (currentUser != null)
-                sendCommand("LIST " + currentUser);
+            if (currentUser == null)
+                return;
+            inbox.reload();
+            decoder.execute(this::sync);
+        });
+
+        inboxTable.getSelectionModel().addListSelectionListener(e -> {
+            InboxTableModel.Row row = inbox.rowAt(inboxTable.getSelectedRow());
+            if (!e.getValueIsAdjusting() && row != null)
+                readIdField.setText(Long.toString(row.id));
+        });
+
+        inboxTable.addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override
+            public void mouseClicked(java.awt.event.MouseEvent e) {
+                InboxTableModel.Row row = inbox.rowAt(inboxTable.rowAtPoint(e.getPoint()));
+                if (e.getClickCount() == 2 && row != null)
+                    readMail(row.id);
+            }
+        });
+
+        // Searching for the same words again fetches the next page of older matches.
+        searchButton.addActionListener(e -> {
+            String query = searchField.getText().trim();
+            if (currentUser == null || query.isEmpty()) {
+                logMessage("Client: Enter words to search for, e.g. 'budget from:alice title:report'.");
+                return;
+            }
+            if (!query.equals(lastSearchQuery))
+                searchBefore = -1;
+            lastSearchQuery = query;
+            if (binaryProtocol)
+                sendFrame(request(MailProtocol.SEARCH).number(sessionToken).string(query)
+                        .number(searchBefore).number(50));
+            else
+                sendCommand("SEARCH " + currentUser + (searchBefore > 0 ? " BEFORE " + searchBefore : "") + " "
+                        + query);
+        });
+
+        readButton.addActionListener(e -> {
+            String id = readIdField.getText().trim();
+            if (currentUser == null || !id.matches("\\d+")) {
+                logMessage("Client: Enter the number of a mail from the list to read it.");
+                return;
+            }
+            readMail(Long.parseLong(id));
         });
 
         sendButton.addActionListener(e -> {
-            String recipient = recipientField.getText().trim();
+            // "alice, bob, @team" goes out as "alice,bob,@team" so the text command keeps it as one word.
+            String recipient = recipientField.getText().replaceAll("\\s+", "");
             String title = titleField.getText().trim();
             String content = composeArea.getText().trim();
             if (recipient.isEmpty() || content.isEmpty()) {
                 logMessage("Client: Recipient and content cannot be empty.");
                 return;
             }
-            if (title.isEmpty())
-                title = "(no title)";
-            String command = String.format("SEND %s %s %s|%s", recipient, currentUser, title, content);
-            sendCommand(command);
+            if (binaryProtocol) {
+                sendFrame(request(MailProtocol.SEND).number(sessionToken).string(recipient).string(title)
+                        .string(content));
+            } else {
+                if (title.isEmpty())
+                    title = "(no title)";
+                sendCommand(String.format("SEND %s %s %s|%s", recipient, currentUser, title, content));
+            }
             composeArea.setText("");
         });
 
         this.addWindowListener(new java.awt.event.WindowAdapter() {
             @Override
             public void windowClosing(java.awt.event.WindowEvent windowEvent) {
-                if (socket != null && !socket.isClosed()) {
+                if (isConnected()) {
                     if (currentUser != null)
-                        sendCommand("LOGOUT " + currentUser);
-                    socket.close();
+                        sendLogout();
+                    MailConnection closing = connection;
+                    io.execute(closing::close);
+                }
+                // Gives the logout a moment to leave before the JVM exits.
+                io.shutdown();
+                try {
+                    io.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
             }
         });
     }
 
-    private void connectToServer() {
+    // A mail read before comes from the cache without asking the server.
+    private void readMail(long id) {
+        decoder.execute(() -> {
+            String cached = cache == null ? null : cache.body(id);
+            if (cached != null)
+                showMail(id, cached);
+            else if (binaryProtocol)
+                sendFrame(request(MailProtocol.READ).number(sessionToken).number(id));
+            else
+                sendCommand("READ " + currentUser + " " + id);
+        });
+    }
+
+    // Called by the inbox for a page it has no rows for yet; served from the cache when there is one.
+    private void requestInboxPage(long offset, int limit) {
+        if (currentUser == null)
+            return;
+        decoder.execute(() -> {
+            if (cache != null) {
+                List<InboxTableModel.Row> rows = cache.newest(offset, limit);
+                int total = cache.size();
+                SwingUtilities.invokeLater(() -> inbox.pageLoaded(offset, total, rows));
+            } else if (binaryProtocol) {
+                sendFrame(request(MailProtocol.LIST).number(sessionToken).number(-1).number(offset).number(limit));
+            } else {
+                sendCommand("LIST " + currentUser + " " + offset + " " + limit);
+            }
+        });
+    }
+
+    private void openCache(String host, int port, String username) {
+        syncSentAt = 0;
+        resyncWanted = false;
         try {
-            String ip = serverIpField.getText().trim();
-            int port = Integer.parseInt(serverPortField.getText().trim());
-            serverAddress = InetAddress.getByName(ip);
-            serverPort = port;
-            socket = new DatagramSocket();
-            connectButton.setEnabled(false);
-            serverIpField.setEditable(false);
-            serverPortField.setEditable(false);
-            setLoginAndRegisterEnabled(true);
-            statusLabel.setText("Status: Connected to " + ip + ":" + port);
-            logMessage("Client: Successfully connected to server. Please log in or register.");
-            Thread listenerThread = new Thread(this::listenToServer);
-            listenerThread.setDaemon(true);
-            listenerThread.start();
-        } catch (Exception e) {
-            logMessage("Client Error: Could not connect. " + e.getMessage());
-            e.printStackTrace();
+            cache = LocalMailCache.open(host, port, username);
+        } catch (IOException e) {
+            cache = null;
+            SwingUtilities.invokeLater(() -> logMessage("Client: Mail cache unavailable, " + e.getMessage()));
+            return;
         }
+        sync();
     }
 
-    private void listenToServer() {
-        byte[] buffer = new byte[8192];
-        while (socket != null && !socket.isClosed()) {
+    // Asks for everything that changed since the newest mail in the cache; one SYNC is out at a time.
+    private void sync() {
+        if (cache == null || currentUser == null)
+            return;
+        if (syncSentAt != 0 && System.nanoTime() - syncSentAt < SYNC_TIMEOUT_NANOS) {
+            resyncWanted = true;
+            return;
+        }
+        syncSentAt = System.nanoTime();
+        if (binaryProtocol)
+            sendFrame(request(MailProtocol.SYNC).number(sessionToken).number(cache.lastId()).number(cache.size())
+                    .number(cache.check()).number(SYNC_LIMIT));
+        else
+            sendCommand("SYNC " + currentUser + " " + cache.lastId() + " " + cache.size() + " " + cache.check());
+    }
+
+    // One SYNC reply; next is the id to continue from, or -1 when the cache has caught up.
+    private void applySync(boolean reset, List<long[]> removed, List<InboxTableModel.Row> rows, long next) {
+        if (cache == null)
+            return;
+        syncSentAt = 0;
+        try {
+            if (reset)
+                cache.clear();
+            cache.apply(removed, rows);
+        } catch (IOException e) {
+            cache = null;
+            SwingUtilities.invokeLater(() -> {
+                logMessage("Client: Mail cache unavailable, " + e.getMessage());
+                inbox.reload();
+            });
+            return;
+        }
+        if (reset || !removed.isEmpty()) {
+            SwingUtilities.invokeLater(inbox::reload);
+        } else if (!rows.isEmpty()) {
+            List<InboxTableModel.Row> page = cache.newest(0, InboxTableModel.PAGE_SIZE);
+            int total = cache.size();
+            SwingUtilities.invokeLater(() -> inbox.pageLoaded(0, total, page));
+        }
+        if (next >= 0 || resyncWanted) {
+            resyncWanted = false;
+            sync();
+        }
+    }
+
+    private void syncFailed(String error) {
+        syncSentAt = 0;
+        if (!error.startsWith("Unknown command"))
+            return;
+        cache = null;
+        SwingUtilities.invokeLater(inbox::reload);
+    }
+
+    // New mail was pushed: fetch it into the cache, or just make room for it at the top of the inbox.
+    private void newMail(long count) {
+        if (cache != null)
+            sync();
+        else
+            SwingUtilities.invokeLater(() -> inbox.mailsArrived(count));
+    }
+
+    // Resolving the address and opening the socket happen on the io thread, so a slow DNS lookup never blocks the
+    // window.
+    private void connectToServer() {
+        String ip = serverIpField.getText().trim();
+        String portText = serverPortField.getText().trim();
+        connectButton.setEnabled(false);
+        io.execute(() -> {
+            int port;
+            MailConnection opened;
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
-                SwingUtilities.invokeLater(() -> {
-                    if (message.startsWith("NEW_MAIL|")) {
-                        handleIncomingMailNotification(message);
-                    } else {
-                        logMessage("Server: " + message);
-                    }
+                port = Integer.parseInt(portText);
+                opened = new MailConnection(InetAddress.getByName(ip), port, true,
+                        new MailConnection.Listener() {
+                            @Override
+                            public void onMessage(byte[] data, int offset, int length) {
+                                handleServerMessage(data, offset, length);
+                            }
 
-                    if (message.startsWith("OK Logged in")) {
-                        setLoggedInState(true);
-                    } else if (message.startsWith("ERROR Invalid credentials")) {
-                        currentUser = null;
-                    }
+                            @Override
+                            public void onError(IOException e) {
+                                SwingUtilities.invokeLater(() -> logMessage(
+                                        "Client Error: Lost connection to server. " + e.getMessage()));
+                            }
+                        });
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(() -> {
+                    connectButton.setEnabled(true);
+                    logMessage("Client Error: Could not connect. " + e.getMessage());
                 });
-            } catch (IOException e) {
-                if (!socket.isClosed()) {
-                    SwingUtilities.invokeLater(
-                            () -> logMessage("Client Error: Lost connection to server. " + e.getMessage()));
-                }
-                break;
+                return;
             }
+            binaryProtocol = false;
+            connection = opened;
+            opened.start("mail-client-listener");
+            SwingUtilities.invokeLater(() -> {
+                serverHost = ip;
+                serverPort = port;
+                serverIpField.setEditable(false);
+                serverPortField.setEditable(false);
+                setLoginAndRegisterEnabled(true);
+                statusLabel.setText("Status: Connected to " + ip + ":" + portText);
+                logMessage("Client: Successfully connected to server. Please log in or register.");
+                sendFrame(request(MailProtocol.HELLO).number(MailProtocol.VERSION));
+            });
+        });
+    }
+
+    // Called on the listener thread for every plain datagram and every reassembled framed message; the data is
+    // copied out so the receive buffer can take the next datagram while the decoder works.
+    private void handleServerMessage(byte[] data, int offset, int length) {
+        byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+        decoder.execute(() -> decode(copy));
+    }
+
+    private void decode(byte[] data) {
+        if (MailProtocol.isFrame(data, 0, data.length)) {
+            handleServerFrame(data);
+            return;
+        }
+        if (startsWith(data, "CHUNK ")) {
+            handleBodyChunk(data);
+            return;
+        }
+        String message = new String(data, StandardCharsets.UTF_8);
+        if (message.startsWith("ERROR Unknown command") && removePending(MailProtocol.HELLO)) {
+            SwingUtilities.invokeLater(() -> logMessage("Client: Server only understands text commands."));
+            return;
+        }
+        if (message.startsWith("ERROR Unknown command") && syncSentAt != 0) {
+            syncFailed("Unknown command");
+            return;
+        }
+        if (message.equals("OK Session alive"))
+            return;
+        if (message.startsWith("NEW_MAIL|") || message.startsWith("NEW_MAIL_BATCH|")) {
+            handleIncomingMailNotification(message);
+        } else if (message.startsWith("OK Search results") || message.startsWith("OK No matching mails")) {
+            handleSearchResponse(message);
+        } else if (message.startsWith("OK ") && message.contains("CURSOR next=") && message.contains(" reset=")) {
+            handleSyncResponse(message);
+        } else if (message.startsWith("OK ") && message.contains("CURSOR next=")) {
+            handleListResponse(message);
+        } else if (message.startsWith("OK READ ")) {
+            handleReadHeader(message);
+        } else {
+            SwingUtilities.invokeLater(() -> {
+                logMessage("Server: " + message);
+                if (message.startsWith("OK Logged in")) {
+                    setLoggedInState(true);
+                } else if (message.startsWith("ERROR Invalid credentials")) {
+                    currentUser = null;
+                } else if (message.startsWith("ERROR Session expired")
+                        || message.startsWith("ERROR You must be logged in")) {
+                    sessionLost();
+                }
+            });
         }
     }
 
+    // "NEW_MAIL|<from>|<title>|<id>" for one mail, "NEW_MAIL_BATCH|<count>|<ids>|<last from>|<last title>" when
+    // the server coalesced several.
     private void handleIncomingMailNotification(String rawMessage) {
+        if (rawMessage.startsWith("NEW_MAIL_BATCH|")) {
+            String[] parts = rawMessage.split("\\|", 5);
+            if (parts.length == 5 && parts[1].matches("\\d+")) {
+                long count = Long.parseLong(parts[1]);
+                SwingUtilities.invokeLater(() -> showNewMails(count, parts[2], parts[3], parts[4]));
+                newMail(count);
+            }
+            return;
+        }
         String[] parts = rawMessage.split("\\|", 4);
         if (parts.length == 4) {
-            String fromUser = parts[1];
-            String title = parts[2];
-            logMessage(">> NEW MAIL Received from: " + fromUser + " | Title: " + title);
-            logMessage(">> Use 'List My Mails' to refresh your inbox.");
+            SwingUtilities.invokeLater(() -> showNewMail(parts[1], parts[2], parts[3]));
+            newMail(1);
         }
     }
 
-    private void sendCommand(String command) {
-        if (socket == null || socket.isClosed()) {
-            logMessage("Client: Not connected to the server.");
+    private void showNewMails(long count, String ids, String lastFrom, String lastTitle) {
+        logMessage(">> " + count + " NEW MAILS [" + ids + "], latest from: " + lastFrom + " | Title: " + lastTitle);
+    }
+
+    private void showNewMail(String fromUser, String title, String id) {
+        logMessage(">> NEW MAIL [" + id + "] Received from: " + fromUser + " | Title: " + title);
+    }
+
+    // "OK READ <id> <bytes> <chunks>" followed by the header lines; the body arrives as CHUNK datagrams.
+    private void handleReadHeader(String message) {
+        int eol = message.indexOf('\n');
+        String[] toks = (eol < 0 ? message : message.substring(0, eol)).split(" ");
+        startBody(Long.parseLong(toks[2]), Integer.parseInt(toks[4]), eol < 0 ? "" : message.substring(eol + 1));
+    }
+
+    private void startBody(long id, int chunks, String header) {
+        pendingHeaders.put(id, header);
+        byte[][] parts = pendingBodies.get(id);
+        if (parts == null || parts.length != chunks)
+            pendingBodies.put(id, new byte[chunks][]);
+        completeBodyIfReady(id);
+    }
+
+    // "CHUNK <id> <n>/<chunks>\n" followed by raw body bytes.
+    private void handleBodyChunk(byte[] data) {
+        int eol = 0;
+        while (eol < data.length && data[eol] != '\n')
+            eol++;
+        String[] toks = new String(data, 0, eol, StandardCharsets.US_ASCII).split("[ /]");
+        if (toks.length < 4)
             return;
+        int start = Math.min(data.length, eol + 1);
+        storeChunk(Long.parseLong(toks[1]), Integer.parseInt(toks[2]) - 1, Integer.parseInt(toks[3]),
+                Arrays.copyOfRange(data, start, data.length));
+    }
+
+    // Keeps chunk index (0-based) of a mail body until the header and every other chunk have arrived.
+    private void storeChunk(long id, int index, int chunks, byte[] part) {
+        byte[][] parts = pendingBodies.get(id);
+        if (parts == null || parts.length != chunks) {
+            parts = new byte[chunks][];
+            pendingBodies.put(id, parts);
+        }
+        if (index >= 0 && index < chunks)
+            parts[index] = part;
+        completeBodyIfReady(id);
+    }
+
+    private void completeBodyIfReady(long id) {
+        String header = pendingHeaders.get(id);
+        byte[][] parts = pendingBodies.get(id);
+        if (header == null || parts == null)
+            return;
+        int total = 0;
+        for (byte[] part : parts) {
+            if (part == null)
+                return;
+            total += part.length;
+        }
+        byte[] body = new byte[total];
+        int pos = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, body, pos, part.length);
+            pos += part.length;
+        }
+        pendingHeaders.remove(id);
+        pendingBodies.remove(id);
+        String text = header + "\n\n" + new String(body, StandardCharsets.UTF_8);
+        if (cache != null) {
+            try {
+                cache.storeBody(id, text);
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> logMessage("Client: Could not cache mail " + id + ", "
+                        + e.getMessage()));
+            }
+        }
+        showMail(id, text);
+    }
+
+    private void showMail(long id, String text) {
+        SwingUtilities.invokeLater(() -> {
+            mailArea.setText("Mail [" + id + "]\n" + text);
+            mailArea.setCaretPosition(0);
+        });
+    }
+
+    private static boolean startsWith(byte[] data, String prefix) {
+        if (data.length < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private void handleListResponse(String message) {
+        int cursorAt = message.lastIndexOf("CURSOR next=");
+        long next = -1;
+        int total = 0;
+        for (String field : message.substring(cursorAt + 7).trim().split(" ")) {
+            if (field.startsWith("next=") && !field.equals("next=-"))
+                next = Long.parseLong(field.substring(5));
+            else if (field.startsWith("total="))
+                total = Integer.parseInt(field.substring(6));
+        }
+        List<InboxTableModel.Row> rows = new ArrayList<>();
+        Matcher line = LIST_LINE.matcher(message.substring(0, cursorAt));
+        while (line.find())
+            rows.add(new InboxTableModel.Row(Long.parseLong(line.group(1)), line.group(2), line.group(3),
+                    line.group(4)));
+        showListPage(rows, next, total);
+    }
+
+    // Like a LIST reply, with "reset=<0|1> removed=<id ranges or ->" added to the CURSOR line.
+    private void handleSyncResponse(String message) {
+        int cursorAt = message.lastIndexOf("CURSOR next=");
+        long next = -1;
+        boolean reset = false;
+        List<long[]> removed = new ArrayList<>();
+        for (String field : message.substring(cursorAt + 7).trim().split(" ")) {
+            if (field.startsWith("next=") && !field.equals("next=-")) {
+                next = Long.parseLong(field.substring(5));
+            } else if (field.startsWith("reset=")) {
+                reset = field.equals("reset=1");
+            } else if (field.startsWith("removed=") && !field.equals("removed=-")) {
+                for (String range : field.substring(8).split(",")) {
+                    int dash = range.indexOf('-');
+                    removed.add(new long[] { Long.parseLong(dash < 0 ? range : range.substring(0, dash)),
+                            Long.parseLong(range.substring(dash + 1)) });
+                }
+            }
+        }
+        List<InboxTableModel.Row> rows = new ArrayList<>();
+        Matcher line = LIST_LINE.matcher(message.substring(0, cursorAt));
+        while (line.find())
+            rows.add(new InboxTableModel.Row(Long.parseLong(line.group(1)), line.group(2), line.group(3),
+                    line.group(4)));
+        applySync(reset, removed, rows, next);
+    }
+
+    private void handleSearchResponse(String message) {
+        int cursorAt = message.lastIndexOf("CURSOR next=");
+        String next = "-";
+        long total = 0;
+        for (String field : message.substring(cursorAt + 7).trim().split(" ")) {
+            if (field.startsWith("next="))
+                next = field.substring(5);
+            else if (field.startsWith("total="))
+                total = Long.parseLong(field.substring(6));
         }
+        String results = message.substring(0, cursorAt).trim();
+        long nextBefore = next.equals("-") ? -1 : Long.parseLong(next);
+        long matches = total;
+        SwingUtilities.invokeLater(() -> showSearchPage(results, nextBefore, matches));
+    }
+
+    private void showSearchPage(String results, long next, long total) {
+        logMessage("Server: " + results);
+        searchBefore = next;
+        if (next >= 0)
+            logMessage("Client: " + total + " mails match; click 'Search' again for older ones.");
+    }
+
+    // A page of newest-first LIST rows; next is the offset the following page starts from, or -1 when the page
+    // reaches the oldest mail, so the page itself started rows.size() before that.
+    private void showListPage(List<InboxTableModel.Row> rows, long next, int total) {
+        long offset = (next < 0 ? total : next) - rows.size();
+        SwingUtilities.invokeLater(() -> inbox.pageLoaded(offset, total, rows));
+    }
+
+    // Binary replies and pushes, decoded on the decoder thread.
+    private void handleServerFrame(byte[] data) {
         try {
-            byte[] data = command.getBytes(StandardCharsets.UTF_8);
-            DatagramPacket packet = new DatagramPacket(data, data.length, serverAddress, serverPort);
-            socket.send(packet);
-        } catch (IOException e) {
-            logMessage("Client Error: Failed to send command. " + e.getMessage());
+            MailProtocol.Frame frame = MailProtocol.parse(ByteBuffer.wrap(data));
+            byte opcode = frame.opcode();
+            if (opcode == MailProtocol.CHUNK) {
+                storeChunk(frame.number(0), (int) frame.number(1) - 1, (int) frame.number(2),
+                        bytesOf(frame.field(3)));
+                return;
+            }
+            if (opcode == MailProtocol.NEW_MAIL) {
+                String fromUser = frame.string(0);
+                String title = frame.string(1);
+                String id = Long.toString(frame.number(2));
+                long count = frame.fieldCount() > 3 ? frame.number(3) : 1;
+                StringBuilder ids = new StringBuilder();
+                for (int i = 4; i < frame.fieldCount(); i++)
+                    ids.append(i == 4 ? "" : ",").append(frame.number(i));
+                SwingUtilities.invokeLater(() -> {
+                    if (count > 1)
+                        showNewMails(count, ids.toString(), fromUser, title);
+                    else
+                        showNewMail(fromUser, title, id);
+                });
+                newMail(count);
+                return;
+            }
+
+            pendingRequests.remove(frame.requestId());
+            if (frame.status() != MailProtocol.STATUS_OK) {
+                String error = frame.string(0);
+                if (opcode == MailProtocol.SYNC)
+                    syncFailed(error);
+                SwingUtilities.invokeLater(() -> {
+                    logMessage("Server: ERROR " + error);
+                    if (opcode == MailProtocol.LOGIN)
+                        currentUser = null;
+                    else if (opcode != MailProtocol.REGISTER && opcode != MailProtocol.HELLO
+                            && (error.startsWith("Session expired") || error.startsWith("You must be logged in")))
+                        sessionLost();
+                });
+                return;
+            }
+            switch (opcode) {
+                case MailProtocol.HELLO: {
+                    long version = frame.number(0);
+                    binaryProtocol = true;
+                    SwingUtilities.invokeLater(() -> logMessage("Client: Using binary protocol v" + version + "."));
+                    break;
+                }
+                case MailProtocol.SYNC: {
+                    int ranges = (int) frame.number(4);
+                    List<long[]> removed = new ArrayList<>();
+                    for (int i = 0; i < ranges; i++)
+                        removed.add(new long[] { frame.number(5 + 2 * i), frame.number(6 + 2 * i) });
+                    List<InboxTableModel.Row> rows = new ArrayList<>();
+                    for (int i = 5 + 2 * ranges; i + 3 < frame.fieldCount(); i += 4)
+                        rows.add(new InboxTableModel.Row(frame.number(i), frame.string(i + 1), frame.string(i + 2),
+                                frame.string(i + 3)));
+                    applySync(frame.number(3) != 0, removed, rows, frame.number(0));
+                    break;
+                }
+                case MailProtocol.LIST: {
+                    List<InboxTableModel.Row> rows = new ArrayList<>();
+                    for (int i = 3; i + 3 < frame.fieldCount(); i += 4)
+                        rows.add(new InboxTableModel.Row(frame.number(i), frame.string(i + 1), frame.string(i + 2),
+                                frame.string(i + 3)));
+                    showListPage(rows, frame.number(0), (int) frame.number(2));
+                    break;
+                }
+                case MailProtocol.SEARCH: {
+                    StringBuilder sb = new StringBuilder(frame.fieldCount() > 2 ? "OK Search results:\n\n"
+                            : "OK No matching mails.");
+                    for (int i = 2; i + 3 < frame.fieldCount(); i += 4) {
+                        sb.append('[').append(frame.number(i)).append("] Time: ").append(frame.string(i + 1))
+                                .append(" | From: ").append(frame.string(i + 2)).append(" | Title: ")
+                                .append(frame.string(i + 3)).append("\n---\n");
+                    }
+                    long next = frame.number(0);
+                    long total = frame.number(1);
+                    SwingUtilities.invokeLater(() -> showSearchPage(sb.toString().trim(), next, total));
+                    break;
+                }
+                case MailProtocol.READ: {
+                    long id = frame.number(0);
+                    int chunks = (int) frame.number(2);
+                    String header = "From: " + frame.string(3) + "\nDate: " + frame.string(4) + "\nTitle: "
+                            + frame.string(5);
+                    startBody(id, chunks, header);
+                    break;
+                }
+                case MailProtocol.HEARTBEAT:
+                    break;
+                case MailProtocol.LOGIN: {
+                    String message = frame.string(0);
+                    long token = frame.number(1);
+                    SwingUtilities.invokeLater(() -> {
+                        logMessage("Server: OK " + message);
+                        sessionToken = token;
+                        setLoggedInState(true);
+                    });
+                    break;
+                }
+                default: {
+                    String message = frame.string(0);
+                    SwingUtilities.invokeLater(() -> logMessage("Server: OK " + message));
+                }
+            }
+        } catch (ProtocolException e) {
+            SwingUtilities.invokeLater(
+                    () -> logMessage("Client Error: Malformed reply from server. " + e.getMessage()));
+        }
+    }
+
+    private static byte[] bytesOf(ByteBuffer field) {
+        byte[] bytes = new byte[field.remaining()];
+        field.get(bytes);
+        return bytes;
+    }
+
+    private boolean removePending(byte opcode) {
+        return pendingRequests.values().removeIf(pending -> pending.opcode == opcode);
+    }
+
+    // Starts a binary request and remembers it until its reply comes back.
+    private MailProtocol.Writer request(byte opcode) {
+        int requestId = connection.nextRequestId();
+        if (opcode != MailProtocol.LOGOUT)
+            pendingRequests.put(requestId, new PendingRequest(opcode));
+        return new MailProtocol.Writer(ByteBuffer.allocate(256), opcode, MailProtocol.STATUS_OK, requestId);
+    }
+
+    private void sendLogout() {
+        if (binaryProtocol)
+            sendFrame(request(MailProtocol.LOGOUT).number(sessionToken));
+        else
+            sendCommand("LOGOUT " + currentUser);
+    }
+
+    private void sendHeartbeat() {
+        if (currentUser == null)
+            return;
+        if (binaryProtocol)
+            sendFrame(request(MailProtocol.HEARTBEAT).number(sessionToken));
+        else
+            sendCommand("HEARTBEAT " + currentUser);
+    }
+
+    // The server dropped our session (idle too long, or a restart); only a new LOGIN brings it back.
+    private void sessionLost() {
+        if (currentUser == null)
+            return;
+        currentUser = null;
+        setLoggedInState(false);
+        logMessage("Client: Session expired, please log in again.");
+    }
+
+    private boolean isConnected() {
+        return connection != null && connection.isOpen();
+    }
+
+    // Callable from any thread.
+    private void sendCommand(String command) {
+        if (!isConnected()) {
+            SwingUtilities.invokeLater(() -> logMessage("Client: Not connected to the server."));
+            return;
         }
+        MailConnection sending = connection;
+        io.execute(() -> reportFailure(sending.sendCommand(command)));
     }
 
+    private void sendFrame(MailProtocol.Writer frame) {
+        if (!isConnected()) {
+            SwingUtilities.invokeLater(() -> logMessage("Client: Not connected to the server."));
+            return;
+        }
+        MailConnection sending = connection;
+        io.execute(() -> reportFailure(sending.sendFrame(frame)));
+    }
+
+    private void reportFailure(CompletableFuture<Void> sent) {
+        sent.whenComplete((ok, error) -> {
+            if (error != null)
+                SwingUtilities.invokeLater(
+                        () -> logMessage("Client Error: Failed to send command. " + error.getMessage()));
+        });
+    }
+
+    // The log keeps its last MAX_LOG_LINES lines; mails and the inbox have their own views.
     private void logMessage(String message) {
         messageArea.append(message + "\n");
+        int excess = messageArea.getLineCount() - 1 - MAX_LOG_LINES;
+        if (excess > 0) {
+            try {
+                messageArea.replaceRange("", 0, messageArea.getLineEndOffset(excess - 1));
+            } catch (javax.swing.text.BadLocationException e) {
+                messageArea.setText("");
+            }
+        }
     }
 
     private void setLoggedInState(boolean loggedIn) {
@@ -256,15 +932,31 @@ public class MailClient extends JFrame {
         logoutButton.setEnabled(loggedIn);
         sendButton.setEnabled(loggedIn);
         listButton.setEnabled(loggedIn);
+        readButton.setEnabled(loggedIn);
+        readIdField.setEditable(loggedIn);
+        searchButton.setEnabled(loggedIn);
+        searchField.setEditable(loggedIn);
         recipientField.setEditable(loggedIn);
         titleField.setEditable(loggedIn);
         composeArea.setEditable(loggedIn);
+        if (loggedIn) {
+            heartbeatTimer.start();
+            String user = currentUser;
+            String host = serverHost;
+            int port = serverPort;
+            decoder.execute(() -> openCache(host, port, user));
+            inbox.reload();
+        } else {
+            heartbeatTimer.stop();
+            decoder.execute(() -> cache = null);
+            inbox.clear();
+        }
         if (loggedIn) {
             statusLabel.setText("Status: Logged in as " + currentUser);
             setTitle("UDP Mail Client - " + currentUser);
         } else {
-            setLoginAndRegisterEnabled(socket != null && !socket.isClosed());
-            statusLabel.setText(socket != null && !socket.isClosed() ? "Status: Connected, but not logged in."
+            setLoginAndRegisterEnabled(isConnected());
+            statusLabel.setText(isConnected() ? "Status: Connected, but not logged in."
                     : "Status: Disconnected");
             setTitle("UDP Mail Client");
         }
@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The client side of the wire: one UDP socket to the server, text commands and binary frames out, and a
+// receive thread that hands every plain datagram and every reassembled ReliableUdp message to the listener.
+// Shared by the GUI client and the headless load generator.
+public class MailConnection implements AutoCloseable {
+    public interface Listener {
+        // Called on the receive thread; data is only valid during the call.
+        void onMessage(byte[] data, int offset, int length);
+
+        // Called once if the socket fails while still open.
+        default void onError(IOException error) {
+        }
+    }
+
+    private final InetSocketAddress server;
+    private final DatagramSocket socket;
+    private final ReliableUdp reliable;
+    private final Listener listener;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+
+    // framed sends every message through ReliableUdp, which fragments and retransmits; otherwise each message is
+    // one plain datagram and a lost one stays lost.
+    public MailConnection(InetAddress address, int port, boolean framed, Listener listener) throws SocketException {
+        this.server = new InetSocketAddress(address, port);
+        this.socket = new DatagramSocket();
+        this.listener = listener;
+        this.reliable = framed
+                ? new ReliableUdp(
+                        (to, frame) -> socket.send(new DatagramPacket(frame.array(),
+                                frame.arrayOffset() + frame.position(), frame.remaining(), to)),
+                        (from, message) -> listener.onMessage(message.array(), message.arrayOffset(),
+                                message.remaining()))
+                : null;
+    }
+
+    public void start(String threadName) {
+        Thread thread = new Thread(this::receiveLoop, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    public int nextRequestId() {
+        return nextRequestId.incrementAndGet();
+    }
+
+    public CompletableFuture<Void> sendCommand(String command) {
+        return sendBytes(command.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public CompletableFuture<Void> sendFrame(MailProtocol.Writer frame) {
+        return sendBytes(frame.toByteArray());
+    }
+
+    public CompletableFuture<Void> sendBytes(byte[] data) {
+        if (reliable != null)
+            return reliable.send(server, data);
+        try {
+            socket.send(new DatagramPacket(data, data.length, server));
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        if (reliable != null)
+            reliable.close();
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[65535];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setData(buffer);
+                socket.receive(packet);
+                if (reliable != null && ReliableUdp.isFrame(packet.getData(), packet.getOffset(), packet.getLength())) {
+                    reliable.onFrame((InetSocketAddress) packet.getSocketAddress(),
+                            ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+                } else {
+                    listener.onMessage(packet.getData(), packet.getOffset(), packet.getLength());
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed())
+                    listener.onError(e);
+                break;
+            }
+        }
+    }
+}
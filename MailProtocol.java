@@ -0,0 +1,253 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Versioned binary form of the mail commands, spoken next to the legacy text commands on the same port.
+// A frame is: magic 0xB5, version, opcode, status, int request id, then fields as int length + bytes. Numbers
+// are 8-byte fields and strings are UTF-8. 0xB5 is a UTF-8 continuation byte, so no text command starts with
+// it, and it differs from the ReliableUdp magic. Replies echo the opcode and request id of their request;
+// pushes from the server (NEW_MAIL, CHUNK) use their own opcodes.
+public final class MailProtocol {
+    public static final byte MAGIC = (byte) 0xB5;
+    public static final byte VERSION = 1;
+    public static final int HEADER_BYTES = 8;
+    public static final int MAX_FIELDS = 4096;
+
+    public static final byte HELLO = 1;
+    public static final byte REGISTER = 2;
+    public static final byte LOGIN = 3;
+    public static final byte LOGOUT = 4;
+    public static final byte SEND = 5;
+    public static final byte LIST = 6;
+    public static final byte READ = 7;
+    public static final byte HEARTBEAT = 8;
+    public static final byte SEARCH = 9;
+    public static final byte SYNC = 10;
+    public static final byte DELETE = 11;
+    public static final byte MOVE = 12;
+    public static final byte SELECT = 13;
+    public static final byte NEW_MAIL = 0x20;
+    public static final byte CHUNK = 0x21;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    private MailProtocol() {
+    }
+
+    public static boolean isFrame(ByteBuffer data) {
+        return data.remaining() >= HEADER_BYTES && data.get(data.position()) == MAGIC;
+    }
+
+    public static boolean isFrame(byte[] data, int offset, int length) {
+        return length >= HEADER_BYTES && data[offset] == MAGIC;
+    }
+
+    // Opcode and request id read straight from the header, usable even when the rest of the frame is malformed.
+    public static byte opcodeOf(ByteBuffer data) {
+        return isFrame(data) ? data.get(data.position() + 2) : 0;
+    }
+
+    public static int requestIdOf(ByteBuffer data) {
+        return isFrame(data) ? data.getInt(data.position() + 4) : 0;
+    }
+
+    public static String opcodeName(byte opcode) {
+        switch (opcode) {
+            case HELLO:
+                return "HELLO";
+            case REGISTER:
+                return "REGISTER";
+            case LOGIN:
+                return "LOGIN";
+            case LOGOUT:
+                return "LOGOUT";
+            case SEND:
+                return "SEND";
+            case LIST:
+                return "LIST";
+            case READ:
+                return "READ";
+            case HEARTBEAT:
+                return "HEARTBEAT";
+            case SEARCH:
+                return "SEARCH";
+            case SYNC:
+                return "SYNC";
+            case DELETE:
+                return "DELETE";
+            case MOVE:
+                return "MOVE";
+            case SELECT:
+                return "SELECT";
+            case NEW_MAIL:
+                return "NEW_MAIL";
+            case CHUNK:
+                return "CHUNK";
+            default:
+                return "0x" + Integer.toHexString(opcode & 0xFF);
+        }
+    }
+
+    // What SYNC compares to tell that a client's newest mail is still the same mail on the server: a 32-bit
+    // FNV-1a hash of its id and headers, which differs once a rebuilt index gave the id to another mail.
+    public static long headerCheck(long id, String date, String from, String title) {
+        int hash = 0x811C9DC5;
+        String text = id + "\t" + date + "\t" + from + "\t" + title;
+        for (int i = 0; i < text.length(); i++)
+            hash = (hash ^ text.charAt(i)) * 0x01000193;
+        return hash & 0xFFFFFFFFL;
+    }
+
+    // Indexes the fields of a frame in place; the returned Frame reads from data, which must stay untouched
+    // while it is in use.
+    public static Frame parse(ByteBuffer data) throws ProtocolException {
+        if (!isFrame(data))
+            throw new ProtocolException("Not a binary mail frame");
+        int base = data.position();
+        int end = data.limit();
+        int count = 0;
+        int[] offsets = new int[8];
+        int[] lengths = new int[8];
+        int pos = base + HEADER_BYTES;
+        while (pos < end) {
+            if (end - pos < 4)
+                throw new ProtocolException("Truncated field length");
+            int length = data.getInt(pos);
+            pos += 4;
+            if (length < 0 || length > end - pos)
+                throw new ProtocolException("Field length " + length + " out of range");
+            if (count == MAX_FIELDS)
+                throw new ProtocolException("Too many fields");
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            offsets[count] = pos;
+            lengths[count] = length;
+            count++;
+            pos += length;
+        }
+        return new Frame(data, base, count, offsets, lengths);
+    }
+
+    public static final class Frame {
+        private final ByteBuffer data;
+        private final int base;
+        private final int count;
+        private final int[] offsets;
+        private final int[] lengths;
+
+        private Frame(ByteBuffer data, int base, int count, int[] offsets, int[] lengths) {
+            this.data = data;
+            this.base = base;
+            this.count = count;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+
+        public byte version() {
+            return data.get(base + 1);
+        }
+
+        public byte opcode() {
+            return data.get(base + 2);
+        }
+
+        public byte status() {
+            return data.get(base + 3);
+        }
+
+        public int requestId() {
+            return data.getInt(base + 4);
+        }
+
+        public int fieldCount() {
+            return count;
+        }
+
+        // A read-only view of one field, sharing the frame's bytes.
+        public ByteBuffer field(int i) throws ProtocolException {
+            check(i);
+            ByteBuffer view = data.asReadOnlyBuffer();
+            view.limit(offsets[i] + lengths[i]).position(offsets[i]);
+            return view.slice();
+        }
+
+        public String string(int i) throws ProtocolException {
+            check(i);
+            if (data.hasArray())
+                return new String(data.array(), data.arrayOffset() + offsets[i], lengths[i], StandardCharsets.UTF_8);
+            return StandardCharsets.UTF_8.decode(field(i)).toString();
+        }
+
+        public long number(int i) throws ProtocolException {
+            check(i);
+            if (lengths[i] != 8)
+                throw new ProtocolException("Field " + i + " is not a number");
+            return data.getLong(offsets[i]);
+        }
+
+        private void check(int i) throws ProtocolException {
+            if (i < 0 || i >= count)
+                throw new ProtocolException("Missing field " + i + " in " + opcodeName(opcode()) + " frame");
+        }
+    }
+
+    // Encodes one frame, starting in the given buffer and moving to a larger heap buffer if it runs out.
+    public static final class Writer {
+        private ByteBuffer out;
+
+        public Writer(ByteBuffer out, byte opcode, byte status, int requestId) {
+            this.out = out;
+            out.clear();
+            ensure(HEADER_BYTES);
+            this.out.put(MAGIC).put(VERSION).put(opcode).put(status).putInt(requestId);
+        }
+
+        public Writer string(String value) {
+            return bytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public Writer number(long value) {
+            ensure(12);
+            out.putInt(8).putLong(value);
+            return this;
+        }
+
+        public Writer bytes(byte[] value) {
+            ensure(4 + value.length);
+            out.putInt(value.length).put(value);
+            return this;
+        }
+
+        public Writer bytes(ByteBuffer value) {
+            ensure(4 + value.remaining());
+            out.putInt(value.remaining()).put(value.duplicate());
+            return this;
+        }
+
+        // The finished frame, ready to be sent.
+        public ByteBuffer finish() {
+            out.flip();
+            return out;
+        }
+
+        public byte[] toByteArray() {
+            ByteBuffer frame = finish();
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            return bytes;
+        }
+
+        private void ensure(int needed) {
+            if (out.remaining() >= needed)
+                return;
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// SEARCH over the mailboxes of a store. The search indexes of recently searched mailboxes stay in memory, in an
+// LRU map like MailboxIndexCache. The delivery writer hands over every new mail as it is stored: it is added to
+// the index in memory, or appended to the search.log of a mailbox whose index is not loaded, which costs one
+// small write and no read. A search first indexes whatever mails the index is missing from their stored bodies,
+// which only happens when it fell behind: after a crash lost the end of its log, or for mail that arrived before
+// the mailbox had one. Each folder of a mailbox has an index of its own, kept in the folder's directory; only
+// the inbox gets new mail from the delivery writer.
+public class MailSearch {
+    private static final int LOCK_STRIPES = 64;
+    private static final Metrics.Counter caughtUp = Metrics.counter("mail_search_catchup_mails_total",
+            "Mails indexed for search from their stored bodies at search time");
+    private static final Metrics.Counter indexedOnDelivery = Metrics.counter("mail_search_indexed_mails_total",
+            "Mails indexed for search as they were delivered");
+
+    // The terms of the mail last indexed by each fan-out thread, so a mail for many recipients is split up once.
+    // The body is only weakly held; the writer drops it as soon as the batch is stored.
+    private static final class LastTerms {
+        final WeakReference<String> content;
+        final String from;
+        final String title;
+        final Set<String> terms;
+
+        LastTerms(String content, String from, String title, Set<String> terms) {
+            this.content = new WeakReference<>(content);
+            this.from = from;
+            this.title = title;
+            this.terms = terms;
+        }
+    }
+
+    private static final ThreadLocal<LastTerms> LAST_TERMS = new ThreadLocal<>();
+
+    private final MailStore store;
+    private final Map<String, SearchIndex> cache;
+    private final Object[] stripes = new Object[LOCK_STRIPES];
+
+    public MailSearch(MailStore store, int cachedMailboxes) {
+        this.store = store;
+        this.cache = new LinkedHashMap<String, SearchIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SearchIndex> eldest) {
+                if (size() <= cachedMailboxes)
+                    return false;
+                eldest.getValue().close();
+                return true;
+            }
+        };
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            stripes[i] = new Object();
+    }
+
+    public static MailSearch fromConfig(MailStore store) {
+        return new MailSearch(store, Integer.getInteger("mail.searchCache", 256));
+    }
+
+    // Ids of the mails in the mailbox matching the query, oldest first. Throws IllegalArgumentException for a
+    // query with nothing to search for.
+    public long[] search(String username, String folder, MailboxIndex mailbox, String query) throws IOException {
+        List<List<String>> clauses = SearchIndex.parseQuery(query);
+        SearchIndex index = get(username, folder);
+        catchUp(username, folder, mailbox, index);
+        return index.matches(clauses);
+    }
+
+    // Called by the delivery writer for every mail it stored.
+    public void stored(String recipient, MailboxIndex.Entry entry, String content) {
+        SearchIndex index;
+        // Under the stripe lock, so the index is not being opened from the log while the mail is appended to it.
+        synchronized (stripeFor(recipient)) {
+            synchronized (cache) {
+                index = cache.get(recipient);
+            }
+            if (index == null) {
+                try {
+                    SearchIndex.appendDelivered(store.folderDir(recipient, MailStore.INBOX).toPath(), entry.id,
+                            termsOf(entry, content));
+                    indexedOnDelivery.increment();
+                } catch (IOException e) {
+                    ServerLog.warn("Failed to log mail " + entry.id + " of " + recipient + " for search: "
+                            + e.getMessage());
+                }
+                return;
+            }
+        }
+        if (entry.id != index.lastId() + 1)
+            return;
+        try {
+            if (index.add(entry.id, termsOf(entry, content)))
+                indexedOnDelivery.increment();
+        } catch (IOException e) {
+            ServerLog.warn("Failed to index mail " + entry.id + " of " + recipient + " for search: "
+                    + e.getMessage());
+        }
+    }
+
+    public int cachedMailboxes() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void close() {
+        synchronized (cache) {
+            for (SearchIndex index : cache.values())
+                index.close();
+            cache.clear();
+        }
+    }
+
+    // The cached index, unless the mailbox has moved to another directory since it was loaded.
+    private SearchIndex get(String username, String folder) throws IOException {
+        Path dir = store.folderDir(username, folder).toPath();
+        String key = MailboxIndexCache.key(username, folder);
+        synchronized (stripeFor(username)) {
+            SearchIndex index;
+            synchronized (cache) {
+                index = cache.get(key);
+            }
+            if (index != null && index.dir().equals(dir))
+                return index;
+            if (index != null)
+                index.close();
+            index = SearchIndex.open(dir);
+            synchronized (cache) {
+                cache.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    private Object stripeFor(String username) {
+        return stripes[(username.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private void catchUp(String username, String folder, MailboxIndex mailbox, SearchIndex index)
+            throws IOException {
+        synchronized (index) {
+            if (mailbox.lastId() < index.lastId()) {
+                ServerLog.warn("Search index of " + username + " is ahead of the mailbox, rebuilding it");
+                index.reset();
+            }
+            if (mailbox.lastId() == index.lastId())
+                return;
+            long start = System.nanoTime();
+            int added = 0;
+            List<MailboxIndex.Entry> missing = mailbox.since(index.lastId(), Integer.MAX_VALUE);
+            for (MailboxIndex.Entry entry : missing) {
+                ByteBuffer body = store.readBody(username, folder, entry);
+                String content = StandardCharsets.UTF_8.decode(body).toString();
+                if (index.add(entry.id, SearchIndex.terms(entry.from, entry.title, content)))
+                    added++;
+            }
+            caughtUp.add(added);
+            if (added > 100)
+                ServerLog.info("Indexed " + added + " mail(s) of " + username + " for search in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+    }
+
+    private static Set<String> termsOf(MailboxIndex.Entry entry, String content) {
+        LastTerms last = LAST_TERMS.get();
+        if (last != null && last.content.get() == content && last.from.equals(entry.from)
+                && last.title.equals(entry.title))
+            return last.terms;
+        Set<String> terms = SearchIndex.terms(entry.from, entry.title, content);
+        LAST_TERMS.set(new LastTerms(content, entry.from, entry.title, terms));
+        return terms;
+    }
+}
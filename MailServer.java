@@ -1,313 +1,1390 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.sun.net.httpserver.HttpServer;
 
 public class MailServer {
     public static final int SERVER_PORT = 9999;
-    private static final String SERVER_DATA_DIR = "server_data";
-    private static final String USERS_DIR = SERVER_DATA_DIR + File.separator + "users";
-    private static final String MAILBOXES_DIR = SERVER_DATA_DIR + File.separator + "mailboxes";
+    private static final String SERVER_DATA_DIR = System.getProperty("mail.dataDir", "server_data");
+    private static final String GROUPS_DIR = SERVER_DATA_DIR + File.separator + "groups";
+
+    private static final int MAX_DATAGRAM_SIZE = 8192;
+    private static final int MAX_UDP_PAYLOAD = 65507;
+    private static final int LIST_DEFAULT_LIMIT = 50;
+    private static final int LIST_MAX_LIMIT = 500;
+    // Removed-id ranges one SYNC reply may carry; a client that is further behind starts over.
+    private static final int SYNC_MAX_RANGES = 100;
+    // Ids one DELETE or MOVE may name.
+    private static final int MAX_IDS = LIST_MAX_LIMIT;
+    private static final int READ_CHUNK_BYTES = MAX_DATAGRAM_SIZE - 64;
+    private static final int MAX_RECIPIENTS = Integer.getInteger("mail.maxRecipients", 100);
+    private static final int FRAGMENT_BYTES = Integer.getInteger("mail.fragmentBytes",
+            ReliableUdp.DEFAULT_FRAGMENT_BYTES);
+    private static final int MAX_MESSAGE_BYTES = Integer.getInteger("mail.maxMessageBytes",
+            ReliableUdp.DEFAULT_MAX_MESSAGE_BYTES);
+    private static final int PEER_BUFFER_BYTES = Integer.getInteger("mail.peerBuffer",
+            ReliableUdp.DEFAULT_MAX_PEER_BYTES);
+    private static final int MAX_PEERS = Integer.getInteger("mail.maxPeers", ReliableUdp.DEFAULT_MAX_PEERS);
+    private static final long REASSEMBLY_BYTES = Long.getLong("mail.reassemblyBuffer",
+            ReliableUdp.DEFAULT_MAX_BUFFERED_BYTES);
+    private static final String IO_MODE = System.getProperty("mail.io", "socket");
+    private static final int NIO_READERS = Integer.getInteger("mail.readers",
+            Runtime.getRuntime().availableProcessors());
+    private static final int SOCKET_RCVBUF = Integer.getInteger("mail.rcvbuf", 0);
+    private static final int SOCKET_SNDBUF = Integer.getInteger("mail.sndbuf", 0);
+    private static final String EXECUTOR_MODE = System.getProperty("mail.executor", "pool");
+    private static final int WORKER_THREADS = Integer.getInteger("mail.workers",
+            Runtime.getRuntime().availableProcessors() * 2);
+    private static final int WORKER_QUEUE = Integer.getInteger("mail.queue", 4096);
+    private static final String OVERLOAD_POLICY = System.getProperty("mail.overload", "reject");
+    private static final long SESSION_TIMEOUT_MILLIS = Long.getLong("mail.sessionTimeout",
+            SessionTable.DEFAULT_TIMEOUT_MILLIS);
+    private static final long SESSION_TICK_MILLIS = Long.getLong("mail.sessionTick",
+            SessionTable.DEFAULT_TICK_MILLIS);
+    private static final String METRICS_ADDRESS = System.getProperty("mail.metricsAddress", "127.0.0.1");
+    private static final int METRICS_PORT = Integer.getInteger("mail.metricsPort", 9998);
+
+    private static final String[] COMMANDS = { "HELLO", "REGISTER", "LOGIN", "LOGOUT", "HEARTBEAT", "SEND", "LIST",
+            "READ", "SEARCH", "SYNC", "SELECT", "DELETE", "MOVE", "UNKNOWN" };
+    // Per command, the time from handling its packet to its first reply: [0] for OK replies, [1] for errors.
+    private static final Map<String, Metrics.Timer[]> REQUEST_TIMERS = requestTimers();
+    private static final Metrics.Counter packetsReceived = Metrics.counter("mail_packets_received_total",
+            "Datagrams received on the server port");
+    private static final Metrics.Counter sessionsExpired = Metrics.counter("mail_sessions_expired_total",
+            "Sessions dropped after mail.sessionTimeout without traffic");
+    private static final Metrics.Timer indexReads = Metrics.timer("mail_store_read_seconds",
+            "Time to load a mailbox index or a mail body", "op", "index");
+    private static final Metrics.Timer bodyReads = Metrics.timer("mail_store_read_seconds",
+            "Time to load a mailbox index or a mail body", "op", "body");
+    private static final Metrics.Counter mailsDeleted = Metrics.counter("mail_mails_removed_total",
+            "Mails removed from a mailbox folder", "reason", "delete");
+    private static final Metrics.Counter mailsMoved = Metrics.counter("mail_mails_moved_total",
+            "Mails moved to another folder");
+    private static final Metrics.Counter quotaRejections = Metrics.counter("mail_quota_rejections_total",
+            "SEND requests refused because a recipient's mailbox was full");
 
-    private static final Map<String, ClientInfo> onlineUsers = new ConcurrentHashMap<>();
+    private static final SessionTable sessions = new SessionTable(SESSION_TIMEOUT_MILLIS, SESSION_TICK_MILLIS,
+            session -> {
+                sessionsExpired.increment();
+                if (ServerLog.debugEnabled())
+                    ServerLog.debug("Session of '" + session.username + "' expired.");
+            });
+    private static final NotificationDispatcher notifier = NotificationDispatcher.fromConfig(MailServer::pushNewMail);
+    private static final ShardRing shards = ShardRing.fromConfig(SERVER_DATA_DIR);
+    private static final UserDirectory users = UserDirectory.forShards(shards);
+    private static final CredentialService credentials = CredentialService.fromConfig(users);
+    private static final GroupDirectory groups = new GroupDirectory(Paths.get(GROUPS_DIR));
+    private static final AdmissionControl admission = AdmissionControl.fromConfig();
+    private static final MailStore mailStore = ShardedMailStore.fromConfig(shards, users, new File(SERVER_DATA_DIR));
+    private static final MailSearch search = MailSearch.fromConfig(mailStore);
+    private static final DeliveryWriter deliveryWriter = DeliveryWriter.fromConfig(mailStore, MailServer::stored,
+            new File(SERVER_DATA_DIR, "delivery.wal"));
+    private static final MailboxJanitor janitor = MailboxJanitor.fromConfig(mailStore, users,
+            deliveryWriter::queueDepth);
+    private static final MetadataSnapshot snapshot = MetadataSnapshot.fromConfig(new File(SERVER_DATA_DIR), shards,
+            users, mailStore, janitor);
+
+    private static final ThreadLocal<CharsetEncoder> RESPONSE_ENCODER = ThreadLocal
+            .withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    private static final ThreadLocal<ByteBuffer> RESPONSE_BUFFER = ThreadLocal
+            .withInitial(() -> "nio".equalsIgnoreCase(IO_MODE) ? ByteBuffer.allocateDirect(MAX_UDP_PAYLOAD)
+                    : ByteBuffer.allocate(MAX_UDP_PAYLOAD));
+
+    private static volatile MailTransport serverTransport;
+    private static final ReliableUdp reliable = new ReliableUdp(
+            (to, frame) -> serverTransport.send(to, frame),
+            (from, message) -> handleReassembled(serverTransport, from, message),
+            FRAGMENT_BYTES, MAX_MESSAGE_BYTES, PEER_BUFFER_BYTES, MAX_PEERS, REASSEMBLY_BYTES);
 
     public static void main(String[] args) {
-        System.out.println("Starting MailServer on UDP port " + SERVER_PORT + "...");
+        ServerLog.info("Starting MailServer on UDP port " + SERVER_PORT + "...");
+        if (!startServices())
+            return;
+
+        boolean nio = "nio".equalsIgnoreCase(IO_MODE);
+        BufferPool buffers = new BufferPool(MAX_DATAGRAM_SIZE, WORKER_THREADS + WORKER_QUEUE, nio);
+        PacketDispatcher dispatcher = PacketDispatcher.fromConfig(EXECUTOR_MODE, WORKER_THREADS, WORKER_QUEUE,
+                OVERLOAD_POLICY);
+        ServerLog.info("Dispatching on " + EXECUTOR_MODE + " executor (" + WORKER_THREADS + " workers, queue "
+                + WORKER_QUEUE + ", overload policy " + dispatcher.policy() + ")");
+        Metrics.gauge("mail_worker_queue_depth", "Packets waiting for a worker", dispatcher::queueDepth);
+        Metrics.counter("mail_packets_dropped_total", "Packets dropped or rejected because the workers were full",
+                dispatcher::droppedCount);
+        HttpServer metricsServer = startMetricsEndpoint();
+        NioReceiver.PacketHandler handler = (transport, from, data) -> dispatchPacket(dispatcher, buffers,
+                transport, from, data);
+
+        try {
+            if (nio) {
+                runNio(buffers, handler);
+            } else {
+                runSocket(buffers, handler);
+            }
+        } catch (SocketException se) {
+            ServerLog.error("Socket error: " + se.getMessage(), se);
+        } catch (IOException ioe) {
+            ServerLog.error("I/O error while receiving packet: " + ioe.getMessage(), ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (metricsServer != null)
+                metricsServer.stop(0);
+            dispatcher.shutdown();
+            reliable.close();
+            stopServices();
+        }
+    }
+
+    // Everything except the socket, so the benchmarks can drive handlePacket against a scratch data directory.
+    static boolean startServices() {
         ensureServerDirectoriesExist();
+        try {
+            if (snapshot == null || !snapshot.load())
+                users.load();
+            users.watch();
+        } catch (IOException e) {
+            ServerLog.error("Failed to load user directory: " + e.getMessage(), e);
+            return false;
+        }
+        try {
+            deliveryWriter.start();
+            sessions.start();
+            notifier.start();
+        } catch (IOException e) {
+            ServerLog.error("Failed to open delivery log: " + e.getMessage(), e);
+            return false;
+        }
+        ShardRebalancer.startIfSharded(mailStore, users);
+        janitor.start();
+        if (snapshot != null)
+            snapshot.start();
+        registerGauges();
+        Metrics.registerMBean();
+        return true;
+    }
 
+    private static void registerGauges() {
+        Metrics.gauge("mail_sessions_online", "Logged-in sessions", sessions::size);
+        Metrics.gauge("mail_delivery_queue_depth", "Mails waiting for the delivery writer", deliveryWriter::queueDepth);
+        Metrics.gauge("mail_hash_queue_depth", "LOGIN/REGISTER requests waiting for a password hash thread",
+                credentials::queueDepth);
+        Metrics.gauge("mail_notify_pending_recipients", "Recipients with NEW_MAIL pushes being collected",
+                notifier::pendingRecipients);
+        Metrics.gauge("mail_search_cached_mailboxes", "Mailbox search indexes held in memory",
+                search::cachedMailboxes);
+        Metrics.gauge("mail_reliable_peers", "Peers using the reliable framed transport", reliable::peerCount);
+        Metrics.gauge("mail_reliable_inflight_messages", "Framed messages sent and not yet acknowledged",
+                reliable::inFlightMessages);
+        Metrics.gauge("mail_log_queue_depth", "Log lines waiting to be written", ServerLog::queueDepth);
+        Metrics.counter("mail_log_dropped_total", "Log lines dropped because the log queue was full",
+                ServerLog::droppedCount);
+    }
+
+    private static Map<String, Metrics.Timer[]> requestTimers() {
+        Map<String, Metrics.Timer[]> timers = new HashMap<>();
+        for (String command : COMMANDS) {
+            timers.put(command, new Metrics.Timer[] {
+                    Metrics.timer("mail_request_duration_seconds", "Time from receiving a request to its reply",
+                            "command", command, "result", "ok"),
+                    Metrics.timer("mail_request_duration_seconds", "Time from receiving a request to its reply",
+                            "command", command, "result", "error") });
+        }
+        return timers;
+    }
+
+    // Prometheus-style text on http://<mail.metricsAddress>:<mail.metricsPort>/metrics; port 0 turns it off.
+    private static HttpServer startMetricsEndpoint() {
+        if (METRICS_PORT <= 0)
+            return null;
+        try {
+            HttpServer server = Metrics.serve(new InetSocketAddress(METRICS_ADDRESS, METRICS_PORT));
+            ServerLog.info("Metrics at http://" + METRICS_ADDRESS + ":" + METRICS_PORT + "/metrics");
+            return server;
+        } catch (IOException e) {
+            ServerLog.warn("Metrics endpoint not started on " + METRICS_ADDRESS + ":" + METRICS_PORT + ": "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    static void stopServices() {
+        janitor.close();
+        sessions.shutdown();
+        notifier.close();
+        users.close();
+        credentials.shutdown();
+        deliveryWriter.close();
+        if (snapshot != null)
+            snapshot.close();
+        search.close();
+        mailStore.close();
+    }
+
+    private static void runSocket(BufferPool buffers, NioReceiver.PacketHandler handler) throws IOException {
         try (DatagramSocket socket = new DatagramSocket(SERVER_PORT)) {
-            byte[] buffer = new byte[8192];
+            if (SOCKET_RCVBUF > 0)
+                socket.setReceiveBufferSize(SOCKET_RCVBUF);
+            if (SOCKET_SNDBUF > 0)
+                socket.setSendBufferSize(SOCKET_SNDBUF);
+            MailTransport transport = MailTransport.of(socket);
+            serverTransport = transport;
             while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                ByteBuffer buffer = buffers.acquire();
+                DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.capacity());
                 socket.receive(packet);
-                new Thread(() -> handlePacket(socket, packet)).start();
+                buffer.limit(packet.getLength());
+                handler.onPacket(transport, (InetSocketAddress) packet.getSocketAddress(), buffer);
             }
-        } catch (SocketException se) {
-            System.err.println("Socket error: " + se.getMessage());
-            se.printStackTrace();
-        } catch (IOException ioe) {
-            System.err.println("I/O error while receiving packet: " + ioe.getMessage());
-            ioe.printStackTrace();
         }
     }
 
-    private static void handlePacket(DatagramSocket socket, DatagramPacket packet) {
-        String senderIp = packet.getAddress().getHostAddress();
-        int senderPort = packet.getPort();
-        String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).trim();
+    private static void runNio(BufferPool buffers, NioReceiver.PacketHandler handler)
+            throws IOException, InterruptedException {
+        NioReceiver receiver = new NioReceiver(SERVER_PORT, NIO_READERS, SOCKET_RCVBUF, SOCKET_SNDBUF, buffers,
+                handler);
+        receiver.start();
+        serverTransport = receiver.transport();
+        try {
+            Thread.currentThread().join();
+        } finally {
+            receiver.close();
+        }
+    }
 
-        System.out.println("--- Received Packet ---");
-        System.out.println("From IP   : " + senderIp + ":" + senderPort);
-        System.out.println("Raw       : " + message);
+    private static void dispatchPacket(PacketDispatcher dispatcher, BufferPool buffers, MailTransport transport,
+            InetSocketAddress from, ByteBuffer data) {
+        packetsReceived.increment();
+        AdmissionControl.Verdict verdict = admission.admitPacket(from.getAddress(), data);
+        if (verdict != AdmissionControl.Verdict.ADMIT) {
+            Reply reply = verdict == AdmissionControl.Verdict.THROTTLE ? Reply.to(transport, from, data) : null;
+            buffers.release(data);
+            if (reply != null)
+                reply.error(AdmissionControl.THROTTLED);
+            return;
+        }
+        boolean accepted = dispatcher.dispatch(() -> {
+            try {
+                handlePacket(transport, from, data);
+            } finally {
+                buffers.release(data);
+            }
+        });
+        if (!accepted) {
+            Reply reply = Reply.to(transport, from, data);
+            buffers.release(data);
+            if (dispatcher.policy() == PacketDispatcher.OverloadPolicy.REJECT) {
+                reply.error("Server busy, try again");
+            }
+        }
+    }
+
+    private static void handlePacket(MailTransport transport, InetSocketAddress from, ByteBuffer data) {
+        if (ReliableUdp.isFrame(data)) {
+            reliable.onFrame(from, data);
+            return;
+        }
+        handleMessage(transport, from, data);
+    }
 
+    // A message put back together by the reliable transport; its fragments were admitted one by one.
+    private static void handleReassembled(MailTransport transport, InetSocketAddress from, ByteBuffer message) {
+        if (admission.admitMessage(from.getAddress(), message) == AdmissionControl.Verdict.THROTTLE) {
+            Reply.to(transport, from, message).error(AdmissionControl.THROTTLED);
+            return;
+        }
+        handleMessage(transport, from, message);
+    }
+
+    private static void handleMessage(MailTransport transport, InetSocketAddress from, ByteBuffer data) {
+        if (MailProtocol.isFrame(data)) {
+            handleFrame(transport, from, data);
+            return;
+        }
+        long start = System.nanoTime();
+        String message = StandardCharsets.UTF_8.decode(data).toString().trim();
         String[] parts = message.split(" ", 2);
         String command = parts[0].toUpperCase();
         String payload = parts.length > 1 ? parts[1] : "";
+        Reply reply = Reply.text(transport, from).track(command, start);
 
         switch (command) {
             case "REGISTER":
-                handleRegister(payload, packet.getAddress(), packet.getPort(), socket);
+                handleRegister(payload, reply);
                 break;
             case "LOGIN":
-                handleLogin(payload, packet.getAddress(), packet.getPort(), socket);
+                handleLogin(payload, reply);
                 break;
             case "LOGOUT":
-                handleLogout(payload);
+                handleLogout(payload, reply);
+                reply.noReply();
+                break;
+            case "HEARTBEAT":
+                handleHeartbeat(payload, reply);
                 break;
             case "SEND":
-                handleSend(payload, packet.getAddress(), packet.getPort(), socket);
+                handleSend(payload, reply);
                 break;
             case "LIST":
-                handleList(payload, packet.getAddress(), packet.getPort(), socket);
+                handleList(payload, reply);
+                break;
+            case "READ":
+                handleRead(payload, reply);
+                break;
+            case "SEARCH":
+                handleSearch(payload, reply);
+                break;
+            case "SYNC":
+                handleSync(payload, reply);
+                break;
+            case "SELECT":
+                handleSelect(payload, reply);
+                break;
+            case "DELETE":
+                handleDelete(payload, reply);
+                break;
+            case "MOVE":
+                handleMove(payload, reply);
                 break;
             default:
-                sendResponse(socket, packet.getAddress(), packet.getPort(), "ERROR Unknown command");
+                reply.error("Unknown command");
         }
-        System.out.println("-----------------------\n");
     }
 
-    private static class ClientInfo {
-        public final InetAddress address;
-        public final int port;
+    // Binary requests carry their arguments as fields, so they go straight to the command methods without
+    // building or splitting a command string. Everything after LOGIN names its session by token as field 0.
+    private static void handleFrame(MailTransport transport, InetSocketAddress from, ByteBuffer data) {
+        long start = System.nanoTime();
+        Reply reply = Reply.to(transport, from, data);
+        reply.track(MailProtocol.opcodeName(reply.opcode), start);
 
-        public ClientInfo(InetAddress address, int port) {
-            this.address = address;
-            this.port = port;
+        try {
+            MailProtocol.Frame frame = MailProtocol.parse(data);
+            if (frame.opcode() != MailProtocol.HELLO && frame.version() != MailProtocol.VERSION) {
+                reply.error("Unsupported protocol version " + frame.version());
+                return;
+            }
+            switch (frame.opcode()) {
+                case MailProtocol.HELLO:
+                    hello(frame.number(0), reply);
+                    break;
+                case MailProtocol.REGISTER:
+                    register(frame.string(0), frame.string(1), reply);
+                    break;
+                case MailProtocol.LOGIN:
+                    login(frame.string(0), frame.string(1), reply);
+                    break;
+                case MailProtocol.LOGOUT:
+                    logout(sessions.byToken(frame.number(0), from));
+                    reply.noReply();
+                    break;
+                case MailProtocol.HEARTBEAT:
+                    heartbeat(sessions.byToken(frame.number(0), from), reply);
+                    break;
+                case MailProtocol.SEND:
+                    send(sessions.byToken(frame.number(0), from), frame.string(1), frame.string(2), frame.string(3),
+                            reply);
+                    break;
+                case MailProtocol.LIST:
+                    list(sessions.byToken(frame.number(0), from), frame.number(1), frame.number(2),
+                            frame.number(3), reply);
+                    break;
+                case MailProtocol.READ:
+                    read(sessions.byToken(frame.number(0), from), frame.number(1), reply);
+                    break;
+                case MailProtocol.SEARCH:
+                    search(sessions.byToken(frame.number(0), from), frame.string(1), frame.number(2),
+                            frame.number(3), reply);
+                    break;
+                case MailProtocol.SYNC:
+                    sync(sessions.byToken(frame.number(0), from), frame.number(1), frame.number(2),
+                            frame.number(3), frame.number(4), reply);
+                    break;
+                case MailProtocol.SELECT:
+                    select(sessions.byToken(frame.number(0), from), frame.string(1), reply);
+                    break;
+                case MailProtocol.DELETE:
+                    delete(sessions.byToken(frame.number(0), from), numbers(frame, 1), reply);
+                    break;
+                case MailProtocol.MOVE:
+                    move(sessions.byToken(frame.number(0), from), numbers(frame, 2), frame.string(1), reply);
+                    break;
+                default:
+                    reply.error("Unknown command");
+            }
+        } catch (ProtocolException e) {
+            reply.error("Malformed request: " + e.getMessage());
         }
     }
 
-    private static void handleRegister(String payload, InetAddress addr, int port, DatagramSocket socket) {
+    // Number fields from the given one to the last, such as the message ids of DELETE and MOVE.
+    private static List<Long> numbers(MailProtocol.Frame frame, int first) throws ProtocolException {
+        List<Long> numbers = new ArrayList<>();
+        for (int i = first; i < frame.fieldCount(); i++)
+            numbers.add(frame.number(i));
+        return numbers;
+    }
+
+    // Answers one request in the form it arrived in: "OK ..."/"ERROR ..." text for legacy commands, or a frame
+    // echoing the request's opcode and id for binary ones. A tracked reply records the request's latency and
+    // outcome when its first answer goes out, possibly on another thread for LOGIN, REGISTER and SEND.
+    private static final class Reply {
+        final MailTransport transport;
+        final InetSocketAddress from;
+        final InetAddress address;
+        final int port;
+        final boolean binary;
+        final byte opcode;
+        final int requestId;
+        private String command;
+        private Metrics.Timer[] timers;
+        private long startNanos;
+
+        private Reply(MailTransport transport, InetSocketAddress to, boolean binary, byte opcode, int requestId) {
+            this.transport = transport;
+            this.from = to;
+            this.address = to.getAddress();
+            this.port = to.getPort();
+            this.binary = binary;
+            this.opcode = opcode;
+            this.requestId = requestId;
+        }
+
+        Reply track(String requestCommand, long start) {
+            timers = REQUEST_TIMERS.get(requestCommand);
+            command = timers != null ? requestCommand : "UNKNOWN";
+            if (timers == null)
+                timers = REQUEST_TIMERS.get(command);
+            startNanos = start;
+            return this;
+        }
+
+        // For commands that are never answered, such as LOGOUT.
+        void noReply() {
+            answered(true, null);
+        }
+
+        // Only the first answer counts; READ sends its chunks after the header.
+        private void answered(boolean ok, String error) {
+            Metrics.Timer[] requestTimers = timers;
+            if (requestTimers == null)
+                return;
+            timers = null;
+            long nanos = System.nanoTime() - startNanos;
+            requestTimers[ok ? 0 : 1].record(nanos);
+            if (ServerLog.sampled())
+                ServerLog.debug(command + " from " + address.getHostAddress() + ":" + port
+                        + (ok ? " ok" : " error '" + error + "'") + " in " + nanos / 1000 + " us");
+        }
+
+        static Reply text(MailTransport transport, InetSocketAddress to) {
+            return new Reply(transport, to, false, (byte) 0, 0);
+        }
+
+        // Picks the reply form from the first bytes of a request, without parsing the rest of it.
+        static Reply to(MailTransport transport, InetSocketAddress to, ByteBuffer request) {
+            if (!MailProtocol.isFrame(request))
+                return text(transport, to);
+            return new Reply(transport, to, true, MailProtocol.opcodeOf(request), MailProtocol.requestIdOf(request));
+        }
+
+        void ok(String message) {
+            answered(true, null);
+            if (binary)
+                sendFrame(transport, address, port, frame(opcode, MailProtocol.STATUS_OK).string(message).finish());
+            else
+                sendResponse(transport, address, port, "OK " + message);
+        }
+
+        void error(String message) {
+            answered(false, message);
+            if (binary)
+                sendFrame(transport, address, port,
+                        frame(opcode, MailProtocol.STATUS_ERROR).string(message).finish());
+            else
+                sendResponse(transport, address, port, "ERROR " + message);
+        }
+
+        // Binary clients get the session token; text clients are recognised by their address instead.
+        void loggedIn(String message, long token) {
+            answered(true, null);
+            if (binary)
+                sendFrame(transport, address, port,
+                        frame(opcode, MailProtocol.STATUS_OK).string(message).number(token).finish());
+            else
+                ok(message);
+        }
+
+        void hello(long version) {
+            answered(true, null);
+            sendFrame(transport, address, port, frame(opcode, MailProtocol.STATUS_OK).number(version).finish());
+        }
+
+        // next is the offset or id to continue from, or -1 when nothing is left.
+        void list(List<MailboxIndex.Entry> page, boolean sinceMode, long next, long lastId, int total) {
+            answered(true, null);
+            if (binary) {
+                MailProtocol.Writer out = frame(opcode, MailProtocol.STATUS_OK).number(next).number(lastId)
+                        .number(total);
+                for (MailboxIndex.Entry entry : page)
+                    out.number(entry.id).string(entry.date).string(entry.from).string(entry.title);
+                sendFrame(transport, address, port, out.finish());
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            if (page.isEmpty()) {
+                sb.append(sinceMode ? "OK No new mails.\n" : "OK No mails found.\n");
+            } else {
+                sb.append("OK Your mails:\n\n");
+            }
+            for (MailboxIndex.Entry entry : page) {
+                sb.append('[').append(entry.id).append("] Time: ").append(entry.date).append(" | From: ")
+                        .append(entry.from).append(" | Title: ").append(entry.title).append("\n---\n");
+            }
+            sb.append("CURSOR next=").append(next < 0 ? "-" : Long.toString(next)).append(" last=").append(lastId)
+                    .append(" total=").append(total);
+            sendResponse(transport, address, port, sb.toString());
+        }
+
+        // Matches newest first; next is the id to continue BEFORE, or -1 when there are no older matches.
+        void searchResults(List<MailboxIndex.Entry> page, long next, int total) {
+            answered(true, null);
+            if (binary) {
+                MailProtocol.Writer out = frame(opcode, MailProtocol.STATUS_OK).number(next).number(total);
+                for (MailboxIndex.Entry entry : page)
+                    out.number(entry.id).string(entry.date).string(entry.from).string(entry.title);
+                sendFrame(transport, address, port, out.finish());
+                return;
+            }
+            StringBuilder sb = new StringBuilder(page.isEmpty() ? "OK No matching mails.\n" : "OK Search results:\n\n");
+            for (MailboxIndex.Entry entry : page) {
+                sb.append('[').append(entry.id).append("] Time: ").append(entry.date).append(" | From: ")
+                        .append(entry.from).append(" | Title: ").append(entry.title).append("\n---\n");
+            }
+            sb.append("CURSOR next=").append(next < 0 ? "-" : Long.toString(next)).append(" total=").append(total);
+            sendResponse(transport, address, port, sb.toString());
+        }
+
+        // removed are {first, last} id ranges gone from the mailbox; next is the id to sync on from, or -1.
+        void syncDelta(boolean reset, List<long[]> removed, List<MailboxIndex.Entry> page, long next, long lastId,
+                int total) {
+            answered(true, null);
+            if (binary) {
+                MailProtocol.Writer out = frame(opcode, MailProtocol.STATUS_OK).number(next).number(lastId)
+                        .number(total).number(reset ? 1 : 0).number(removed.size());
+                for (long[] range : removed)
+                    out.number(range[0]).number(range[1]);
+                for (MailboxIndex.Entry entry : page)
+                    out.number(entry.id).string(entry.date).string(entry.from).string(entry.title);
+                sendFrame(transport, address, port, out.finish());
+                return;
+            }
+            StringBuilder sb = new StringBuilder(page.isEmpty() ? "OK No new mails.\n" : "OK Sync:\n\n");
+            for (MailboxIndex.Entry entry : page) {
+                sb.append('[').append(entry.id).append("] Time: ").append(entry.date).append(" | From: ")
+                        .append(entry.from).append(" | Title: ").append(entry.title).append("\n---\n");
+            }
+            sb.append("CURSOR next=").append(next < 0 ? "-" : Long.toString(next)).append(" last=").append(lastId)
+                    .append(" total=").append(total).append(" reset=").append(reset ? 1 : 0).append(" removed=");
+            for (int i = 0; i < removed.size(); i++) {
+                long[] range = removed.get(i);
+                sb.append(i == 0 ? "" : ",").append(range[0]);
+                if (range[1] != range[0])
+                    sb.append('-').append(range[1]);
+            }
+            if (removed.isEmpty())
+                sb.append('-');
+            sendResponse(transport, address, port, sb.toString());
+        }
+
+        void mailHeader(MailboxIndex.Entry entry, int length, int chunks) {
+            answered(true, null);
+            if (binary) {
+                sendFrame(transport, address, port, frame(opcode, MailProtocol.STATUS_OK).number(entry.id)
+                        .number(length).number(chunks).string(entry.from).string(entry.date).string(entry.title)
+                        .finish());
+                return;
+            }
+            sendResponse(transport, address, port, "OK READ " + entry.id + " " + length + " " + chunks + "\nFrom: "
+                    + entry.from + "\nDate: " + entry.date + "\nTitle: " + entry.title);
+        }
+
+        // Chunk n (1-based) of a mail body.
+        void chunk(long id, int n, int chunks, ByteBuffer body) {
+            if (binary) {
+                sendFrame(transport, address, port, frame(MailProtocol.CHUNK, MailProtocol.STATUS_OK).number(id)
+                        .number(n).number(chunks).bytes(body).finish());
+                return;
+            }
+            sendResponse(transport, address, port, "CHUNK " + id + " " + n + "/" + chunks + "\n", body);
+        }
+
+        private MailProtocol.Writer frame(byte frameOpcode, byte status) {
+            return new MailProtocol.Writer(RESPONSE_BUFFER.get(), frameOpcode, status, requestId);
+        }
+    }
+
+    // HELLO <highest version the client speaks>; the reply names the version both sides will use.
+    private static void hello(long clientVersion, Reply reply) {
+        if (clientVersion < 1) {
+            reply.error("Unsupported protocol version " + clientVersion);
+            return;
+        }
+        reply.hello(Math.min(clientVersion, MailProtocol.VERSION));
+    }
+
+    private static void handleRegister(String payload, Reply reply) {
         String[] toks = payload.split(" ", 2);
         if (toks.length < 2) {
-            sendResponse(socket, addr, port, "ERROR REGISTER requires username and password");
+            reply.error("REGISTER requires username and password");
             return;
         }
-        String username = toks[0].trim();
-        String password = toks[1].trim();
+        register(toks[0].trim(), toks[1].trim(), reply);
+    }
 
-        if (userExists(username)) {
-            sendResponse(socket, addr, port, "ERROR User already exists");
+    private static void register(String username, String password, Reply reply) {
+        if (username.isEmpty() || password.isEmpty()) {
+            reply.error("REGISTER requires username and password");
             return;
         }
-
-        String hashedPassword = hashPassword(password);
-        if (hashedPassword == null) {
-            sendResponse(socket, addr, port, "ERROR Server-side hashing error");
+        if (userExists(username)) {
+            reply.error("User already exists");
             return;
         }
 
-        File userFile = new File(USERS_DIR, username + ".txt");
         String createdAt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(userFile))) {
-            writer.write("username: " + username);
-            writer.newLine();
-            writer.write("password: " + hashedPassword);
-            writer.newLine();
-            writer.write("createdAt: " + createdAt);
-            writer.newLine();
-        } catch (IOException e) {
-            System.err.println("Failed to create user file for " + username);
-            e.printStackTrace();
-            sendResponse(socket, addr, port, "ERROR Server failed to create user file");
-            return;
-        }
-
-        sendResponse(socket, addr, port, "OK Registered successfully");
+        credentials.register(username, password, createdAt).whenComplete((created, error) -> {
+            if (error instanceof RejectedExecutionException) {
+                reply.error("Server busy, try again");
+            } else if (error != null) {
+                ServerLog.error("Failed to create user file for " + username + ": " + error);
+                reply.error("Server failed to create user file");
+            } else if (!created) {
+                reply.error("User already exists");
+            } else {
+                reply.ok("Registered successfully");
+            }
+        });
     }
 
-    private static void handleLogin(String payload, InetAddress addr, int port, DatagramSocket socket) {
+    private static void handleLogin(String payload, Reply reply) {
         String[] toks = payload.split(" ", 2);
         if (toks.length < 2) {
-            sendResponse(socket, addr, port, "ERROR LOGIN requires username and password");
+            reply.error("LOGIN requires username and password");
             return;
         }
-        String username = toks[0].trim();
-        String password = toks[1].trim();
+        login(toks[0].trim(), toks[1].trim(), reply);
+    }
 
-        if (checkCredentials(username, password)) {
-            onlineUsers.put(username, new ClientInfo(addr, port));
-            System.out.println("User '" + username + "' logged in from " + addr.getHostAddress() + ":" + port);
-            sendResponse(socket, addr, port, "OK Logged in successfully");
-        } else {
-            sendResponse(socket, addr, port, "ERROR Invalid credentials");
+    private static void login(String username, String password, Reply reply) {
+        if (!admission.admitUser(AdmissionControl.Kind.LOGIN, username)) {
+            reply.error(AdmissionControl.THROTTLED);
+            return;
         }
+        credentials.verify(username, password).whenComplete((valid, error) -> {
+            if (error instanceof RejectedExecutionException) {
+                reply.error("Server busy, try again");
+            } else if (error != null) {
+                ServerLog.error("Failed to check password of " + username + ": " + error);
+                reply.error("Server-side hashing error");
+            } else if (valid) {
+                SessionTable.Session session = sessions.open(username, reply.from, reply.binary);
+                if (ServerLog.debugEnabled())
+                    ServerLog.debug("User '" + username + "' logged in from " + reply.address.getHostAddress()
+                            + ":" + reply.port + " (" + sessions.size() + " session(s) open)");
+                reply.loggedIn("Logged in successfully", session.token);
+            } else {
+                reply.error("Invalid credentials");
+            }
+        });
     }
 
-    private static void handleLogout(String username) {
-        username = username.trim();
-        if (onlineUsers.remove(username) != null) {
-            System.out.println("User '" + username + "' logged out.");
-        }
+    private static void handleLogout(String payload, Reply reply) {
+        logout(sessions.byUser(payload.trim(), reply.from));
     }
 
-    private static void handleSend(String payload, InetAddress senderAddr, int senderPort, DatagramSocket socket) {
-        String[] head = payload.split(" ", 3);
-        if (head.length < 3) {
-            sendResponse(socket, senderAddr, senderPort,
-                    "ERROR SEND command format is: <recipient> <fromUser> <title|content>");
-            return;
+    // Unknown or foreign sessions are ignored; LOGOUT never gets a reply.
+    private static void logout(SessionTable.Session session) {
+        if (session != null && sessions.close(session) && ServerLog.debugEnabled()) {
+            ServerLog.debug("User '" + session.username + "' logged out.");
         }
+    }
 
-        String recipient = head[0].trim();
-        String fromUser = head[1].trim();
-        String rest = head[2];
+    // HEARTBEAT <user>. Any request keeps a session alive; idle clients send this so they keep getting NEW_MAIL.
+    private static void handleHeartbeat(String payload, Reply reply) {
+        heartbeat(sessions.byUser(payload.trim(), reply.from), reply);
+    }
 
-        if (!onlineUsers.containsKey(fromUser)) {
-            sendResponse(socket, senderAddr, senderPort, "ERROR You must be logged in to send mail.");
+    private static void heartbeat(SessionTable.Session session, Reply reply) {
+        if (session == null) {
+            reply.error("Session expired, please log in again.");
             return;
         }
+        reply.ok("Session alive");
+    }
 
-        if (!userExists(recipient)) {
-            sendResponse(socket, senderAddr, senderPort, "ERROR Recipient '" + recipient + "' does not exist.");
+    // SEND <recipients> <fromUser> <title|content>; recipients is a comma-separated list of users and @groups,
+    // and a body without '|' gets no title.
+    private static void handleSend(String payload, Reply reply) {
+        String[] head = payload.split(" ", 3);
+        if (head.length < 3) {
+            reply.error("SEND command format is: <recipient> <fromUser> <title|content>");
             return;
         }
 
-        String title = "(no title)";
+        String rest = head[2];
+        String title = "";
         String content = rest;
         int sep = rest.indexOf('|');
         if (sep != -1) {
             title = rest.substring(0, sep).trim();
             content = rest.substring(sep + 1).trim();
         }
+        send(sessions.byUser(head[1].trim(), reply.from), head[0].trim(), title, content, reply);
+    }
 
-        File recipientInbox = new File(MAILBOXES_DIR + File.separator + recipient + File.separator + "inbox");
-        if (!recipientInbox.exists()) {
-            recipientInbox.mkdirs();
+    private static void send(SessionTable.Session session, String recipientList, String title, String content,
+            Reply reply) {
+        if (session == null) {
+            reply.error("You must be logged in to send mail.");
+            return;
+        }
+        String fromUser = session.username;
+        if (!admission.admitUser(AdmissionControl.Kind.SEND, fromUser)) {
+            reply.error(AdmissionControl.THROTTLED);
+            return;
+        }
+
+        Set<String> expanded = new LinkedHashSet<>();
+        for (String name : recipientList.split(",")) {
+            name = name.trim();
+            if (name.isEmpty())
+                continue;
+            if (!name.startsWith("@")) {
+                expanded.add(name);
+                continue;
+            }
+            List<String> members;
+            try {
+                members = groups.members(name.substring(1));
+            } catch (IOException e) {
+                ServerLog.error("Error reading group " + name + ": " + e.getMessage());
+                reply.error("Server failed to read group '" + name + "'");
+                return;
+            }
+            if (members == null) {
+                reply.error("Group '" + name + "' does not exist.");
+                return;
+            }
+            expanded.addAll(members);
+        }
+        if (expanded.isEmpty()) {
+            reply.error("No recipient given.");
+            return;
+        }
+        if (expanded.size() > MAX_RECIPIENTS) {
+            reply.error("Too many recipients (" + expanded.size() + ", at most " + MAX_RECIPIENTS + ").");
+            return;
+        }
+        List<String> missing = users.missing(expanded);
+        if (missing.size() == 1) {
+            reply.error("Recipient '" + missing.get(0) + "' does not exist.");
+            return;
+        } else if (!missing.isEmpty()) {
+            reply.error("Recipients '" + String.join("', '", missing) + "' do not exist.");
+            return;
+        }
+        List<String> full = new ArrayList<>();
+        for (String recipient : expanded)
+            if (janitor.overQuota(recipient))
+                full.add(recipient);
+        if (!full.isEmpty()) {
+            quotaRejections.increment();
+            reply.error("Mailbox of '" + String.join("', '", full) + "' is full.");
+            return;
         }
+        List<String> recipients = new ArrayList<>(expanded);
 
-        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date());
-        File mailFile = new File(recipientInbox, timestamp + ".txt");
+        String finalTitle = title.isEmpty() ? "(no title)" : title;
         String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(mailFile))) {
-            writer.write("from: " + fromUser);
-            writer.newLine();
-            writer.write("to: " + recipient);
-            writer.newLine();
-            writer.write("date: " + date);
-            writer.newLine();
-            writer.write("title: " + title);
-            writer.newLine();
-            writer.newLine();
-            writer.write(content);
+        deliveryWriter.submit(recipients, fromUser, date, finalTitle, content).whenComplete((entries, error) -> {
+            if (error != null) {
+                ServerLog.error("Failed to save mail for " + recipientList + ": " + error.getMessage());
+                reply.error("Server failed to save mail");
+                return;
+            }
+
+            List<String> failed = new ArrayList<>();
+            for (int i = 0; i < recipients.size(); i++) {
+                String recipient = recipients.get(i);
+                MailboxIndex.Entry entry = entries.get(i);
+                if (entry == null)
+                    failed.add(recipient);
+                else if (sessions.online(recipient) != null)
+                    notifier.announce(recipient, fromUser, finalTitle, entry.id);
+            }
+
+            if (!failed.isEmpty())
+                reply.ok("Mail sent to " + (recipients.size() - failed.size()) + " of " + recipients.size()
+                        + " recipients; failed for " + String.join(", ", failed));
+            else if (recipients.size() <= 5)
+                reply.ok("Mail sent successfully to " + String.join(", ", recipients));
+            else
+                reply.ok("Mail sent successfully to " + recipients.size() + " recipients");
+        });
+    }
+
+    // Runs on the delivery writer's threads for every mail stored in an inbox.
+    private static void stored(String recipient, MailboxIndex.Entry entry, String content) {
+        search.stored(recipient, entry, content);
+        janitor.stored(recipient, entry, content);
+    }
+
+    // Runs on the notifier thread. One mail keeps the classic "NEW_MAIL|<from>|<title>|<id>"; several become
+    // "NEW_MAIL_BATCH|<count>|<id,id,...>|<last from>|<last title>" with the newest ids, oldest first.
+    private static void pushNewMail(String recipient, NotificationDispatcher.Batch batch) {
+        SessionTable.Session session = sessions.online(recipient);
+        MailTransport transport = serverTransport;
+        if (session == null || transport == null)
+            return;
+        InetSocketAddress to = session.address;
+        if (session.binary) {
+            MailProtocol.Writer frame = new MailProtocol.Writer(RESPONSE_BUFFER.get(), MailProtocol.NEW_MAIL,
+                    MailProtocol.STATUS_OK, 0).string(batch.lastFrom).string(batch.lastTitle).number(batch.lastId())
+                    .number(batch.count);
+            for (long id : batch.ids)
+                frame.number(id);
+            sendFrame(transport, to.getAddress(), to.getPort(), frame.finish());
+        } else if (batch.count == 1) {
+            sendResponse(transport, to.getAddress(), to.getPort(),
+                    "NEW_MAIL|" + batch.lastFrom + "|" + batch.lastTitle + "|" + batch.lastId());
+        } else {
+            StringBuilder sb = new StringBuilder("NEW_MAIL_BATCH|").append(batch.count).append('|');
+            for (int i = 0; i < batch.ids.length; i++)
+                sb.append(i == 0 ? "" : ",").append(batch.ids[i]);
+            sb.append('|').append(batch.lastFrom).append('|').append(batch.lastTitle);
+            sendResponse(transport, to.getAddress(), to.getPort(), sb.toString());
+        }
+    }
+
+    // LIST <user> [<offset> <limit>] pages back from the newest mail; LIST <user> SINCE <id> [<limit>] returns
+    // mails newer than id, oldest first. Replies end with "CURSOR next=<arg for next page or -> last=<newest id>
+    // total=<count>" and are cut short so they always fit in one client datagram.
+    private static void handleList(String payload, Reply reply) {
+        String[] toks = payload.trim().split("\\s+");
+        String username = toks[0];
+        if (username.isEmpty()) {
+            reply.error("LIST requires a username");
+            return;
+        }
+
+        boolean sinceMode = toks.length > 1 && toks[1].equalsIgnoreCase("SINCE");
+        long sinceId = -1;
+        long offset = 0;
+        long limit = LIST_DEFAULT_LIMIT;
+        try {
+            if (sinceMode) {
+                if (toks.length < 3)
+                    throw new NumberFormatException();
+                sinceId = Long.parseLong(toks[2]);
+                if (sinceId < 0)
+                    throw new NumberFormatException();
+                if (toks.length > 3)
+                    limit = Integer.parseInt(toks[3]);
+            } else if (toks.length > 1) {
+                offset = Integer.parseInt(toks[1]);
+                if (toks.length > 2)
+                    limit = Integer.parseInt(toks[2]);
+            }
+        } catch (NumberFormatException e) {
+            reply.error("LIST format is: <user> [<offset> <limit>] or <user> SINCE <id> [<limit>]");
+            return;
+        }
+        list(sessions.byUser(username, reply.from), sinceId, offset, limit, reply);
+    }
+
+    // sinceId >= 0 lists mails newer than it, oldest first; otherwise pages back from offset, newest first.
+    private static void list(SessionTable.Session session, long sinceId, long offset, long limit, Reply reply) {
+        boolean sinceMode = sinceId >= 0;
+        if (session == null) {
+            reply.error("You must be logged in to list mail.");
+            return;
+        }
+        String username = session.username;
+        if (!admission.admitUser(AdmissionControl.Kind.LIST, username)) {
+            reply.error(AdmissionControl.THROTTLED);
+            return;
+        }
+        if (offset < 0 || offset > Integer.MAX_VALUE || limit <= 0) {
+            reply.error("LIST offset, id and limit must be positive");
+            return;
+        }
+        int pageLimit = (int) Math.min(limit, LIST_MAX_LIMIT);
+
+        MailboxIndex index;
+        long start = System.nanoTime();
+        try {
+            index = mailStore.index(username, session.folder);
+            indexReads.since(start);
         } catch (IOException e) {
-            System.err.println("Failed to save mail file for " + recipient);
-            e.printStackTrace();
-            sendResponse(socket, senderAddr, senderPort, "ERROR Server failed to save mail");
+            ServerLog.error("Error loading mailbox index for " + username + ": " + e.getMessage());
+            reply.error("Server failed to read mailbox");
             return;
         }
+        int total = index.size();
+        long lastId = index.lastId();
+        List<MailboxIndex.Entry> page = sinceMode ? index.since(sinceId, pageLimit)
+                : index.newest((int) offset, pageLimit);
 
-        ClientInfo recipientInfo = onlineUsers.get(recipient);
-        if (recipientInfo != null) {
-            String notification = "NEW_MAIL|" + fromUser + "|" + title + "|" + content;
-            sendResponse(socket, recipientInfo.address, recipientInfo.port, notification);
+        // Budgeted against the text form, which is never smaller than the binary one.
+        int budget = MAX_DATAGRAM_SIZE - 128 - "OK Your mails:\n\n".length();
+        int sent = 0;
+        long maxSentId = sinceId;
+        for (MailboxIndex.Entry entry : page) {
+            budget -= listLineLength(entry);
+            if (budget < 0 && sent > 0)
+                break;
+            sent++;
+            maxSentId = Math.max(maxSentId, entry.id);
         }
 
-        sendResponse(socket, senderAddr, senderPort, "OK Mail sent successfully to " + recipient);
+        long next;
+        if (sinceMode) {
+            next = maxSentId < lastId ? maxSentId : -1;
+        } else {
+            next = offset + sent < total ? offset + sent : -1;
+        }
+        reply.list(page.subList(0, sent), sinceMode, next, lastId, total);
     }
 
-    private static void handleList(String username, InetAddress addr, int port, DatagramSocket socket) {
-        username = username.trim();
-        if (username.isEmpty()) {
-            sendResponse(socket, addr, port, "ERROR LIST requires a username");
+    // SEARCH <user> [BEFORE <id>] <query> lists the mails matching every word of the query, newest first. A word
+    // matches the sender, title or body; from:<user>, title:<word> and body:<word> pick one field. The reply ends
+    // with "CURSOR next=<id to pass as BEFORE for older matches or -> total=<matches>".
+    private static void handleSearch(String payload, Reply reply) {
+        String[] toks = payload.trim().split("\\s+", 4);
+        long beforeId = -1;
+        int queryAt = 1;
+        try {
+            if (toks.length > 2 && toks[1].equalsIgnoreCase("BEFORE")) {
+                beforeId = Long.parseLong(toks[2]);
+                queryAt = 3;
+            }
+        } catch (NumberFormatException e) {
+            queryAt = toks.length;
+        }
+        if (toks[0].isEmpty() || toks.length <= queryAt) {
+            reply.error("SEARCH format is: <user> [BEFORE <id>] <words>");
             return;
         }
+        String query = String.join(" ", Arrays.copyOfRange(toks, queryAt, toks.length));
+        search(sessions.byUser(toks[0], reply.from), query, beforeId, LIST_DEFAULT_LIMIT, reply);
+    }
 
-        File userInbox = new File(MAILBOXES_DIR + File.separator + username + File.separator + "inbox");
-        if (!userInbox.exists() || !userInbox.isDirectory()) {
-            sendResponse(socket, addr, port, "OK No mails found.");
+    // beforeId > 0 continues with matches older than it.
+    private static void search(SessionTable.Session session, String query, long beforeId, long limit,
+            Reply reply) {
+        if (session == null) {
+            reply.error("You must be logged in to search mail.");
             return;
         }
+        String username = session.username;
+        if (!admission.admitUser(AdmissionControl.Kind.LIST, username)) {
+            reply.error(AdmissionControl.THROTTLED);
+            return;
+        }
+        if (limit <= 0) {
+            reply.error("SEARCH limit must be positive");
+            return;
+        }
+        int pageLimit = (int) Math.min(limit, LIST_MAX_LIMIT);
 
-        File[] mailFiles = userInbox.listFiles((dir, name) -> name.endsWith(".txt"));
-        if (mailFiles == null || mailFiles.length == 0) {
-            sendResponse(socket, addr, port, "OK No mails found.");
+        MailboxIndex index;
+        long[] ids;
+        String folder = session.folder;
+        try {
+            long start = System.nanoTime();
+            index = mailStore.index(username, folder);
+            indexReads.since(start);
+            ids = search.search(username, folder, index, query);
+        } catch (IllegalArgumentException e) {
+            reply.error(e.getMessage());
+            return;
+        } catch (IOException e) {
+            ServerLog.error("Error searching mailbox of " + username + ": " + e.getMessage());
+            reply.error("Server failed to search mailbox");
             return;
         }
 
-        Arrays.sort(mailFiles, (f1, f2) -> f2.getName().compareTo(f1.getName()));
+        // Matches of mails that are gone from the mailbox are skipped, and do not count toward the total.
+        int budget = MAX_DATAGRAM_SIZE - 128 - "OK Search results:\n\n".length();
+        List<MailboxIndex.Entry> page = new ArrayList<>();
+        int total = 0;
+        long next = -1;
+        for (int i = ids.length - 1; i >= 0; i--) {
+            MailboxIndex.Entry entry = index.find(ids[i]);
+            if (entry == null)
+                continue;
+            total++;
+            if (next >= 0 || (beforeId > 0 && entry.id >= beforeId))
+                continue;
+            budget -= listLineLength(entry);
+            if (page.size() == pageLimit || (budget < 0 && !page.isEmpty()))
+                next = page.get(page.size() - 1).id;
+            else
+                page.add(entry);
+        }
+        reply.searchResults(page, next, total);
+    }
 
-        StringBuilder sb = new StringBuilder("OK Your mails:\n\n");
-        for (File mailFile : mailFiles) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(mailFile))) {
-                String from = "N/A", title = "N/A", date = "N/A";
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.startsWith("from: "))
-                        from = line.substring(6);
-                    if (line.startsWith("title: "))
-                        title = line.substring(7);
-                    if (line.startsWith("date: "))
-                        date = line.substring(6);
-                    if (line.trim().isEmpty())
-                        break;
-                }
-                sb.append(String.format("Time: %s | From: %s | Title: %s\n---\n", date, from, title));
-            } catch (IOException e) {
-                System.err.println("Error reading mail file: " + mailFile.getName());
-            }
+    // SYNC <user> <last id> <mail count> <check> brings a client's copy of the mailbox up to date. The client names
+    // the newest mail it holds, how many it holds, and MailProtocol.headerCheck of that newest mail. The reply
+    // lists the newer mails, oldest first, like LIST SINCE, and ends with "CURSOR next=<id or -> last=<newest id>
+    // total=<count> reset=<0|1> removed=<id ranges or ->". removed names the ids up to the client's last id that
+    // are gone; reset=1 means the client's copy cannot be patched and the reply starts from the first mail.
+    private static void handleSync(String payload, Reply reply) {
+        String[] toks = payload.trim().split("\\s+");
+        long[] known = new long[3];
+        try {
+            if (toks.length != 4)
+                throw new NumberFormatException();
+            for (int i = 0; i < 3; i++)
+                known[i] = Long.parseLong(toks[i + 1]);
+        } catch (NumberFormatException e) {
+            reply.error("SYNC format is: <user> <lastId> <count> <check>");
+            return;
         }
-        sendResponse(socket, addr, port, sb.toString());
+        sync(sessions.byUser(toks[0], reply.from), known[0], known[1], known[2], LIST_MAX_LIMIT, reply);
     }
 
-    private static boolean userExists(String username) {
-        File userFile = new File(USERS_DIR, username + ".txt");
-        return userFile.exists();
+    private static void sync(SessionTable.Session session, long knownLastId, long knownCount, long check,
+            long limit, Reply reply) {
+        if (session == null) {
+            reply.error("You must be logged in to sync mail.");
+            return;
+        }
+        String username = session.username;
+        if (!admission.admitUser(AdmissionControl.Kind.LIST, username)) {
+            reply.error(AdmissionControl.THROTTLED);
+            return;
+        }
+        if (knownLastId < 0 || knownCount < 0 || limit <= 0) {
+            reply.error("SYNC id, count and limit must be positive");
+            return;
+        }
+
+        MailboxIndex index;
+        long start = System.nanoTime();
+        try {
+            index = mailStore.index(username, session.folder);
+            indexReads.since(start);
+        } catch (IOException e) {
+            ServerLog.error("Error loading mailbox index for " + username + ": " + e.getMessage());
+            reply.error("Server failed to read mailbox");
+            return;
+        }
+
+        // A client ahead of the mailbox, or whose newest mail is now another mail, holds a copy of an index that
+        // was rebuilt; so does one with more gaps to fill than fit in a reply. They all start over.
+        List<long[]> removed = Collections.emptyList();
+        boolean reset = knownLastId > index.lastId();
+        MailboxIndex.Entry newest = reset ? null : index.find(knownLastId);
+        if (newest != null && MailProtocol.headerCheck(newest.id, newest.date, newest.from, newest.title) != check)
+            reset = true;
+        if (!reset && knownLastId > 0 && index.countUpTo(knownLastId) != knownCount) {
+            removed = index.missingUpTo(knownLastId, SYNC_MAX_RANGES);
+            reset = removed == null;
+        }
+        if (reset) {
+            removed = Collections.emptyList();
+            knownLastId = 0;
+        }
+
+        int budget = MAX_DATAGRAM_SIZE - 192 - "OK Sync:\n\n".length() - removed.size() * 42;
+        List<MailboxIndex.Entry> page = index.since(knownLastId, (int) Math.min(limit, LIST_MAX_LIMIT));
+        int sent = 0;
+        long maxSentId = knownLastId;
+        for (MailboxIndex.Entry entry : page) {
+            budget -= listLineLength(entry);
+            if (budget < 0 && sent > 0)
+                break;
+            sent++;
+            maxSentId = entry.id;
+        }
+        long lastId = index.lastId();
+        reply.syncDelta(reset, removed, page.subList(0, sent), maxSentId < lastId ? maxSentId : -1, lastId,
+                index.size());
     }
 
-    private static boolean checkCredentials(String username, String password) {
-        File userFile = new File(USERS_DIR, username + ".txt");
-        if (!userFile.exists())
-            return false;
+    // UTF-8 length of "[<id>] Time: <date> | From: <from> | Title: <title>\n---\n".
+    private static int listLineLength(MailboxIndex.Entry entry) {
+        return 33 + Long.toString(entry.id).length() + utf8Length(entry.date) + utf8Length(entry.from)
+                + utf8Length(entry.title);
+    }
 
-        String hashedPassword = hashPassword(password);
-        if (hashedPassword == null)
-            return false;
+    // READ <user> <id> replies "OK READ <id> <bytes> <chunks>" with the headers, then sends the body as <chunks>
+    // datagrams "CHUNK <id> <n>/<chunks>\n<raw UTF-8 bytes>" copied straight from the store's buffer.
+    private static void handleRead(String payload, Reply reply) {
+        String[] toks = payload.trim().split("\\s+");
+        if (toks.length < 2) {
+            reply.error("READ format is: <user> <messageId>");
+            return;
+        }
+        long id;
+        try {
+            id = Long.parseLong(toks[1]);
+        } catch (NumberFormatException e) {
+            reply.error("READ format is: <user> <messageId>");
+            return;
+        }
+        read(sessions.byUser(toks[0], reply.from), id, reply);
+    }
+
+    private static void read(SessionTable.Session session, long id, Reply reply) {
+        if (session == null) {
+            reply.error("You must be logged in to read mail.");
+            return;
+        }
+        String username = session.username;
+        if (!admission.admitUser(AdmissionControl.Kind.LIST, username)) {
+            reply.error(AdmissionControl.THROTTLED);
+            return;
+        }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(userFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("password: ")) {
-                    String storedHash = line.substring(10);
-                    return storedHash.equals(hashedPassword);
-                }
+        MailboxIndex.Entry entry;
+        ByteBuffer body;
+        String folder = session.folder;
+        try {
+            long start = System.nanoTime();
+            entry = mailStore.index(username, folder).find(id);
+            indexReads.since(start);
+            if (entry == null) {
+                reply.error("Mail " + id + " not found");
+                return;
             }
+            start = System.nanoTime();
+            body = mailStore.readBody(username, folder, entry);
+            bodyReads.since(start);
         } catch (IOException e) {
-            System.err.println("Error reading user file for credential check: " + username);
+            ServerLog.error("Error reading mail " + id + " of " + username + ": " + e.getMessage());
+            reply.error("Server failed to read mail");
+            return;
+        }
+
+        int length = body.remaining();
+        int chunks = Math.max(1, (length + READ_CHUNK_BYTES - 1) / READ_CHUNK_BYTES);
+        reply.mailHeader(entry, length, chunks);
+        for (int i = 0; i < chunks; i++) {
+            ByteBuffer chunk = body.duplicate();
+            chunk.position(i * READ_CHUNK_BYTES);
+            chunk.limit(Math.min(length, (i + 1) * READ_CHUNK_BYTES));
+            reply.chunk(id, i + 1, chunks, chunk);
         }
-        return false;
     }
 
-    private static String hashPassword(String password) {
+    // SELECT <user> <folder> makes LIST, READ, SEARCH, SYNC, DELETE and MOVE act on another folder of the mailbox
+    // until the next SELECT or LOGIN. The reply gives the folder's mail count and names every folder there is.
+    private static void handleSelect(String payload, Reply reply) {
+        String[] toks = payload.trim().split("\\s+");
+        if (toks.length != 2) {
+            reply.error("SELECT format is: <user> <folder>");
+            return;
+        }
+        select(sessions.byUser(toks[0], reply.from), toks[1], reply);
+    }
+
+    private static void select(SessionTable.Session session, String folder, Reply reply) {
+        if (session == null) {
+            reply.error("You must be logged in to select a folder.");
+            return;
+        }
+        String username = session.username;
+        if (!admission.admitUser(AdmissionControl.Kind.LIST, username)) {
+            reply.error(AdmissionControl.THROTTLED);
+            return;
+        }
+        List<String> folders = mailStore.folders(username);
+        if (!folders.contains(folder)) {
+            reply.error("Folder '" + folder + "' does not exist");
+            return;
+        }
+        int total;
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hashedBytes = md.digest(password.getBytes(StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hashedBytes) {
-                sb.append(String.format("%02x", b));
+            long start = System.nanoTime();
+            total = mailStore.index(username, folder).size();
+            indexReads.since(start);
+        } catch (IOException e) {
+            ServerLog.error("Error loading mailbox index for " + username + ": " + e.getMessage());
+            reply.error("Server failed to read mailbox");
+            return;
+        }
+        session.folder = folder;
+        reply.ok("Selected " + folder + " (" + total + " mails); folders: " + String.join(", ", folders));
+    }
+
+    // DELETE <user> <id>[,<id>...] removes mails from the selected folder for good. Their ids are never handed out
+    // again, and SYNC reports them as removed.
+    private static void handleDelete(String payload, Reply reply) {
+        String[] toks = payload.trim().split("\\s+");
+        List<Long> ids = toks.length == 2 ? parseIds(toks[1]) : null;
+        if (ids == null) {
+            reply.error("DELETE format is: <user> <id>[,<id>...]");
+            return;
+        }
+        delete(sessions.byUser(toks[0], reply.from), ids, reply);
+    }
+
+    private static void delete(SessionTable.Session session, List<Long> ids, Reply reply) {
+        if (session == null) {
+            reply.error("You must be logged in to delete mail.");
+            return;
+        }
+        String username = session.username;
+        if (!admission.admitUser(AdmissionControl.Kind.SEND, username)) {
+            reply.error(AdmissionControl.THROTTLED);
+            return;
+        }
+        if (ids.isEmpty() || ids.size() > MAX_IDS) {
+            reply.error("DELETE takes 1 to " + MAX_IDS + " ids");
+            return;
+        }
+        String folder = session.folder;
+        List<MailboxIndex.Entry> removed;
+        try {
+            removed = mailStore.expunge(username, folder, ids);
+        } catch (IOException e) {
+            ServerLog.error("Error deleting mail of " + username + ": " + e.getMessage());
+            reply.error("Server failed to delete mail");
+            return;
+        }
+        mailsDeleted.add(removed.size());
+        janitor.recount(username);
+        if (removed.isEmpty())
+            reply.error(ids.size() == 1 ? "Mail " + ids.get(0) + " not found" : "None of the mails were found");
+        else
+            reply.ok("Deleted " + removed.size() + " mail(s) from " + folder);
+    }
+
+    // MOVE <user> <id>[,<id>...] <folder> moves mails from the selected folder to another one, which is created if
+    // need be. The mails get new ids there, which the reply lists.
+    private static void handleMove(String payload, Reply reply) {
+        String[] toks = payload.trim().split("\\s+");
+        List<Long> ids = toks.length == 3 ? parseIds(toks[1]) : null;
+        if (ids == null) {
+            reply.error("MOVE format is: <user> <id>[,<id>...] <folder>");
+            return;
+        }
+        move(sessions.byUser(toks[0], reply.from), ids, toks[2], reply);
+    }
+
+    private static void move(SessionTable.Session session, List<Long> ids, String target, Reply reply) {
+        if (session == null) {
+            reply.error("You must be logged in to move mail.");
+            return;
+        }
+        String username = session.username;
+        if (!admission.admitUser(AdmissionControl.Kind.SEND, username)) {
+            reply.error(AdmissionControl.THROTTLED);
+            return;
+        }
+        if (ids.isEmpty() || ids.size() > MAX_IDS) {
+            reply.error("MOVE takes 1 to " + MAX_IDS + " ids");
+            return;
+        }
+        if (!MailStore.isFolderName(target)) {
+            reply.error("A folder name is 1 to 32 of a-z, 0-9, '-' and '_'");
+            return;
+        }
+        if (MailStore.INBOX.equals(target)) {
+            // Inbox ids belong to the delivery log, which may have reserved the next ones for mail in flight.
+            reply.error("Mail cannot be moved into the inbox");
+            return;
+        }
+        String folder = session.folder;
+        if (target.equals(folder)) {
+            reply.error("The mails are already in " + target);
+            return;
+        }
+        List<MailboxIndex.Entry> moved;
+        try {
+            moved = mailStore.move(username, folder, ids, target);
+        } catch (IOException e) {
+            ServerLog.error("Error moving mail of " + username + " to " + target + ": " + e.getMessage());
+            reply.error("Server failed to move mail");
+            return;
+        }
+        mailsMoved.add(moved.size());
+        if (moved.isEmpty()) {
+            reply.error(ids.size() == 1 ? "Mail " + ids.get(0) + " not found" : "None of the mails were found");
+            return;
+        }
+        StringBuilder newIds = new StringBuilder();
+        for (MailboxIndex.Entry entry : moved)
+            newIds.append(newIds.length() == 0 ? "" : ",").append(entry.id);
+        reply.ok("Moved " + moved.size() + " mail(s) to " + target + " as " + newIds);
+    }
+
+    // "<id>[,<id>...]" with every id positive; null if it is anything else.
+    private static List<Long> parseIds(String list) {
+        List<Long> ids = new ArrayList<>();
+        try {
+            for (String id : list.split(",")) {
+                long value = Long.parseLong(id.trim());
+                if (value <= 0)
+                    return null;
+                ids.add(value);
             }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        } catch (NumberFormatException e) {
             return null;
         }
+        return ids;
+    }
+
+    private static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else
+                length += 3;
+        }
+        return length;
+    }
+
+    private static boolean userExists(String username) {
+        return users.exists(username);
     }
 
     private static void ensureServerDirectoriesExist() {
@@ -315,22 +1392,76 @@ public class MailServer {
         if (!dataDir.exists())
             dataDir.mkdirs();
 
-        File usersDir = new File(USERS_DIR);
-        if (!usersDir.exists())
-            usersDir.mkdirs();
+        for (ShardRing.Shard shard : shards.shards()) {
+            File usersDir = shard.usersDir();
+            if (!usersDir.exists())
+                usersDir.mkdirs();
+
+            File mailboxesDir = shard.mailboxesDir();
+            if (!mailboxesDir.exists())
+                mailboxesDir.mkdirs();
+        }
+    }
+
+    private static void sendResponse(MailTransport transport, InetAddress addr, int port, String text) {
+        sendResponse(transport, addr, port, text, null);
+    }
 
-        File mailboxesDir = new File(MAILBOXES_DIR);
-        if (!mailboxesDir.exists())
-            mailboxesDir.mkdirs();
+    // Sends text followed by the raw bytes of payload (if any) as one datagram.
+    private static void sendResponse(MailTransport transport, InetAddress addr, int port, String text,
+            ByteBuffer payload) {
+        InetSocketAddress target = new InetSocketAddress(addr, port);
+        if (reliable.knowsPeer(target)) {
+            byte[] head = text.getBytes(StandardCharsets.UTF_8);
+            byte[] message = new byte[head.length + (payload == null ? 0 : payload.remaining())];
+            System.arraycopy(head, 0, message, 0, head.length);
+            if (payload != null)
+                payload.duplicate().get(message, head.length, payload.remaining());
+            sendReliable(target, message);
+            return;
+        }
+        try {
+            ByteBuffer out = RESPONSE_BUFFER.get();
+            out.clear();
+            CharsetEncoder encoder = RESPONSE_ENCODER.get().reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(text), out, true);
+            if (!result.isOverflow())
+                result = encoder.flush(out);
+            if (result.isOverflow() || (payload != null && payload.remaining() > out.remaining())) {
+                byte[] head = text.getBytes(StandardCharsets.UTF_8);
+                out = ByteBuffer.allocate(head.length + (payload == null ? 0 : payload.remaining()));
+                out.put(head);
+            }
+            if (payload != null)
+                out.put(payload.duplicate());
+            out.flip();
+            transport.send(target, out);
+        } catch (IOException e) {
+            ServerLog.warn("Failed to send response to " + addr + ":" + port);
+        }
     }
 
-    private static void sendResponse(DatagramSocket socket, InetAddress addr, int port, String text) {
+    // Sends an encoded binary frame, through the reliable layer when the peer uses it.
+    private static void sendFrame(MailTransport transport, InetAddress addr, int port, ByteBuffer frame) {
+        InetSocketAddress target = new InetSocketAddress(addr, port);
+        if (reliable.knowsPeer(target)) {
+            byte[] message = new byte[frame.remaining()];
+            frame.get(message);
+            sendReliable(target, message);
+            return;
+        }
         try {
-            byte[] data = text.getBytes(StandardCharsets.UTF_8);
-            DatagramPacket resp = new DatagramPacket(data, data.length, addr, port);
-            socket.send(resp);
+            transport.send(target, frame);
         } catch (IOException e) {
-            System.err.println("Failed to send response to " + addr + ":" + port);
+            ServerLog.warn("Failed to send response to " + addr + ":" + port);
         }
     }
-}
\ No newline at end of file
+
+    private static void sendReliable(InetSocketAddress target, byte[] message) {
+        reliable.send(target, message).whenComplete((ok, error) -> {
+            if (error != null)
+                ServerLog.warn("Failed to deliver response to " + target.getAddress() + ":" + target.getPort()
+                        + ": " + error.getMessage());
+        });
+    }
+}
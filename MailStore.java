@@ -0,0 +1,185 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+// Storage engine behind SEND and LIST. Every engine keeps a MailboxIndex of headers per mailbox folder. New mail
+// lands in the inbox, which lives in the mailbox directory itself; any other folder is laid out the same way in
+// <mailbox>/folders/<name>, with ids of its own.
+public interface MailStore {
+    String INBOX = "inbox";
+    String FOLDERS_DIR = "folders";
+
+    // Paces background work by the bytes it is about to read or write.
+    interface Throttle {
+        void pace(long bytes) throws IOException;
+    }
+
+    Throttle UNTHROTTLED = bytes -> {
+    };
+
+    default MailboxIndex.Entry deliver(String recipient, String from, String date, String title, String content)
+            throws IOException {
+        return deliver(recipient, 0, from, date, title, content);
+    }
+
+    // Files a new mail in the inbox under the given id, the one the delivery log recorded for it, or under the
+    // next free id when it is 0. An inbox that has already handed out that id throws instead of filing the mail
+    // under another one, since recovery takes a logged id at or below the inbox's last id as already stored.
+    MailboxIndex.Entry deliver(String recipient, long id, String from, String date, String title, String content)
+            throws IOException;
+
+    // Stores the body of a multi-recipient mail once, holding the given number of references, and returns the
+    // key that deliverShared takes.
+    String shareBody(String content, int references) throws IOException;
+
+    // Takes one more reference to a shared body, for a mailbox about to point at it.
+    void retainBody(String bodyKey) throws IOException;
+
+    // Drops a reference no mailbox holds; the body is removed with its last one.
+    void releaseBody(String bodyKey) throws IOException;
+
+    default MailboxIndex.Entry deliverShared(String recipient, String from, String date, String title,
+            String bodyKey) throws IOException {
+        return deliverShared(recipient, 0, from, date, title, bodyKey);
+    }
+
+    // Like deliver, but the mailbox only points at a body stored with shareBody.
+    MailboxIndex.Entry deliverShared(String recipient, long id, String from, String date, String title,
+            String bodyKey) throws IOException;
+
+    default MailboxIndex index(String username) throws IOException {
+        return index(username, INBOX);
+    }
+
+    MailboxIndex index(String username, String folder) throws IOException;
+
+    // The directory holding a user's mailbox, where derived data such as the search index is kept with it.
+    File mailboxDir(String username);
+
+    // The directory of one folder of a mailbox; the inbox is the mailbox directory.
+    default File folderDir(String username, String folder) {
+        File mailbox = mailboxDir(username);
+        return INBOX.equals(folder) ? mailbox : new File(mailbox, FOLDERS_DIR + File.separator + folder);
+    }
+
+    // The file a folder's MailboxIndex is kept in. Every delivery, removal and move appends to it or rewrites it.
+    File indexFile(String username, String folder);
+
+    // When any folder of the mailbox last changed, going by its index files; 0 for a mailbox without mail.
+    default long lastModified(String username) {
+        long newest = 0;
+        for (String folder : folders(username))
+            newest = Math.max(newest, indexFile(username, folder).lastModified());
+        return newest;
+    }
+
+    // The inbox and every folder that has been created, inbox first.
+    default List<String> folders(String username) {
+        List<String> folders = new ArrayList<>();
+        folders.add(INBOX);
+        String[] names = new File(mailboxDir(username), FOLDERS_DIR).list((dir, name) -> isFolderName(name)
+                && new File(dir, name).isDirectory());
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names)
+                if (!name.equals(INBOX))
+                    folders.add(name);
+        }
+        return folders;
+    }
+
+    // The UTF-8 body of a mail as a read-only buffer, without decoding it into a String.
+    default ByteBuffer readBody(String username, MailboxIndex.Entry entry) throws IOException {
+        return readBody(username, INBOX, entry);
+    }
+
+    ByteBuffer readBody(String username, String folder, MailboxIndex.Entry entry) throws IOException;
+
+    // Removes mails from a folder and returns the entries that were there. Shared bodies lose their reference
+    // at once; whatever else the mails took up on disk may only come back with compact.
+    List<MailboxIndex.Entry> expunge(String username, String folder, Collection<Long> ids) throws IOException;
+
+    // Moves mails to another folder of the same mailbox, creating it if needed, and returns their entries there,
+    // under new ids. Ids not found in the source folder are skipped. The inbox is never a target: its ids are
+    // handed out by the delivery log, and a move could take one that a logged mail is waiting for.
+    List<MailboxIndex.Entry> move(String username, String folder, Collection<Long> ids, String target)
+            throws IOException;
+
+    // Reclaims the space of removed mails in every folder of a mailbox.
+    default void compact(String username) throws IOException {
+        compact(username, UNTHROTTLED);
+    }
+
+    default void compact(String username, Throttle throttle) throws IOException {
+    }
+
+    // Forgets cached indexes, open files and mappings of a mailbox, before its files are moved away.
+    default void evict(String username) {
+    }
+
+    // Forces everything delivered so far to stable storage: the mails, the index lines pointing at them and the
+    // directory entries of every file created on the way. The delivery log is cut once this returns.
+    default void sync() throws IOException {
+    }
+
+    default void close() {
+    }
+
+    static MailStore fromConfig(File mailboxesDir) {
+        return fromConfig(mailboxesDir, sharedBodies(mailboxesDir));
+    }
+
+    static MailStore fromConfig(File mailboxesDir, BodyStore bodies) {
+        String engine = System.getProperty("mail.store", "file");
+        int cachedIndexes = Integer.getInteger("mail.indexCache", 1024);
+        if ("segment".equalsIgnoreCase(engine)) {
+            return new SegmentMailStore(mailboxesDir, cachedIndexes,
+                    Long.getLong("mail.segmentBytes", SegmentMailStore.DEFAULT_SEGMENT_BYTES), bodies);
+        }
+        return new FileMailStore(mailboxesDir, cachedIndexes, bodies);
+    }
+
+    // Lower-case letters, digits, '-' and '_', so a folder name is a safe directory name on any file system.
+    static boolean isFolderName(String name) {
+        if (name == null || name.isEmpty() || name.length() > 32)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < 'a' || c > 'z') && (c < '0' || c > '9') && c != '-' && c != '_')
+                return false;
+        }
+        return true;
+    }
+
+    // Forces a file's contents; one that has been removed meanwhile needs nothing.
+    static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (NoSuchFileException ignored) {
+        }
+    }
+
+    // Forces a directory's entries, so files created or renamed into it survive a crash. Windows cannot open a
+    // directory as a channel and NTFS journals its entries itself.
+    static void forceDirectory(Path dir) throws IOException {
+        if (File.separatorChar == '\\')
+            return;
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (NoSuchFileException ignored) {
+        }
+    }
+
+    // Shared bodies live next to the mailboxes directory, so they can never be mistaken for a mailbox.
+    static BodyStore sharedBodies(File mailboxesDir) {
+        return new BodyStore(new File(mailboxesDir.getAbsoluteFile().getParentFile(), "bodies"));
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+// Imports the one-file-per-mail inboxes under server_data/mailboxes into the segment store.
+//   java MailStoreMigrator [mailboxesDir] [--delete-source] [--compact]
+public class MailStoreMigrator {
+    public static void main(String[] args) throws IOException {
+        File mailboxesDir = new File("server_data" + File.separator + "mailboxes");
+        boolean deleteSource = false;
+        boolean compact = false;
+        for (String arg : args) {
+            if (arg.equals("--delete-source"))
+                deleteSource = true;
+            else if (arg.equals("--compact"))
+                compact = true;
+            else
+                mailboxesDir = new File(arg);
+        }
+
+        SegmentMailStore store = new SegmentMailStore(mailboxesDir, 16,
+                Long.getLong("mail.segmentBytes", SegmentMailStore.DEFAULT_SEGMENT_BYTES));
+        File[] mailboxes = mailboxesDir.listFiles(File::isDirectory);
+        if (mailboxes == null) {
+            System.err.println("No mailboxes found under " + mailboxesDir);
+            return;
+        }
+        Arrays.sort(mailboxes);
+
+        int migratedUsers = 0;
+        long migratedMails = 0;
+        for (File mailbox : mailboxes) {
+            String username = mailbox.getName();
+            if (compact)
+                store.compact(username);
+
+            File inbox = new File(mailbox, "inbox");
+            File[] mailFiles = inbox.listFiles((dir, name) -> name.endsWith(".txt"));
+            if (mailFiles == null || mailFiles.length == 0)
+                continue;
+            if (store.hasSegments(username)) {
+                System.out.println("Skipping " + username + ": segment store already has data");
+                continue;
+            }
+
+            Arrays.sort(mailFiles, (f1, f2) -> f1.getName().compareTo(f2.getName()));
+            for (File mailFile : mailFiles) {
+                String[] mail = parseMailFile(mailFile);
+                if (mail[4] == null) {
+                    store.deliver(username, mail[0], mail[1], mail[2], mail[3]);
+                    continue;
+                }
+                // The mail file's reference to a shared body moves to the segment record, or is copied if the
+                // file stays.
+                if (!deleteSource)
+                    store.bodies().retain(mail[4], 1);
+                store.deliverShared(username, mail[0], mail[1], mail[2], mail[4]);
+            }
+            migratedUsers++;
+            migratedMails += mailFiles.length;
+            System.out.println("Migrated " + mailFiles.length + " mail(s) for " + username);
+
+            if (deleteSource) {
+                for (File mailFile : mailFiles)
+                    Files.delete(mailFile.toPath());
+                Files.deleteIfExists(new File(mailbox, FileMailStore.INDEX_FILE_NAME).toPath());
+            }
+        }
+        store.close();
+        System.out.println("Done: " + migratedMails + " mail(s) in " + migratedUsers + " mailbox(es)");
+    }
+
+    // Returns {from, date, title, content, shared body key or null} of a legacy mail file.
+    static String[] parseMailFile(File mailFile) throws IOException {
+        String text = new String(Files.readAllBytes(mailFile.toPath()), StandardCharsets.UTF_8);
+        String from = "N/A", date = "N/A", title = "N/A", bodyKey = null;
+        int pos = 0;
+        while (pos < text.length()) {
+            int eol = text.indexOf('\n', pos);
+            String line = eol < 0 ? text.substring(pos) : text.substring(pos, eol);
+            pos = eol < 0 ? text.length() : eol + 1;
+            if (line.endsWith("\r"))
+                line = line.substring(0, line.length() - 1);
+            if (line.trim().isEmpty())
+                break;
+            if (line.startsWith("from: "))
+                from = line.substring(6);
+            else if (line.startsWith("date: "))
+                date = line.substring(6);
+            else if (line.startsWith("title: "))
+                title = line.substring(7);
+            else if (line.startsWith("body: ") && BodyStore.isKey(line.substring(6)))
+                bodyKey = line.substring(6);
+        }
+        return new String[] { from, date, title, text.substring(pos), bodyKey };
+    }
+}
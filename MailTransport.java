@@ -0,0 +1,30 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+public interface MailTransport {
+    void send(InetSocketAddress target, ByteBuffer data) throws IOException;
+
+    static MailTransport of(DatagramSocket socket) {
+        ThreadLocal<DatagramPacket> reusable = ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+        return (target, data) -> {
+            DatagramPacket packet = reusable.get();
+            if (data.hasArray()) {
+                packet.setData(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] copy = new byte[data.remaining()];
+                data.get(copy);
+                packet.setData(copy);
+            }
+            packet.setSocketAddress(target);
+            socket.send(packet);
+        };
+    }
+
+    static MailTransport of(DatagramChannel channel) {
+        return (target, data) -> channel.send(data, target);
+    }
+}
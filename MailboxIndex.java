@@ -0,0 +1,405 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Append-only header index of one mailbox folder, so LIST never has to open the mail files themselves. A
+// removed mail is a "-\t<id>" line; the file is rewritten once removals outnumber the mails left. Ids are never
+// handed out twice: a rebuild numbers new entries after the highest id the old file ever held.
+public class MailboxIndex {
+    public static class Entry {
+        public final long id;
+        public final String location;
+        public final String date;
+        public final String from;
+        public final String title;
+
+        public Entry(long id, String location, String date, String from, String title) {
+            this.id = id;
+            this.location = location;
+            this.date = date;
+            this.from = from;
+            this.title = title;
+        }
+    }
+
+    // Where the mails behind an index really live, used to detect a stale index and to rebuild it.
+    public interface Source {
+        long lastModified();
+
+        // Adds one entry per stored mail. Entries with id 0 are numbered in the order they are added.
+        void scan(List<Entry> out) throws IOException;
+    }
+
+    private static final String MAGIC = "MAILIDX 1";
+    private static final int REWRITE_REMOVALS = 1000;
+
+    private final Path indexFile;
+    private final Source source;
+    private final List<Entry> entries = new ArrayList<>();
+    private long lastId;
+    private int removedLines;
+
+    private MailboxIndex(Path indexFile, Source source) {
+        this.indexFile = indexFile;
+        this.source = source;
+    }
+
+    // Loads the index of a mailbox, rebuilding it from its source if it is missing, corrupt or stale.
+    public static MailboxIndex open(Path indexFile, Source source) throws IOException {
+        MailboxIndex index = new MailboxIndex(indexFile, source);
+        if (!index.tryLoad()) {
+            index.rebuild();
+        }
+        return index;
+    }
+
+    // Index over a classic inbox directory holding one .txt file per mail.
+    public static Source inboxDirectory(File inboxDir) {
+        return new Source() {
+            @Override
+            public long lastModified() {
+                return inboxDir.lastModified();
+            }
+
+            @Override
+            public void scan(List<Entry> out) {
+                File[] mailFiles = inboxDir.listFiles((dir, name) -> name.endsWith(".txt"));
+                if (mailFiles == null)
+                    return;
+                Arrays.sort(mailFiles, (f1, f2) -> f1.getName().compareTo(f2.getName()));
+                for (File mailFile : mailFiles) {
+                    String[] header = readHeader(mailFile);
+                    if (header != null)
+                        out.add(new Entry(0, mailFile.getName(), header[0], header[1], header[2]));
+                }
+            }
+        };
+    }
+
+    public synchronized Entry append(String location, String date, String from, String title) throws IOException {
+        return append(new Entry(lastId + 1, location, date, from, title));
+    }
+
+    // Appends an entry whose id was assigned by the caller; ids must keep increasing.
+    public synchronized Entry append(Entry entry) throws IOException {
+        if (entry.id <= lastId)
+            throw new IllegalArgumentException("Message id " + entry.id + " is not after " + lastId);
+        Files.createDirectories(indexFile.getParent());
+        boolean fresh = !Files.exists(indexFile);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(indexFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8))) {
+            if (fresh)
+                writer.write(MAGIC + "\n");
+            writer.write(encode(entry));
+        }
+        entries.add(entry);
+        lastId = entry.id;
+        return entry;
+    }
+
+    // Drops the entries with the given ids and returns the ones that were there. Their ids stay used.
+    public synchronized List<Entry> remove(Collection<Long> ids) throws IOException {
+        Set<Long> wanted = new HashSet<>(ids);
+        List<Entry> removed = new ArrayList<>();
+        for (Entry entry : entries)
+            if (wanted.contains(entry.id))
+                removed.add(entry);
+        if (removed.isEmpty())
+            return removed;
+        entries.removeIf(entry -> wanted.contains(entry.id));
+        removedLines += removed.size();
+        if (removedLines > REWRITE_REMOVALS && removedLines > entries.size()) {
+            write();
+            return removed;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Entry entry : removed)
+            lines.append("-\t").append(entry.id).append('\n');
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(indexFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8))) {
+            writer.write(lines.toString());
+        }
+        return removed;
+    }
+
+    // Up to limit entries whose date sorts before the given one, oldest id first. Dates are all written as
+    // yyyy-MM-dd HH:mm:ss, so comparing the strings compares the times; a mail moved between folders keeps its
+    // date and may be out of id order, so every entry is looked at.
+    public synchronized List<Entry> datedBefore(String date, int limit) {
+        List<Entry> old = new ArrayList<>();
+        for (int i = 0; i < entries.size() && old.size() < limit; i++)
+            if (entries.get(i).date.compareTo(date) < 0)
+                old.add(entries.get(i));
+        return old;
+    }
+
+    // Entries in delivery order, oldest first.
+    public synchronized List<Entry> entries() {
+        return Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    // Up to limit entries starting offset mails back from the newest one, newest first.
+    public synchronized List<Entry> newest(int offset, int limit) {
+        List<Entry> page = new ArrayList<>(Math.max(0, Math.min(limit, entries.size() - offset)));
+        for (int i = entries.size() - 1 - offset; i >= 0 && page.size() < limit; i--)
+            page.add(entries.get(i));
+        return page;
+    }
+
+    // Up to limit entries with an id greater than sinceId, oldest first.
+    public synchronized List<Entry> since(long sinceId, int limit) {
+        int lo = countUpTo(sinceId);
+        return new ArrayList<>(entries.subList(lo, lo + Math.min(entries.size() - lo, Math.max(0, limit))));
+    }
+
+    // Number of entries with an id up to maxId.
+    public synchronized int countUpTo(long maxId) {
+        int lo = 0, hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries.get(mid).id <= maxId)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // The ids from 1 to maxId without an entry, as {first, last} ranges; null if there are more than maxRanges.
+    public synchronized List<long[]> missingUpTo(long maxId, int maxRanges) {
+        List<long[]> missing = new ArrayList<>();
+        long expected = 1;
+        for (int i = 0, n = countUpTo(maxId); i <= n; i++) {
+            long id = i < n ? entries.get(i).id : maxId + 1;
+            if (id > expected) {
+                if (missing.size() == maxRanges)
+                    return null;
+                missing.add(new long[] { expected, id - 1 });
+            }
+            expected = id + 1;
+        }
+        return missing;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long lastId() {
+        return lastId;
+    }
+
+    public synchronized long nextId() {
+        return lastId + 1;
+    }
+
+    public synchronized Entry find(long id) {
+        int lo = 0, hi = entries.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = entries.get(mid).id;
+            if (midId < id)
+                lo = mid + 1;
+            else if (midId > id)
+                hi = mid - 1;
+            else
+                return entries.get(mid);
+        }
+        return null;
+    }
+
+    private boolean tryLoad() {
+        if (!Files.isRegularFile(indexFile))
+            return false;
+        if (source.lastModified() > indexFile.toFile().lastModified())
+            return false;
+        try {
+            String text = new String(Files.readAllBytes(indexFile), StandardCharsets.UTF_8);
+            if (!text.startsWith(MAGIC + "\n") || !text.endsWith("\n"))
+                return false;
+            String[] lines = text.split("\n");
+            for (int i = 1; i < lines.length; i++) {
+                if (lines[i].startsWith("-\t")) {
+                    long id = Long.parseLong(lines[i].substring(2));
+                    Entry entry = find(id);
+                    if (entry != null)
+                        entries.remove(entry);
+                    lastId = Math.max(lastId, id);
+                    removedLines++;
+                    continue;
+                }
+                Entry entry = decode(lines[i]);
+                if (entry == null || entry.id <= lastId)
+                    return false;
+                entries.add(entry);
+                lastId = entry.id;
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        } catch (IOException e) {
+            ServerLog.warn("Error reading mailbox index " + indexFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void rebuild() throws IOException {
+        long floor = previousLastId();
+        entries.clear();
+        lastId = 0;
+        List<Entry> scanned = new ArrayList<>();
+        source.scan(scanned);
+        for (Entry entry : scanned) {
+            if (entry.id == 0)
+                entry = new Entry(Math.max(lastId, floor) + 1, entry.location, entry.date, entry.from, entry.title);
+            else if (entry.id <= lastId)
+                continue;
+            entries.add(entry);
+            lastId = entry.id;
+        }
+        lastId = Math.max(lastId, floor);
+        if (entries.isEmpty() && !Files.exists(indexFile))
+            return;
+        write();
+        ServerLog.info("Rebuilt mailbox index " + indexFile + " (" + entries.size() + " mail(s))");
+    }
+
+    // The highest id a stale or damaged index file still shows, so a rebuild does not hand it out again.
+    private long previousLastId() {
+        long highest = 0;
+        try {
+            if (!Files.isRegularFile(indexFile))
+                return 0;
+            for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                int start = line.startsWith("-\t") ? 2 : 0;
+                int end = line.indexOf('\t', start);
+                try {
+                    highest = Math.max(highest, Long.parseLong(end < 0 ? line.substring(start)
+                            : line.substring(start, end)));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } catch (IOException e) {
+            ServerLog.warn("Error reading mailbox index " + indexFile + ": " + e.getMessage());
+        }
+        return highest;
+    }
+
+    // Replaces the file with the current entries, keeping lastId when the newest mails are gone.
+    private void write() throws IOException {
+        Files.createDirectories(indexFile.getParent());
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(MAGIC + "\n");
+            for (Entry entry : entries)
+                writer.write(encode(entry));
+            if (lastId > 0 && (entries.isEmpty() || entries.get(entries.size() - 1).id < lastId))
+                writer.write("-\t" + lastId + "\n");
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        removedLines = 0;
+    }
+
+    // Returns {date, from, title} from the header block of a mail file.
+    static String[] readHeader(File mailFile) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(mailFile, StandardCharsets.UTF_8))) {
+            String from = "N/A", title = "N/A", date = "N/A";
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("from: "))
+                    from = line.substring(6);
+                if (line.startsWith("title: "))
+                    title = line.substring(7);
+                if (line.startsWith("date: "))
+                    date = line.substring(6);
+                if (line.trim().isEmpty())
+                    break;
+            }
+            return new String[] { date, from, title };
+        } catch (IOException e) {
+            ServerLog.warn("Error reading mail file: " + mailFile.getName());
+            return null;
+        }
+    }
+
+    private static String encode(Entry entry) {
+        return entry.id + "\t" + escape(entry.location) + "\t" + escape(entry.date) + "\t" + escape(entry.from)
+                + "\t" + escape(entry.title) + "\n";
+    }
+
+    private static Entry decode(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 5)
+            return null;
+        try {
+            return new Entry(Long.parseLong(fields[0]), unescape(fields[1]), unescape(fields[2]),
+                    unescape(fields[3]), unescape(fields[4]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static String escape(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '\t' || c == '\n' || c == '\r') {
+                if (sb == null)
+                    sb = new StringBuilder(value.length() + 8).append(value, 0, i);
+                sb.append('\\').append(c == '\t' ? 't' : c == '\n' ? 'n' : c == '\r' ? 'r' : '\\');
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? value : sb.toString();
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0)
+            return value;
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i >= value.length())
+                throw new IllegalArgumentException("Dangling escape");
+            char e = value.charAt(i);
+            switch (e) {
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case '\\':
+                    sb.append('\\');
+                    break;
+                default:
+                    throw new IllegalArgumentException("Bad escape \\" + e);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// LRU cache of loaded mailbox indexes, one per folder of a mailbox. Loads and appends for one user are serialized
+// on a lock stripe so an evicted index and its reloaded replacement can never hand out the same message id. All
+// folders of a user share the user's stripe, so moving mail between two of them takes one lock.
+public class MailboxIndexCache {
+    public interface Loader {
+        MailboxIndex load(String username, String folder) throws IOException;
+    }
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Loader loader;
+    private final Map<String, MailboxIndex> cache;
+    private final Object[] stripes = new Object[LOCK_STRIPES];
+
+    public MailboxIndexCache(Loader loader, int maxMailboxes) {
+        this.loader = loader;
+        this.cache = new LinkedHashMap<String, MailboxIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MailboxIndex> eldest) {
+                return size() > maxMailboxes;
+            }
+        };
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            stripes[i] = new Object();
+    }
+
+    public MailboxIndex get(String username) throws IOException {
+        return get(username, MailStore.INBOX);
+    }
+
+    public MailboxIndex get(String username, String folder) throws IOException {
+        String key = key(username, folder);
+        synchronized (lockFor(username)) {
+            MailboxIndex index;
+            synchronized (cache) {
+                index = cache.get(key);
+            }
+            if (index != null)
+                return index;
+            index = loader.load(username, folder);
+            synchronized (cache) {
+                cache.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    // Drops the indexes of every folder of the user.
+    public void invalidate(String username) {
+        String prefix = username + "/";
+        synchronized (cache) {
+            cache.keySet().removeIf(key -> key.equals(username) || key.startsWith(prefix));
+        }
+    }
+
+    public void invalidate(String username, String folder) {
+        synchronized (cache) {
+            cache.remove(key(username, folder));
+        }
+    }
+
+    // Callers that write a mail and then index it hold this lock around both steps.
+    public Object lockFor(String username) {
+        return stripes[(username.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    // Usernames are directory names and cannot hold '/', so "<user>/<folder>" is unambiguous.
+    static String key(String username, String folder) {
+        return MailStore.INBOX.equals(folder) ? username : username + "/" + folder;
+    }
+}
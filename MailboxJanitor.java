@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+import java.util.stream.Stream;
+
+// Background upkeep of the mailboxes, and the byte counts mail.quota is checked against. One low-priority daemon
+// thread sweeps every mailbox each mail.janitorInterval: it removes mail older than its folder's retention,
+// compacts what removals left behind and recounts the mailbox's bytes. Its disk I/O is paced to mail.janitorRate
+// bytes per second, and it stands aside while the delivery writer has a backlog, so SEND and LIST do not wait on
+// it for the disk.
+//
+// Retention is mail.retentionDays for every folder, overridden per folder by mail.retentionDays.<folder>; 0 keeps
+// mail forever. A quota counts the files under the user's mailbox directory. A body shared by a multi-recipient
+// mail is stored once outside every mailbox and is not charged to anyone.
+public class MailboxJanitor implements Runnable, MailStore.Throttle {
+    private static final int EXPUNGE_BATCH = 500;
+    // What visiting a mailbox and removing one mail cost in paced bytes: directory listings and small writes.
+    private static final int VISIT_BYTES = 4096;
+    private static final int REMOVE_BYTES = 512;
+    // Charged per delivered mail on top of its body until the next sweep recounts: header, record and index line.
+    private static final int MAIL_OVERHEAD_BYTES = 256;
+    private static final long BUSY_PAUSE_NANOS = 50_000_000L;
+    private static final long MAX_BUSY_WAIT_NANOS = 5_000_000_000L;
+
+    private static final Metrics.Counter expired = Metrics.counter("mail_mails_removed_total",
+            "Mails removed from a mailbox folder", "reason", "retention");
+    private static final Metrics.Counter sweeps = Metrics.counter("mail_janitor_sweeps_total",
+            "Completed janitor passes over every mailbox");
+    private static final Metrics.Counter pacedBytes = Metrics.counter("mail_janitor_io_bytes_total",
+            "Bytes of disk I/O the janitor was paced for");
+    private static final Metrics.Counter failures = Metrics.counter("mail_janitor_failures_total",
+            "Mailboxes the janitor failed to clean up");
+
+    private final MailStore store;
+    private final UserDirectory users;
+    private final IntSupplier backlog;
+    private final long quotaBytes;
+    private final int retentionDays;
+    private final double bytesPerSecond;
+    private final long intervalMillis;
+    private final Map<String, Long> usage = new ConcurrentHashMap<>();
+    private long nextIoNanos;
+    private volatile boolean running;
+    private Thread thread;
+
+    public MailboxJanitor(MailStore store, UserDirectory users, IntSupplier backlog, long quotaBytes,
+            int retentionDays, double bytesPerSecond, long intervalMillis) {
+        this.store = store;
+        this.users = users;
+        this.backlog = backlog;
+        this.quotaBytes = quotaBytes;
+        this.retentionDays = retentionDays;
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMillis = Math.max(1000, intervalMillis);
+        Metrics.gauge("mail_quota_tracked_mailboxes", "Mailboxes whose size is known for quota checks",
+                usage::size);
+    }
+
+    // backlog is the number of mails waiting to be delivered; the janitor pauses while it is not 0.
+    public static MailboxJanitor fromConfig(MailStore store, UserDirectory users, IntSupplier backlog) {
+        return new MailboxJanitor(store, users, backlog, Long.getLong("mail.quota", 0),
+                Integer.getInteger("mail.retentionDays", 0), Long.getLong("mail.janitorRate", 4L * 1024 * 1024),
+                Long.getLong("mail.janitorInterval", 3_600_000L));
+    }
+
+    // Runs the sweeps unless mail.janitor=off; quotas are checked either way.
+    public synchronized void start() {
+        if (running || "off".equalsIgnoreCase(System.getProperty("mail.janitor", "on").trim()))
+            return;
+        running = true;
+        thread = new Thread(this, "mail-janitor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        ServerLog.info("Mailbox janitor started (every " + intervalMillis / 1000 + " s, " + (long) bytesPerSecond
+                + " bytes/s" + (retentionDays > 0 ? ", retention " + retentionDays + " days" : "")
+                + (quotaBytes > 0 ? ", quota " + quotaBytes + " bytes" : "") + ")");
+    }
+
+    // No interrupt: it would close whatever segment channel the janitor is writing through.
+    public void close() {
+        Thread stopping;
+        synchronized (this) {
+            running = false;
+            stopping = thread;
+            thread = null;
+        }
+        if (stopping == null)
+            return;
+        LockSupport.unpark(stopping);
+        try {
+            stopping.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // True once the user's mailbox holds mail.quota bytes. The first check after startup counts its files.
+    public boolean overQuota(String username) {
+        if (quotaBytes <= 0)
+            return false;
+        Long used = usage.get(username);
+        if (used == null) {
+            used = measure(username);
+            usage.putIfAbsent(username, used);
+        }
+        return used >= quotaBytes;
+    }
+
+    // Called by the delivery writer for every mail it stored.
+    public void stored(String recipient, MailboxIndex.Entry entry, String content) {
+        if (quotaBytes > 0)
+            usage.computeIfPresent(recipient, (user, used) -> used + MAIL_OVERHEAD_BYTES + content.length());
+    }
+
+    // The user's mailbox shrank; it is counted again at the next quota check.
+    public void recount(String username) {
+        usage.remove(username);
+    }
+
+    // The bytes the user's mailbox was last counted at, or -1 if it has not been counted.
+    public long knownUsage(String username) {
+        return usage.getOrDefault(username, -1L);
+    }
+
+    // Takes a count saved in a snapshot, so the first quota check after startup does not walk the mailbox.
+    public void preload(String username, long bytes) {
+        if (quotaBytes > 0 && bytes >= 0)
+            usage.putIfAbsent(username, bytes);
+    }
+
+    @Override
+    public void run() {
+        try {
+            sleepNanos(Math.min(intervalMillis, 60_000L) * 1_000_000L);
+            while (running) {
+                long start = System.nanoTime();
+                for (String username : users.usernames()) {
+                    pace(VISIT_BYTES);
+                    sweep(username);
+                }
+                sweeps.increment();
+                long elapsed = System.nanoTime() - start;
+                if (ServerLog.debugEnabled())
+                    ServerLog.debug("Janitor swept " + users.size() + " mailbox(es) in " + elapsed / 1_000_000
+                            + " ms");
+                sleepNanos(intervalMillis * 1_000_000L - elapsed);
+            }
+        } catch (InterruptedIOException e) {
+            // stopped
+        }
+    }
+
+    private void sweep(String username) throws InterruptedIOException {
+        try {
+            for (String folder : store.folders(username))
+                expire(username, folder);
+            store.compact(username, this);
+            if (quotaBytes > 0)
+                usage.put(username, measure(username));
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException | UncheckedIOException e) {
+            failures.increment();
+            ServerLog.warn("Janitor failed on the mailbox of " + username + ": " + e.getMessage());
+        }
+    }
+
+    private void expire(String username, String folder) throws IOException {
+        int days = Integer.getInteger("mail.retentionDays." + folder, retentionDays);
+        if (days <= 0)
+            return;
+        String cutoff = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss")
+                .format(new Date(System.currentTimeMillis() - days * 86_400_000L));
+        while (true) {
+            List<MailboxIndex.Entry> old = store.index(username, folder).datedBefore(cutoff, EXPUNGE_BATCH);
+            if (old.isEmpty())
+                return;
+            List<Long> ids = new ArrayList<>(old.size());
+            for (MailboxIndex.Entry entry : old)
+                ids.add(entry.id);
+            pace((long) ids.size() * REMOVE_BYTES);
+            int removed = store.expunge(username, folder, ids).size();
+            expired.add(removed);
+            if (removed == 0)
+                return;
+            if (ServerLog.debugEnabled())
+                ServerLog.debug("Expired " + removed + " mail(s) from " + folder + " of " + username);
+        }
+    }
+
+    // Sum of the file sizes under the mailbox, not counting the search index, which the server can drop at will.
+    private long measure(String username) {
+        Path dir = store.mailboxDir(username).toPath();
+        if (!Files.isDirectory(dir))
+            return 0;
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> !file.getFileName().toString().startsWith("search."))
+                    .mapToLong(file -> file.toFile().length()).sum();
+        } catch (IOException | UncheckedIOException e) {
+            ServerLog.warn("Failed to measure the mailbox of " + username + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Waits out a delivery backlog, up to a bound so a server that is never idle still gets cleaned, then
+    // spends the bytes from a budget that refills at mail.janitorRate.
+    @Override
+    public void pace(long bytes) throws InterruptedIOException {
+        pacedBytes.add(bytes);
+        long busySince = System.nanoTime();
+        while (backlog.getAsInt() > 0 && System.nanoTime() - busySince < MAX_BUSY_WAIT_NANOS)
+            sleepNanos(BUSY_PAUSE_NANOS);
+        long now = System.nanoTime();
+        long wait = nextIoNanos - now;
+        if (bytesPerSecond > 0)
+            nextIoNanos = Math.max(nextIoNanos, now) + (long) (bytes * 1e9 / bytesPerSecond);
+        sleepNanos(wait);
+    }
+
+    private void sleepNanos(long nanos) throws InterruptedIOException {
+        long until = System.nanoTime() + nanos;
+        for (long left = nanos; running && left > 0; left = until - System.nanoTime())
+            LockSupport.parkNanos(this, left);
+        if (!running)
+            throw new InterruptedIOException("Janitor stopped");
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// What startup would otherwise read from every user file and mailbox, saved in one binary file so a restart does
+// not scale with the data directory. server_data/metadata.snap holds each user record, with the time and size
+// its file had, and the bytes the user's mailbox was last counted at for mail.quota. It is written on shutdown
+// and every mail.snapshotInterval, and mapped and decoded on boot in place of reading the users directories.
+//
+// The records are trusted at once and checked in the background: a user file whose time or size changed is read
+// again, one with no record is read, and a record whose file is gone is dropped. Until then a name missing from
+// the snapshot is looked for on disk, so accounts registered after it was written can log in. A mailbox count is
+// dropped, to be measured again, if any of its index files changed after the snapshot was written. A snapshot
+// taken for another shard layout, or damaged, is ignored and the files are read as before.
+public class MetadataSnapshot implements Runnable {
+    public static final String FILE_NAME = "metadata.snap";
+    private static final int MAGIC = 0x4D534E31;
+    // How far a file time may lag behind the clock that wrote the snapshot, for file systems with coarse times.
+    private static final long MTIME_SLACK_MILLIS = 2000;
+
+    private static final Metrics.Timer loads = Metrics.timer("mail_snapshot_seconds",
+            "Time to load, check or write the metadata snapshot", "op", "load");
+    private static final Metrics.Timer verifies = Metrics.timer("mail_snapshot_seconds",
+            "Time to load, check or write the metadata snapshot", "op", "verify");
+    private static final Metrics.Timer writes = Metrics.timer("mail_snapshot_seconds",
+            "Time to load, check or write the metadata snapshot", "op", "write");
+    private static final Metrics.Counter rereads = Metrics.counter("mail_snapshot_reread_users_total",
+            "User files read again because they no longer matched the snapshot");
+    private static final Metrics.Counter recounts = Metrics.counter("mail_snapshot_recounted_mailboxes_total",
+            "Mailbox sizes dropped because the mailbox changed after the snapshot");
+
+    private final Path file;
+    private final String layout;
+    private final UserDirectory users;
+    private final MailStore store;
+    private final MailboxJanitor janitor;
+    private final long intervalMillis;
+    private List<String> preloaded;
+    private List<String> counted;
+    private long writtenAt;
+    private volatile boolean verified = true;
+    private volatile boolean running;
+    private boolean closed;
+    private Thread thread;
+
+    public MetadataSnapshot(Path file, String layout, UserDirectory users, MailStore store, MailboxJanitor janitor,
+            long intervalMillis) {
+        this.file = file;
+        this.layout = layout;
+        this.users = users;
+        this.store = store;
+        this.janitor = janitor;
+        this.intervalMillis = intervalMillis;
+    }
+
+    // null with mail.snapshot=off, which reads every user file at startup as before.
+    public static MetadataSnapshot fromConfig(File dataDir, ShardRing ring, UserDirectory users, MailStore store,
+            MailboxJanitor janitor) {
+        if ("off".equalsIgnoreCase(System.getProperty("mail.snapshot", "on").trim()))
+            return null;
+        return new MetadataSnapshot(new File(dataDir, FILE_NAME).toPath(), ring.shards().toString(), users, store,
+                janitor, Long.getLong("mail.snapshotInterval", 600_000L));
+    }
+
+    // Preloads the user directory and the quota counts; false if there is no usable snapshot.
+    public boolean load() {
+        long start = System.nanoTime();
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 22 || size > Integer.MAX_VALUE)
+                return false;
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            ServerLog.warn("Failed to open " + file + ": " + e.getMessage());
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(in.duplicate().limit(in.limit() - 4));
+        if (in.getInt(in.limit() - 4) != (int) crc.getValue() || in.getInt() != MAGIC) {
+            ServerLog.warn("Ignoring damaged snapshot " + file);
+            return false;
+        }
+        List<UserDirectory.User> records;
+        List<String> names;
+        List<String> countedNames = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        try {
+            writtenAt = in.getLong();
+            if (!layout.equals(string(in))) {
+                ServerLog.info("Ignoring snapshot " + file + " taken for other shards");
+                return false;
+            }
+            int count = in.getInt();
+            records = new ArrayList<>(count);
+            names = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String username = string(in);
+                String passwordHash = string(in);
+                String createdAt = string(in);
+                int shard = in.getInt();
+                long fileModified = in.getLong();
+                long fileSize = in.getLong();
+                long usage = in.getLong();
+                records.add(new UserDirectory.User(username, passwordHash, createdAt, shard, fileModified,
+                        fileSize));
+                names.add(username);
+                if (usage >= 0) {
+                    countedNames.add(username);
+                    counts.add(usage);
+                }
+            }
+        } catch (RuntimeException e) {
+            ServerLog.warn("Ignoring damaged snapshot " + file + ": " + e);
+            return false;
+        }
+        users.preload(records);
+        for (int i = 0; i < countedNames.size(); i++)
+            janitor.preload(countedNames.get(i), counts.get(i));
+        preloaded = names;
+        counted = countedNames;
+        verified = false;
+        loads.since(start);
+        ServerLog.info("Loaded " + records.size() + " user record(s) from snapshot " + file + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms; checking them against the files meanwhile");
+        return true;
+    }
+
+    // Checks what load took on trust, then keeps writing snapshots every mail.snapshotInterval. A server stopped
+    // with Ctrl+C or a kill never gets to stopServices, so a shutdown hook writes the last one.
+    public synchronized void start() {
+        if (running || closed)
+            return;
+        running = true;
+        thread = new Thread(this, "metadata-snapshot");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "metadata-snapshot-final"));
+    }
+
+    // Writes a last snapshot once the thread is gone, so the next start finds everything up to now.
+    public void close() {
+        Thread stopping;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            running = false;
+            stopping = thread;
+            thread = null;
+        }
+        if (stopping != null) {
+            LockSupport.unpark(stopping);
+            try {
+                stopping.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        write();
+    }
+
+    @Override
+    public void run() {
+        if (!verified)
+            verify();
+        if (intervalMillis <= 0)
+            return;
+        while (running) {
+            long until = System.nanoTime() + intervalMillis * 1_000_000L;
+            for (long left = until - System.nanoTime(); running && left > 0; left = until - System.nanoTime())
+                LockSupport.parkNanos(this, left);
+            if (running)
+                write();
+        }
+    }
+
+    private void verify() {
+        long start = System.nanoTime();
+        int reread;
+        try {
+            reread = users.verify(preloaded);
+        } catch (IOException e) {
+            ServerLog.warn("Failed to check the snapshot against the user files: " + e.getMessage()
+                    + "; reading all of them");
+            try {
+                users.load();
+            } catch (IOException again) {
+                ServerLog.error("Failed to load user directory: " + again.getMessage(), again);
+            }
+            reread = preloaded.size();
+        }
+        rereads.add(reread);
+        int dropped = 0;
+        for (String username : counted) {
+            if (store.lastModified(username) >= writtenAt - MTIME_SLACK_MILLIS) {
+                janitor.recount(username);
+                dropped++;
+            }
+        }
+        recounts.add(dropped);
+        preloaded = null;
+        counted = null;
+        verified = true;
+        verifies.since(start);
+        ServerLog.info("Snapshot checked in " + (System.nanoTime() - start) / 1_000_000 + " ms: " + reread
+                + " user file(s) read again, " + dropped + " mailbox size(s) to count again");
+    }
+
+    // Layout: int magic, long time written, shard layout, int record count, then per user its name, password
+    // hash and creation time, int shard, long file time and size, long mailbox bytes or -1; a CRC32 of everything
+    // before it at the end. Strings are a short length and UTF-8.
+    private synchronized void write() {
+        long start = System.nanoTime();
+        // Counts that have not been checked yet would be saved under a newer time and never be checked.
+        boolean withUsage = verified;
+        long now = System.currentTimeMillis();
+        List<UserDirectory.User> records = users.records();
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), crc), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeLong(now);
+            string(out, layout);
+            out.writeInt(records.size());
+            for (UserDirectory.User user : records) {
+                string(out, user.username);
+                string(out, user.passwordHash);
+                string(out, user.createdAt);
+                out.writeInt(user.shard);
+                out.writeLong(user.fileModified);
+                out.writeLong(user.fileSize);
+                out.writeLong(withUsage ? janitor.knownUsage(user.username) : -1);
+            }
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            ServerLog.warn("Failed to write snapshot " + tmp + ": " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            ServerLog.warn("Failed to replace snapshot " + file + ": " + e.getMessage());
+            return;
+        }
+        writes.since(start);
+        if (ServerLog.debugEnabled())
+            ServerLog.debug("Wrote snapshot of " + records.size() + " user(s) in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static String string(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void string(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF)
+            throw new IOException("Value too long for a snapshot: " + bytes.length + " bytes");
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
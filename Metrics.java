@@ -0,0 +1,365 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+// Process-wide counters, gauges and latency histograms. Recording is a LongAdder increment, so hot paths keep a
+// reference to their Counter or Timer and never look anything up. Everything registered here is exported two
+// ways: as Prometheus text exposition (scrape()/serve()) and as attributes of the JMX bean mail:type=Metrics.
+public final class Metrics {
+    // Histogram bucket upper bounds, in nanoseconds: 25 us to 10 s in 1-2.5-5 steps.
+    private static final long[] BOUNDS = {
+            25_000L, 50_000L, 100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L,
+            250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L };
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // Latency histogram with fixed buckets; the last slot counts everything above the largest bound.
+    public static final class Timer {
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        Timer() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        public void record(long nanos) {
+            int slot = Arrays.binarySearch(BOUNDS, nanos);
+            buckets[slot >= 0 ? slot : -slot - 1].increment();
+            count.increment();
+            sumNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        // Records the time since startNanos, a System.nanoTime() reading.
+        public void since(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        // Upper bound of the bucket holding the given quantile (0..1), or the maximum for the overflow bucket.
+        public long quantileNanos(double quantile) {
+            long total = count.sum();
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank)
+                    return BOUNDS[i];
+            }
+            return maxNanos.get();
+        }
+
+        public double meanNanos() {
+            long total = count.sum();
+            return total == 0 ? 0 : (double) sumNanos.sum() / total;
+        }
+    }
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    private static final class Metric {
+        final String name;
+        final String help;
+        final Type type;
+        final String labels;
+        final String jmxName;
+        final Counter counter;
+        final Timer timer;
+        final LongSupplier gauge;
+
+        Metric(String name, String help, Type type, String[] labels, Counter counter, Timer timer,
+                LongSupplier gauge) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            StringBuilder prometheus = new StringBuilder();
+            StringBuilder jmx = new StringBuilder(name);
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                prometheus.append(prometheus.length() == 0 ? "" : ",").append(labels[i]).append("=\"")
+                        .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+                jmx.append('.').append(labels[i + 1]);
+            }
+            this.labels = prometheus.toString();
+            this.jmxName = jmx.toString();
+            this.counter = counter;
+            this.timer = timer;
+            this.gauge = gauge;
+        }
+
+        long value() {
+            return counter != null ? counter.get() : gauge.getAsLong();
+        }
+    }
+
+    private static final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    private Metrics() {
+    }
+
+    // labels are name/value pairs, e.g. counter("mail_x_total", "...", "command", "LIST").
+    public static Counter counter(String name, String help, String... labels) {
+        Counter counter = new Counter();
+        metrics.add(new Metric(name, help, Type.COUNTER, labels, counter, null, null));
+        return counter;
+    }
+
+    // A counter kept elsewhere, e.g. a component's own drop count, read at scrape time.
+    public static void counter(String name, String help, LongSupplier value, String... labels) {
+        register(new Metric(name, help, Type.COUNTER, labels, null, null, value));
+    }
+
+    public static Timer timer(String name, String help, String... labels) {
+        Timer timer = new Timer();
+        metrics.add(new Metric(name, help, Type.HISTOGRAM, labels, null, timer, null));
+        return timer;
+    }
+
+    // Registering a gauge or function counter again under the same name and labels replaces the earlier one.
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        register(new Metric(name, help, Type.GAUGE, labels, null, null, value));
+    }
+
+    private static void register(Metric metric) {
+        metrics.removeIf(m -> m.jmxName.equals(metric.jmxName));
+        metrics.add(metric);
+    }
+
+    // Prometheus text exposition format 0.0.4; samples of one name are grouped under a single HELP/TYPE.
+    public static String scrape() {
+        Map<String, List<Metric>> byName = new LinkedHashMap<>();
+        for (Metric metric : metrics)
+            byName.computeIfAbsent(metric.name, n -> new ArrayList<>()).add(metric);
+        StringBuilder out = new StringBuilder(4096);
+        for (List<Metric> family : byName.values()) {
+            Metric first = family.get(0);
+            out.append("# HELP ").append(first.name).append(' ').append(first.help).append('\n');
+            out.append("# TYPE ").append(first.name).append(' ').append(first.type.name().toLowerCase())
+                    .append('\n');
+            for (Metric metric : family) {
+                if (metric.type == Type.HISTOGRAM)
+                    writeHistogram(out, metric);
+                else
+                    sample(out, metric.name, metric.labels, null).append(metric.value()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeHistogram(StringBuilder out, Metric metric) {
+        Timer timer = metric.timer;
+        long cumulative = 0;
+        for (int i = 0; i < timer.buckets.length; i++) {
+            cumulative += timer.buckets[i].sum();
+            String le = i < BOUNDS.length ? seconds(BOUNDS[i]) : "+Inf";
+            sample(out, metric.name + "_bucket", metric.labels, le).append(cumulative).append('\n');
+        }
+        sample(out, metric.name + "_sum", metric.labels, null).append(seconds(timer.sumNanos.sum())).append('\n');
+        // The count is taken from the buckets so it never disagrees with the +Inf bucket of the same scrape.
+        sample(out, metric.name + "_count", metric.labels, null).append(cumulative).append('\n');
+    }
+
+    private static StringBuilder sample(StringBuilder out, String name, String labels, String le) {
+        out.append(name);
+        if (!labels.isEmpty() || le != null) {
+            out.append('{').append(labels);
+            if (le != null)
+                out.append(labels.isEmpty() ? "" : ",").append("le=\"").append(le).append('"');
+            out.append('}');
+        }
+        return out.append(' ');
+    }
+
+    private static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+
+    // Serves scrape() as text/plain on http://<address>/metrics. Returns the server so the caller can stop it.
+    public static HttpServer serve(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+        return server;
+    }
+
+    // Registers mail:type=Metrics with the platform MBean server; registering twice keeps the first bean.
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("mail:type=Metrics");
+            if (!server.isRegistered(name))
+                server.registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            ServerLog.warn("Failed to register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // Counters and gauges appear as one long attribute each; a histogram as <name>.count, .meanMillis,
+    // .p50Millis, .p99Millis and .maxMillis. LogLevel and LogSample are writable.
+    private static final class MetricsMBean implements DynamicMBean {
+        private static final String[] TIMER_FIELDS = { "count", "meanMillis", "p50Millis", "p99Millis",
+                "maxMillis" };
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if (attribute.equals("LogLevel"))
+                return ServerLog.level().name();
+            if (attribute.equals("LogSample"))
+                return ServerLog.sampleEvery();
+            for (Metric metric : metrics) {
+                if (metric.type != Type.HISTOGRAM) {
+                    if (metric.jmxName.equals(attribute))
+                        return metric.value();
+                    continue;
+                }
+                if (!attribute.startsWith(metric.jmxName + "."))
+                    continue;
+                Timer timer = metric.timer;
+                switch (attribute.substring(metric.jmxName.length() + 1)) {
+                    case "count":
+                        return timer.count();
+                    case "meanMillis":
+                        return timer.meanNanos() / 1e6;
+                    case "p50Millis":
+                        return timer.quantileNanos(0.5) / 1e6;
+                    case "p99Millis":
+                        return timer.quantileNanos(0.99) / 1e6;
+                    case "maxMillis":
+                        return timer.maxNanos.get() / 1e6;
+                    default:
+                        break;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException,
+                InvalidAttributeValueException {
+            String value = String.valueOf(attribute.getValue());
+            if (attribute.getName().equals("LogLevel")) {
+                ServerLog.Level level = ServerLog.parseLevel(value, null);
+                if (level == null)
+                    throw new InvalidAttributeValueException("Unknown log level " + value);
+                ServerLog.setLevel(level);
+            } else if (attribute.getName().equals("LogSample")) {
+                try {
+                    ServerLog.setSampleEvery(Integer.parseInt(value));
+                } catch (NumberFormatException e) {
+                    throw new InvalidAttributeValueException("LogSample must be a number, got " + value);
+                }
+            } else {
+                throw new AttributeNotFoundException(attribute.getName() + " is read-only or unknown");
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException ignored) {
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            AttributeList set = new AttributeList();
+            for (Attribute attribute : attributes.asList()) {
+                try {
+                    setAttribute(attribute);
+                    set.add(attribute);
+                } catch (JMException ignored) {
+                }
+            }
+            return set;
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(action);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            attributes.add(new MBeanAttributeInfo("LogLevel", "java.lang.String",
+                    "ERROR, WARN, INFO, DEBUG or TRACE", true, true, false));
+            attributes.add(new MBeanAttributeInfo("LogSample", "int",
+                    "One request in this many is logged at DEBUG", true, true, false));
+            for (Metric metric : metrics) {
+                if (metric.type != Type.HISTOGRAM) {
+                    attributes.add(new MBeanAttributeInfo(metric.jmxName, "long", metric.help, true, false,
+                            false));
+                    continue;
+                }
+                for (String field : TIMER_FIELDS) {
+                    attributes.add(new MBeanAttributeInfo(metric.jmxName + "." + field,
+                            field.equals("count") ? "long" : "double", metric.help, true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Mail server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
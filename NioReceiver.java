@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class NioReceiver {
+    public interface PacketHandler {
+        void onPacket(MailTransport transport, InetSocketAddress from, ByteBuffer data);
+    }
+
+    private final int port;
+    private final int readers;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final BufferPool buffers;
+    private final PacketHandler handler;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+
+    public NioReceiver(int port, int readers, int receiveBufferSize, int sendBufferSize, BufferPool buffers,
+            PacketHandler handler) {
+        this.port = port;
+        this.readers = Math.max(1, readers);
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendBufferSize = sendBufferSize;
+        this.buffers = buffers;
+        this.handler = handler;
+    }
+
+    // Opens one channel per reader on the same port with SO_REUSEPORT so the kernel spreads flows across
+    // them. Without SO_REUSEPORT support a single channel is shared by all reader threads.
+    public void start() throws IOException {
+        boolean reusePort = readers > 1 && supportsReusePort();
+        if (readers > 1 && !reusePort) {
+            ServerLog.warn("SO_REUSEPORT is not supported here; all readers will share one channel.");
+        }
+        int channelCount = reusePort ? readers : 1;
+        for (int i = 0; i < channelCount; i++) {
+            channels.add(openChannel(reusePort));
+        }
+        for (int i = 0; i < readers; i++) {
+            DatagramChannel channel = channels.get(i % channels.size());
+            Thread reader = new Thread(() -> receiveLoop(channel), "mail-nio-reader-" + (i + 1));
+            reader.setDaemon(true);
+            reader.start();
+        }
+        ServerLog.info("NIO receiver listening on UDP port " + port + " with " + readers + " reader(s) over "
+                + channelCount + " channel(s)");
+    }
+
+    // A transport on the server port that can reach any peer, for traffic not tied to a received packet.
+    public MailTransport transport() {
+        return MailTransport.of(channels.get(0));
+    }
+
+    public void close() {
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private DatagramChannel openChannel(boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        if (sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+        channel.configureBlocking(true);
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
+
+    private void receiveLoop(DatagramChannel channel) {
+        MailTransport transport = MailTransport.of(channel);
+        while (channel.isOpen()) {
+            ByteBuffer buffer = buffers.acquire();
+            try {
+                SocketAddress from = channel.receive(buffer);
+                if (from == null) {
+                    buffers.release(buffer);
+                    continue;
+                }
+                buffer.flip();
+                handler.onPacket(transport, (InetSocketAddress) from, buffer);
+            } catch (ClosedChannelException e) {
+                buffers.release(buffer);
+                break;
+            } catch (IOException e) {
+                buffers.release(buffer);
+                ServerLog.warn("I/O error while receiving packet: " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean supportsReusePort() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+// Sends NEW_MAIL pushes from its own thread instead of from the delivery path. Mails for one recipient that
+// arrive within the coalescing window become one Batch, and each recipient has a token bucket, so a burst of
+// mail costs a handful of packets. While a recipient is out of tokens its batch keeps growing until the next
+// token is due.
+public class NotificationDispatcher {
+    public static final long DEFAULT_WINDOW_MILLIS = 250;
+    public static final int DEFAULT_BURST = 5;
+    public static final double DEFAULT_RATE_PER_SECOND = 1.0;
+    public static final int MAX_IDS = 16;
+
+    public interface Pusher {
+        void push(String recipient, Batch batch);
+    }
+
+    // Mails waiting to be announced to one recipient; ids holds the newest MAX_IDS of them, oldest first.
+    public static final class Batch {
+        public final int count;
+        public final long[] ids;
+        public final String lastFrom;
+        public final String lastTitle;
+
+        Batch(int count, long[] ids, String lastFrom, String lastTitle) {
+            this.count = count;
+            this.ids = ids;
+            this.lastFrom = lastFrom;
+            this.lastTitle = lastTitle;
+        }
+
+        public long lastId() {
+            return ids[ids.length - 1];
+        }
+    }
+
+    private static final class Pending implements Delayed {
+        final String recipient;
+        final long[] ring = new long[MAX_IDS];
+        int count;
+        String lastFrom;
+        String lastTitle;
+        boolean flushed;
+        volatile long dueAt;
+
+        Pending(String recipient, long dueAt) {
+            this.recipient = recipient;
+            this.dueAt = dueAt;
+        }
+
+        void add(String from, String title, long id) {
+            ring[count % MAX_IDS] = id;
+            count++;
+            lastFrom = from;
+            lastTitle = title;
+        }
+
+        Batch toBatch() {
+            int kept = Math.min(count, MAX_IDS);
+            long[] ids = new long[kept];
+            for (int i = 0; i < kept; i++)
+                ids[i] = ring[(count - kept + i) % MAX_IDS];
+            return new Batch(count, ids, lastFrom, lastTitle);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueAt, ((Pending) other).dueAt);
+        }
+    }
+
+    private static final class Bucket {
+        double tokens;
+        long refilledAt;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+    }
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final DelayQueue<Pending> due = new DelayQueue<>();
+    // Only touched by the dispatcher thread.
+    private final Map<String, Bucket> buckets = new HashMap<>();
+    private final Pusher pusher;
+    private final long windowMillis;
+    private final int burst;
+    private final double ratePerMilli;
+    private long lastSweep;
+    private volatile boolean running;
+    private Thread thread;
+
+    public NotificationDispatcher(Pusher pusher, long windowMillis, int burst, double ratePerSecond) {
+        this.pusher = pusher;
+        this.windowMillis = Math.max(0, windowMillis);
+        this.burst = Math.max(1, burst);
+        this.ratePerMilli = Math.max(ratePerSecond, 0.001) / 1000.0;
+    }
+
+    public static NotificationDispatcher fromConfig(Pusher pusher) {
+        long window = Long.getLong("mail.notifyWindow", DEFAULT_WINDOW_MILLIS);
+        int burst = Integer.getInteger("mail.notifyBurst", DEFAULT_BURST);
+        double rate = DEFAULT_RATE_PER_SECOND;
+        String rateProperty = System.getProperty("mail.notifyRate");
+        if (rateProperty != null) {
+            try {
+                rate = Double.parseDouble(rateProperty);
+            } catch (NumberFormatException e) {
+                ServerLog.warn("Ignoring mail.notifyRate=" + rateProperty + ", expected pushes per second");
+            }
+        }
+        return new NotificationDispatcher(pusher, window, burst, rate);
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this::dispatchLoop, "mail-notifier");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Queues a NEW_MAIL for recipient; safe to call from any thread and never blocks on the network.
+    public void announce(String recipient, String from, String title, long id) {
+        while (true) {
+            Pending entry = pending.computeIfAbsent(recipient, r -> {
+                Pending created = new Pending(r, System.currentTimeMillis() + windowMillis);
+                due.add(created);
+                return created;
+            });
+            synchronized (entry) {
+                if (!entry.flushed) {
+                    entry.add(from, title, id);
+                    return;
+                }
+            }
+        }
+    }
+
+    public int pendingRecipients() {
+        return pending.size();
+    }
+
+    public void close() {
+        running = false;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            Pending entry;
+            try {
+                entry = due.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                if (!running)
+                    return;
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            if (entry != null)
+                flush(entry, now);
+            if (now - lastSweep > 60_000) {
+                sweepBuckets(now);
+                lastSweep = now;
+            }
+        }
+    }
+
+    private void flush(Pending entry, long now) {
+        Bucket bucket = buckets.get(entry.recipient);
+        if (bucket != null) {
+            refill(bucket, now);
+            if (bucket.tokens < 1) {
+                // Out of tokens: keep collecting into this batch until the next token is due.
+                entry.dueAt = now + (long) Math.ceil((1 - bucket.tokens) / ratePerMilli);
+                due.add(entry);
+                return;
+            }
+        } else {
+            bucket = new Bucket(burst, now);
+            buckets.put(entry.recipient, bucket);
+        }
+        bucket.tokens -= 1;
+
+        Batch batch;
+        synchronized (entry) {
+            entry.flushed = true;
+            pending.remove(entry.recipient, entry);
+            batch = entry.toBatch();
+        }
+        try {
+            pusher.push(entry.recipient, batch);
+        } catch (RuntimeException e) {
+            ServerLog.warn("Failed to push NEW_MAIL to " + entry.recipient + ": " + e.getMessage());
+        }
+    }
+
+    private void refill(Bucket bucket, long now) {
+        bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.refilledAt) * ratePerMilli);
+        bucket.refilledAt = now;
+    }
+
+    // Full buckets carry no information, so they are dropped to keep the map at the set of recent recipients.
+    private void sweepBuckets(long now) {
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();) {
+            Bucket bucket = it.next();
+            refill(bucket, now);
+            if (bucket.tokens >= burst)
+                it.remove();
+        }
+    }
+}
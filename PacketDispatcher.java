@@ -0,0 +1,124 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PacketDispatcher {
+    public enum OverloadPolicy {
+        DROP, REJECT, CALLER_RUNS
+    }
+
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final OverloadPolicy policy;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private PacketDispatcher(ExecutorService executor, Semaphore inFlight, OverloadPolicy policy) {
+        this.executor = executor;
+        this.inFlight = inFlight;
+        this.policy = policy;
+    }
+
+    // Fixed pool of platform workers fed by a bounded queue; a full queue triggers the overload policy.
+    public static PacketDispatcher bounded(int workers, int queueCapacity, OverloadPolicy policy) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), namedDaemonThreads("mail-worker"),
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.prestartAllCoreThreads();
+        return new PacketDispatcher(pool, null, policy);
+    }
+
+    // One virtual thread per packet, capped by maxInFlight. Needs a JDK with virtual threads (21+).
+    public static PacketDispatcher virtualThreads(int maxInFlight, OverloadPolicy policy) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return new PacketDispatcher(executor, new Semaphore(maxInFlight), policy);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads are not available on this JVM", e);
+        }
+    }
+
+    public static PacketDispatcher fromConfig(String mode, int workers, int queueCapacity, String overload) {
+        OverloadPolicy policy = OverloadPolicy.valueOf(overload.trim().toUpperCase().replace('-', '_'));
+        if ("virtual".equalsIgnoreCase(mode)) {
+            try {
+                return virtualThreads(workers + queueCapacity, policy);
+            } catch (UnsupportedOperationException e) {
+                ServerLog.warn(e.getMessage() + ", falling back to a bounded worker pool.");
+            }
+        }
+        return bounded(workers, queueCapacity, policy);
+    }
+
+    // Returns false when the task was dropped; the caller still owns any resources the task would have released.
+    public boolean dispatch(Runnable task) {
+        try {
+            if (inFlight == null) {
+                executor.execute(task);
+                return true;
+            }
+            if (inFlight.tryAcquire()) {
+                try {
+                    executor.execute(() -> {
+                        try {
+                            task.run();
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                return true;
+            }
+        } catch (RejectedExecutionException e) {
+            // fall through to the overload policy
+        }
+
+        if (policy == OverloadPolicy.CALLER_RUNS) {
+            task.run();
+            return true;
+        }
+        long count = dropped.incrementAndGet();
+        if (count == 1 || count % 1000 == 0) {
+            ServerLog.warn("Dispatcher overloaded, dropped " + count + " packet(s) so far.");
+        }
+        return false;
+    }
+
+    public OverloadPolicy policy() {
+        return policy;
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    public int queueDepth() {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getQueue().size();
+        }
+        return 0;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    static ThreadFactory namedDaemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,146 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// The two forms of the "password:" line in a user file:
+//   <64 hex digits>                               unsalted SHA-256, written by older servers
+//   pbkdf2$<iterations>$<salt b64>$<hash b64>     PBKDF2-HMAC-SHA256 with a random per-user salt
+// New passwords always get the PBKDF2 form; needsUpgrade tells the caller when a stored hash should be replaced.
+public final class PasswordHasher {
+    public static final int DEFAULT_ITERATIONS = 100_000;
+
+    private static final String PBKDF2_PREFIX = "pbkdf2$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Neither MessageDigest nor SecretKeyFactory may be shared between threads, and looking them up is slow.
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+    private static final ThreadLocal<SecretKeyFactory> PBKDF2 = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+        }
+    });
+    private static final ThreadLocal<char[]> HEX_CHARS = ThreadLocal.withInitial(() -> new char[64]);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+
+    public PasswordHasher(int iterations) {
+        this.iterations = Math.max(1, iterations);
+    }
+
+    public int iterations() {
+        return iterations;
+    }
+
+    // The legacy unsalted form, only kept to verify old user files and to compare against in benchmarks.
+    public static String legacyHash(String password) {
+        byte[] digest = SHA256.get().digest(password.getBytes(StandardCharsets.UTF_8));
+        char[] hex = HEX_CHARS.get();
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(hex, 0, digest.length * 2);
+    }
+
+    // SHA-256 over secret and password; cheap, so only fit for remembering a password that was just verified.
+    public static byte[] fingerprint(byte[] secret, String password) {
+        MessageDigest digest = SHA256.get();
+        digest.update(secret);
+        return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PBKDF2_PREFIX + iterations + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(pbkdf2(password, salt, iterations, HASH_BYTES));
+    }
+
+    public boolean verify(String password, String stored) {
+        if (stored == null)
+            return false;
+        if (isLegacy(stored))
+            return matchesHex(SHA256.get().digest(password.getBytes(StandardCharsets.UTF_8)), stored);
+        if (!stored.startsWith(PBKDF2_PREFIX))
+            return false;
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4)
+            return false;
+        try {
+            int rounds = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            if (rounds <= 0 || expected.length == 0)
+                return false;
+            return MessageDigest.isEqual(expected, pbkdf2(password, salt, rounds, expected.length));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // True for legacy hashes and for PBKDF2 hashes made with fewer iterations than this hasher uses.
+    public boolean needsUpgrade(String stored) {
+        if (stored == null || isLegacy(stored))
+            return true;
+        if (!stored.startsWith(PBKDF2_PREFIX))
+            return false;
+        int end = stored.indexOf('$', PBKDF2_PREFIX.length());
+        try {
+            return end < 0 || Integer.parseInt(stored.substring(PBKDF2_PREFIX.length(), end)) < iterations;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public static boolean isLegacy(String stored) {
+        if (stored.length() != 64)
+            return false;
+        for (int i = 0; i < stored.length(); i++) {
+            char c = stored.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    // Compares a digest with its lowercase hex form without building a string; the time taken does not depend
+    // on where they differ.
+    private static boolean matchesHex(byte[] digest, String hex) {
+        if (hex.length() != digest.length * 2)
+            return false;
+        int diff = 0;
+        for (int i = 0; i < digest.length; i++) {
+            diff |= hex.charAt(2 * i) ^ HEX[(digest[i] >> 4) & 0xF];
+            diff |= hex.charAt(2 * i + 1) ^ HEX[digest[i] & 0xF];
+        }
+        return diff == 0;
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int rounds, int bytes) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, rounds, bytes * 8);
+        try {
+            return PBKDF2.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException("PBKDF2 rejected its parameters", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Token buckets keyed by anything with a good hashCode (addresses, usernames). Keys are spread over striped
+// locks so receive threads rarely contend, and each stripe is an LRU map with a fixed capacity: a flood of new
+// keys evicts the least recently seen buckets instead of growing the heap. An evicted key starts again with a
+// full bucket, which only ever favours a client that has been quiet.
+public class RateLimiter<K> {
+    private static final int STRIPES = 64;
+
+    private static final class Bucket {
+        double tokens;
+        long refilledAt;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+    }
+
+    private final Map<K, Bucket>[] stripes;
+    private final double burst;
+    private final double ratePerNano;
+    private final LongAdder evicted = new LongAdder();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public RateLimiter(double ratePerSecond, double burst, int maxKeys) {
+        this.burst = Math.max(1, burst);
+        this.ratePerNano = Math.max(ratePerSecond, 0.001) / 1e9;
+        int perStripe = Math.max(1, (maxKeys + STRIPES - 1) / STRIPES);
+        this.stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LinkedHashMap<K, Bucket>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Bucket> eldest) {
+                    if (size() <= perStripe)
+                        return false;
+                    evicted.increment();
+                    return true;
+                }
+            };
+        }
+    }
+
+    public boolean tryAcquire(K key) {
+        return tryAcquire(key, 1);
+    }
+
+    // Takes cost tokens from key's bucket if it has them; a refused call takes nothing.
+    public boolean tryAcquire(K key, double cost) {
+        long now = System.nanoTime();
+        Map<K, Bucket> stripe = stripes[stripe(key)];
+        synchronized (stripe) {
+            Bucket bucket = stripe.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(burst, now);
+                stripe.put(key, bucket);
+            } else {
+                bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.refilledAt) * ratePerNano);
+                bucket.refilledAt = now;
+            }
+            if (bucket.tokens < cost)
+                return false;
+            bucket.tokens -= cost;
+            return true;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<K, Bucket> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public long evictedCount() {
+        return evicted.sum();
+    }
+
+    private int stripe(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return (h * 0x9E3779B9 >>> 26) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,605 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Framing layer shared by MailServer and MailClient. A message is split into numbered DATA fragments that the
+// receiver reassembles and acknowledges with a cumulative ACK plus a 64-fragment selective-ack bitmap. The
+// sender keeps a window of fragments in flight, fast-retransmits holes the bitmap reveals and falls back to a
+// backed-off retransmit timer. Frames start with 0xF7, which never starts a UTF-8 text command, so framed
+// and legacy plain-text datagrams can share one socket.
+public class ReliableUdp {
+    public interface Sender {
+        void send(InetSocketAddress to, ByteBuffer frame) throws IOException;
+    }
+
+    public interface Receiver {
+        void onMessage(InetSocketAddress from, ByteBuffer message);
+    }
+
+    public static final byte MAGIC = (byte) 0xF7;
+    public static final int DEFAULT_FRAGMENT_BYTES = 1400;
+    public static final int DEFAULT_MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_PEER_BYTES = 32 * 1024 * 1024;
+    public static final int DEFAULT_MAX_PEERS = 16384;
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 256L * 1024 * 1024;
+
+    private static final byte TYPE_DATA = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final int DATA_HEADER_BYTES = 14;
+    private static final int ACK_BYTES = 18;
+    private static final int WINDOW = 64;
+    private static final int ACK_EVERY = 8;
+    private static final long TICK_MILLIS = 10;
+    private static final long ACK_DELAY_MILLIS = 20;
+    private static final long INITIAL_RTO_MILLIS = 200;
+    private static final long MIN_RTO_MILLIS = 30;
+    private static final long MAX_RTO_MILLIS = 3000;
+    private static final int MAX_RETRIES = 8;
+    private static final long REASSEMBLY_TIMEOUT_MILLIS = 30_000;
+    private static final long PEER_IDLE_MILLIS = 5 * 60_000;
+    private static final int COMPLETED_HISTORY = 256;
+    private static final int MIN_FRAGMENT_BYTES = 256;
+    // Messages one peer may have half-received at once; a client has a handful of requests in flight.
+    private static final int MAX_INCOMING_PER_PEER = 32;
+    // What an Incoming costs before any payload arrives: its part table and bitmap, charged to the peer's budget
+    // so empty fragments cannot open unlimited reassemblies.
+    private static final int INCOMING_BYTES = 64;
+    private static final int BYTES_PER_FRAGMENT = 9;
+    // One host address may hold at most this fraction of a full peer table, so rotating source ports only
+    // evicts its own peers.
+    private static final int MAX_HOST_SHARE = 16;
+    // Making room in a full table passes over peers heard from this recently, up to EVICTION_SCAN of them.
+    private static final long PEER_RECENT_MILLIS = 10_000;
+    private static final int EVICTION_SCAN = 64;
+
+    private static final class OutKey {
+        final InetSocketAddress to;
+        final int id;
+
+        OutKey(InetSocketAddress to, int id) {
+            this.to = to;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof OutKey && ((OutKey) o).id == id && ((OutKey) o).to.equals(to);
+        }
+
+        @Override
+        public int hashCode() {
+            return to.hashCode() * 31 + id;
+        }
+    }
+
+    private static final class Outgoing {
+        final OutKey key;
+        final byte[] data;
+        final int count;
+        final long[] sentAt;
+        final BitSet acked;
+        final BitSet resent;
+        final Peer peer;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        int ackedCount;
+        int nextToSend;
+        int retries;
+        long rto = INITIAL_RTO_MILLIS;
+
+        Outgoing(OutKey key, byte[] data, int count, Peer peer) {
+            this.key = key;
+            this.data = data;
+            this.count = count;
+            this.peer = peer;
+            this.sentAt = new long[count];
+            this.acked = new BitSet(count);
+            this.resent = new BitSet(count);
+            this.rto = peer.rto();
+        }
+    }
+
+    private static final class Incoming {
+        final int id;
+        final int count;
+        final byte[][] parts;
+        final BitSet received;
+        int receivedCount;
+        int cumulative;
+        int bytes;
+        long lastActivity;
+        boolean ackPending;
+
+        Incoming(int id, int count) {
+            this.id = id;
+            this.count = count;
+            this.parts = new byte[count][];
+            this.received = new BitSet(count);
+        }
+
+        // Payload plus bookkeeping, as charged to the host's budget and the total.
+        int charged() {
+            return bytes + overhead(count);
+        }
+
+        static int overhead(int count) {
+            return INCOMING_BYTES + count * BYTES_PER_FRAGMENT;
+        }
+    }
+
+    // Reassembly memory is budgeted per host address, across all the ports it sends from.
+    private static final class Host {
+        // Its peers, oldest first.
+        final Set<InetSocketAddress> peers = new LinkedHashSet<>();
+        int bufferedBytes;
+    }
+
+    private static final class Peer {
+        final InetSocketAddress address;
+        final Host host;
+        final Map<Integer, Incoming> incoming = new ConcurrentHashMap<>();
+        final int[] completed = new int[COMPLETED_HISTORY];
+        final int[] completedCounts = new int[COMPLETED_HISTORY];
+        int completedNext;
+        // Set under the peer's lock once it is dropped from the table; its frames are ignored from then on.
+        boolean forgotten;
+        volatile long lastSeen;
+        volatile boolean framed;
+        // Smoothed round-trip time in millis, -1 until the first sample.
+        long srtt = -1;
+        long rttVar;
+
+        Peer(InetSocketAddress address, Host host) {
+            this.address = address;
+            this.host = host;
+        }
+
+        synchronized long rto() {
+            if (srtt < 0)
+                return INITIAL_RTO_MILLIS;
+            return Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, srtt + 4 * rttVar));
+        }
+
+        synchronized void sampleRtt(long sample) {
+            if (srtt < 0) {
+                srtt = sample;
+                rttVar = sample / 2;
+            } else {
+                rttVar = (3 * rttVar + Math.abs(srtt - sample)) / 4;
+                srtt = (7 * srtt + sample) / 8;
+            }
+        }
+
+        int completedCount(int id) {
+            for (int i = 0; i < COMPLETED_HISTORY; i++)
+                if (completedCounts[i] > 0 && completed[i] == id)
+                    return completedCounts[i];
+            return 0;
+        }
+
+        void markCompleted(int id, int count) {
+            completed[completedNext] = id;
+            completedCounts[completedNext] = count;
+            completedNext = (completedNext + 1) % COMPLETED_HISTORY;
+        }
+    }
+
+    private final Sender sender;
+    private final Receiver receiver;
+    private final int fragmentBytes;
+    private final int maxMessageBytes;
+    private final int maxPeerBytes;
+    private final int maxPeers;
+    private final int maxHostPeers;
+    private final long maxBufferedBytes;
+    private final int maxFragments;
+    private final AtomicInteger nextMessageId = new AtomicInteger((int) System.nanoTime());
+    private final Map<OutKey, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Peer> peers = new ConcurrentHashMap<>();
+    // Peers are added and dropped under the hosts lock, which also guards the eviction order, oldest first.
+    private final Map<InetAddress, Host> hosts = new HashMap<>();
+    private final Map<InetSocketAddress, Peer> evictionOrder = new LinkedHashMap<>();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "reliable-udp-ticker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ReliableUdp(Sender sender, Receiver receiver, int fragmentBytes, int maxMessageBytes, int maxPeerBytes) {
+        this(sender, receiver, fragmentBytes, maxMessageBytes, maxPeerBytes, DEFAULT_MAX_PEERS,
+                DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    // maxPeerBytes is the reassembly memory of one host address and maxBufferedBytes that of all of them.
+    // maxPeers bounds the addresses tracked at once; a new one makes room by dropping an old one.
+    public ReliableUdp(Sender sender, Receiver receiver, int fragmentBytes, int maxMessageBytes, int maxPeerBytes,
+            int maxPeers, long maxBufferedBytes) {
+        this.sender = sender;
+        this.receiver = receiver;
+        this.fragmentBytes = fragmentBytes;
+        this.maxMessageBytes = maxMessageBytes;
+        this.maxPeerBytes = maxPeerBytes;
+        this.maxPeers = Math.max(1, maxPeers);
+        this.maxHostPeers = Math.max(1, maxPeers / MAX_HOST_SHARE);
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.maxFragments = maxMessageBytes / MIN_FRAGMENT_BYTES + 1;
+        ticker.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public ReliableUdp(Sender sender, Receiver receiver) {
+        this(sender, receiver, DEFAULT_FRAGMENT_BYTES, DEFAULT_MAX_MESSAGE_BYTES, DEFAULT_MAX_PEER_BYTES);
+    }
+
+    public static boolean isFrame(ByteBuffer data) {
+        return data.remaining() > 0 && data.get(data.position()) == MAGIC;
+    }
+
+    public static boolean isFrame(byte[] data, int offset, int length) {
+        return length > 0 && data[offset] == MAGIC;
+    }
+
+    // True once the peer has sent us framed traffic, i.e. it understands framed replies.
+    public boolean knowsPeer(InetSocketAddress peer) {
+        Peer state = peers.get(peer);
+        return state != null && state.framed;
+    }
+
+    public int peerCount() {
+        return peers.size();
+    }
+
+    public int inFlightMessages() {
+        return outgoing.size();
+    }
+
+    public CompletableFuture<Void> send(InetSocketAddress to, byte[] message) {
+        if (message.length > maxMessageBytes) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Message of " + message.length + " bytes exceeds "
+                    + maxMessageBytes));
+            return failed;
+        }
+        int count = Math.max(1, (message.length + fragmentBytes - 1) / fragmentBytes);
+        Peer peer = peerFor(to);
+        peer.lastSeen = System.currentTimeMillis();
+        Outgoing out = new Outgoing(new OutKey(to, nextMessageId.incrementAndGet()), message, count, peer);
+        outgoing.put(out.key, out);
+        synchronized (out) {
+            fillWindow(out, System.currentTimeMillis());
+        }
+        return out.done;
+    }
+
+    public void onFrame(InetSocketAddress from, ByteBuffer frame) {
+        if (frame.remaining() < 2 || frame.get(frame.position()) != MAGIC)
+            return;
+        byte type = frame.get(frame.position() + 1);
+        if (type == TYPE_DATA && frame.remaining() >= DATA_HEADER_BYTES)
+            onData(from, frame);
+        else if (type == TYPE_ACK && frame.remaining() >= ACK_BYTES)
+            onAck(from, frame);
+    }
+
+    public void close() {
+        ticker.shutdownNow();
+        for (Outgoing out : outgoing.values())
+            out.done.completeExceptionally(new IOException("Transport closed"));
+        outgoing.clear();
+    }
+
+    private void onData(InetSocketAddress from, ByteBuffer frame) {
+        int base = frame.position();
+        int id = frame.getInt(base + 2);
+        int index = frame.getInt(base + 6);
+        int count = frame.getInt(base + 10);
+        int payloadLength = frame.remaining() - DATA_HEADER_BYTES;
+        if (count <= 0 || count > maxFragments || index < 0 || index >= count)
+            return;
+
+        Peer peer = peerFor(from);
+        long now = System.currentTimeMillis();
+        peer.lastSeen = now;
+        peer.framed = true;
+        ByteBuffer delivered = null;
+        int ackCumulative;
+        long ackBitmap;
+        synchronized (peer) {
+            if (peer.forgotten)
+                return;
+            int completedCount = peer.completedCount(id);
+            if (completedCount == count) {
+                sendAck(from, id, count, 0L);
+                return;
+            }
+            Incoming in = peer.incoming.get(id);
+            if (in == null) {
+                int overhead = Incoming.overhead(count);
+                if (peer.incoming.size() >= MAX_INCOMING_PER_PEER || !reserve(peer.host, overhead, payloadLength))
+                    return;
+                in = new Incoming(id, count);
+                peer.incoming.put(id, in);
+            }
+            if (in.count != count)
+                return;
+            in.lastActivity = now;
+            if (!in.received.get(index)) {
+                if (!reserve(peer.host, payloadLength, 0))
+                    return;
+                byte[] part = new byte[payloadLength];
+                frame.duplicate().position(base + DATA_HEADER_BYTES).get(part);
+                in.parts[index] = part;
+                in.received.set(index);
+                in.receivedCount++;
+                in.bytes += payloadLength;
+                while (in.cumulative < count && in.received.get(in.cumulative))
+                    in.cumulative++;
+            }
+
+            boolean complete = in.receivedCount == count;
+            boolean outOfOrder = index >= in.cumulative;
+            if (!complete && !outOfOrder && in.receivedCount % ACK_EVERY != 0) {
+                in.ackPending = true;
+                return;
+            }
+            in.ackPending = false;
+            ackCumulative = in.cumulative;
+            ackBitmap = bitmap(in.received, in.cumulative, count);
+            if (complete) {
+                peer.incoming.remove(id);
+                release(peer.host, in.charged());
+                peer.markCompleted(id, count);
+                byte[] message = new byte[in.bytes];
+                int pos = 0;
+                for (byte[] part : in.parts) {
+                    System.arraycopy(part, 0, message, pos, part.length);
+                    pos += part.length;
+                }
+                delivered = ByteBuffer.wrap(message);
+            }
+        }
+        sendAck(from, id, ackCumulative, ackBitmap);
+        if (delivered != null)
+            receiver.onMessage(from, delivered);
+    }
+
+    private void onAck(InetSocketAddress from, ByteBuffer frame) {
+        int base = frame.position();
+        int id = frame.getInt(base + 2);
+        int cumulative = frame.getInt(base + 6);
+        long bitmap = frame.getLong(base + 10);
+        Outgoing out = outgoing.get(new OutKey(from, id));
+        if (out == null)
+            return;
+        long now = System.currentTimeMillis();
+        out.peer.lastSeen = now;
+        out.peer.framed = true;
+        synchronized (out) {
+            int highestAcked = -1;
+            for (int i = 0; i < Math.min(cumulative, out.count); i++)
+                ack(out, i);
+            for (int bit = 0; bit < 64; bit++) {
+                if ((bitmap & (1L << bit)) != 0) {
+                    int index = cumulative + 1 + bit;
+                    if (index < out.count) {
+                        ack(out, index);
+                        highestAcked = index;
+                    }
+                }
+            }
+            out.retries = 0;
+            out.rto = out.peer.rto();
+            if (out.ackedCount == out.count) {
+                outgoing.remove(out.key);
+                out.done.complete(null);
+                return;
+            }
+            // Holes below a selectively acked fragment were lost (or overtaken); resend them right away.
+            for (int i = cumulative; i < highestAcked; i++) {
+                if (!out.acked.get(i) && out.sentAt[i] > 0 && now - out.sentAt[i] >= ACK_DELAY_MILLIS)
+                    sendFragment(out, i, now);
+            }
+            fillWindow(out, now);
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        try {
+            for (Outgoing out : outgoing.values()) {
+                synchronized (out) {
+                    boolean resent = false;
+                    for (int i = out.acked.nextClearBit(0); i < out.nextToSend; i = out.acked.nextClearBit(i + 1)) {
+                        if (now - out.sentAt[i] >= out.rto) {
+                            sendFragment(out, i, now);
+                            resent = true;
+                        }
+                    }
+                    if (resent) {
+                        out.retries++;
+                        out.rto = Math.min(MAX_RTO_MILLIS, out.rto * 2);
+                        if (out.retries > MAX_RETRIES) {
+                            outgoing.remove(out.key);
+                            out.done.completeExceptionally(new IOException("No acknowledgement from " + out.key.to));
+                        }
+                    }
+                }
+            }
+
+            List<Peer> idle = new ArrayList<>();
+            for (Peer peer : peers.values()) {
+                synchronized (peer) {
+                    for (Iterator<Incoming> ins = peer.incoming.values().iterator(); ins.hasNext();) {
+                        Incoming in = ins.next();
+                        if (now - in.lastActivity > REASSEMBLY_TIMEOUT_MILLIS) {
+                            ins.remove();
+                            release(peer.host, in.charged());
+                        } else if (in.ackPending && now - in.lastActivity >= ACK_DELAY_MILLIS) {
+                            in.ackPending = false;
+                            sendAck(peer.address, in.id, in.cumulative, bitmap(in.received, in.cumulative,
+                                    in.count));
+                        }
+                    }
+                    if (peer.incoming.isEmpty() && now - peer.lastSeen > PEER_IDLE_MILLIS)
+                        idle.add(peer);
+                }
+            }
+            if (!idle.isEmpty()) {
+                synchronized (hosts) {
+                    for (Peer peer : idle)
+                        if (peer.incoming.isEmpty() && now - peer.lastSeen > PEER_IDLE_MILLIS)
+                            forget(peer);
+                }
+            }
+        } catch (RuntimeException e) {
+            ServerLog.error("Reliable UDP ticker error", e);
+        }
+    }
+
+    // The peer of an address, added if new. A full table makes room first: a host that has its share of the
+    // table gives up its own oldest peer, otherwise the oldest peer not heard from lately goes. Either way the
+    // dropped peer's half-received messages are discarded and its next frames start afresh.
+    private Peer peerFor(InetSocketAddress address) {
+        Peer peer = peers.get(address);
+        if (peer != null)
+            return peer;
+        synchronized (hosts) {
+            peer = peers.get(address);
+            if (peer != null)
+                return peer;
+            Host host = hosts.computeIfAbsent(address.getAddress(), a -> new Host());
+            if (host.peers.size() >= maxHostPeers)
+                forget(peers.get(host.peers.iterator().next()));
+            else if (peers.size() >= maxPeers)
+                forget(evictionCandidate());
+            peer = new Peer(address, host);
+            peer.lastSeen = System.currentTimeMillis();
+            host.peers.add(address);
+            hosts.putIfAbsent(address.getAddress(), host);
+            evictionOrder.put(address, peer);
+            peers.put(address, peer);
+            return peer;
+        }
+    }
+
+    // Second chance in the order peers were added: one heard from lately goes to the back, and the first that
+    // was not is the candidate. After EVICTION_SCAN recent ones the one at the front is taken anyway. Callers
+    // hold the hosts lock.
+    private Peer evictionCandidate() {
+        long now = System.currentTimeMillis();
+        for (int scanned = 0; ; scanned++) {
+            Peer oldest = evictionOrder.values().iterator().next();
+            if (scanned >= EVICTION_SCAN || now - oldest.lastSeen >= PEER_RECENT_MILLIS)
+                return oldest;
+            evictionOrder.remove(oldest.address);
+            evictionOrder.put(oldest.address, oldest);
+        }
+    }
+
+    // Callers hold the hosts lock.
+    private void forget(Peer peer) {
+        if (peer == null || !peers.remove(peer.address, peer))
+            return;
+        evictionOrder.remove(peer.address);
+        peer.host.peers.remove(peer.address);
+        if (peer.host.peers.isEmpty())
+            hosts.remove(peer.address.getAddress(), peer.host);
+        synchronized (peer) {
+            peer.forgotten = true;
+            for (Incoming in : peer.incoming.values())
+                release(peer.host, in.charged());
+            peer.incoming.clear();
+        }
+    }
+
+    // Charges bytes to the host and to the total, provided both stay within their budgets with room for more.
+    private boolean reserve(Host host, int bytes, int more) {
+        synchronized (host) {
+            if (host.bufferedBytes + bytes + more > maxPeerBytes)
+                return false;
+            if (bufferedBytes.addAndGet(bytes) + more > maxBufferedBytes) {
+                bufferedBytes.addAndGet(-bytes);
+                return false;
+            }
+            host.bufferedBytes += bytes;
+            return true;
+        }
+    }
+
+    private void release(Host host, int bytes) {
+        synchronized (host) {
+            host.bufferedBytes -= bytes;
+        }
+        bufferedBytes.addAndGet(-bytes);
+    }
+
+    private void fillWindow(Outgoing out, long now) {
+        int firstUnacked = out.acked.nextClearBit(0);
+        while (out.nextToSend < out.count && out.nextToSend < firstUnacked + WINDOW) {
+            sendFragment(out, out.nextToSend, now);
+            out.nextToSend++;
+        }
+    }
+
+    private void ack(Outgoing out, int index) {
+        if (!out.acked.get(index)) {
+            out.acked.set(index);
+            out.ackedCount++;
+            // Karn's rule: only fragments that were sent once give an unambiguous round-trip sample.
+            if (!out.resent.get(index) && out.sentAt[index] > 0)
+                out.peer.sampleRtt(System.currentTimeMillis() - out.sentAt[index]);
+        }
+    }
+
+    private void sendFragment(Outgoing out, int index, long now) {
+        int offset = index * fragmentBytes;
+        int length = Math.min(fragmentBytes, out.data.length - offset);
+        ByteBuffer frame = ByteBuffer.allocate(DATA_HEADER_BYTES + Math.max(0, length));
+        frame.put(MAGIC).put(TYPE_DATA).putInt(out.key.id).putInt(index).putInt(out.count);
+        if (length > 0)
+            frame.put(out.data, offset, length);
+        frame.flip();
+        if (out.sentAt[index] > 0)
+            out.resent.set(index);
+        out.sentAt[index] = now;
+        try {
+            sender.send(out.key.to, frame);
+        } catch (IOException e) {
+            // left to the retransmit timer
+        }
+    }
+
+    private void sendAck(InetSocketAddress to, int id, int cumulative, long bitmap) {
+        ByteBuffer frame = ByteBuffer.allocate(ACK_BYTES);
+        frame.put(MAGIC).put(TYPE_ACK).putInt(id).putInt(cumulative).putLong(bitmap);
+        frame.flip();
+        try {
+            sender.send(to, frame);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static long bitmap(BitSet received, int cumulative, int count) {
+        long bitmap = 0;
+        for (int bit = 0; bit < 64 && cumulative + 1 + bit < count; bit++)
+            if (received.get(cumulative + 1 + bit))
+                bitmap |= 1L << bit;
+        return bitmap;
+    }
+}
@@ -0,0 +1,483 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+// Inverted index of one mailbox: for every term, the ids of the mails containing it. Terms are the sender
+// ("f:alice"), title words ("t:...") and body words ("b:..."). Each posting list is the ids in increasing order
+// as varint deltas, so a term seen in every mail of a 100k inbox costs about 100 KB and decodes in well under a
+// millisecond.
+//
+// On disk it lives next to the mailbox as search.idx, a snapshot of all posting lists, and search.log, the terms
+// of every mail added since. The log is replayed on open and folded into a new snapshot once it grows to half
+// the snapshot's size. A mail delivered while the index is not loaded is only appended to the log, marked so
+// that replay takes it just when it directly follows the mails indexed before it. Both files are derived data
+// and are never forced: whatever a crash loses is indexed again from the mailbox by MailSearch.
+public class SearchIndex {
+    public static final String SNAPSHOT_FILE_NAME = "search.idx";
+    public static final String LOG_FILE_NAME = "search.log";
+    private static final int SNAPSHOT_MAGIC = 0x4D535831;
+    private static final long MIN_LOG_BYTES_BEFORE_SNAPSHOT = 64 * 1024;
+    private static final int MIN_WORD_LENGTH = 2;
+    private static final int MAX_WORD_LENGTH = 40;
+
+    // Ids in increasing order, stored as varint-encoded gaps.
+    static final class Postings {
+        byte[] data;
+        int length;
+        int count;
+        long last;
+
+        Postings() {
+            this.data = new byte[8];
+        }
+
+        Postings(byte[] data, int count, long last) {
+            this.data = data;
+            this.length = data.length;
+            this.count = count;
+            this.last = last;
+        }
+
+        void add(long id) {
+            if (length + 10 > data.length)
+                data = Arrays.copyOf(data, Math.max(16, data.length * 2));
+            long gap = id - last;
+            while ((gap & ~0x7FL) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+            last = id;
+            count++;
+        }
+
+        long[] ids() {
+            long[] ids = new long[count];
+            long id = 0;
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += gap;
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+
+    private final Path dir;
+    private final Map<String, Postings> terms = new HashMap<>();
+    private volatile long lastId;
+    private long snapshotBytes;
+    private long logBytes;
+    private FileChannel log;
+
+    private SearchIndex(Path dir) {
+        this.dir = dir;
+    }
+
+    // Loads the snapshot and replays the log; a missing or damaged snapshot starts the index empty.
+    public static SearchIndex open(Path dir) throws IOException {
+        SearchIndex index = new SearchIndex(dir);
+        if (!index.loadSnapshot()) {
+            index.clear();
+            Files.deleteIfExists(dir.resolve(LOG_FILE_NAME));
+            return index;
+        }
+        index.replayLog();
+        return index;
+    }
+
+    public Path dir() {
+        return dir;
+    }
+
+    // The newest mail indexed; every earlier mail of the mailbox is indexed too. Read without the lock, so a
+    // delivery can see that a long catch-up is still running and leave the mail to it.
+    public long lastId() {
+        return lastId;
+    }
+
+    public synchronized int termCount() {
+        return terms.size();
+    }
+
+    // Adds the mail after lastId; anything else is left for MailSearch to catch up on. False if not added.
+    public synchronized boolean add(long id, Set<String> mailTerms) throws IOException {
+        if (id <= lastId)
+            return false;
+        appendLog(id, mailTerms);
+        index(id, mailTerms);
+        if (logBytes >= Math.max(MIN_LOG_BYTES_BEFORE_SNAPSHOT, snapshotBytes / 2))
+            snapshot();
+        return true;
+    }
+
+    // Logs a delivered mail for the index in dir without loading it. A mail after a gap, such as one the log lost
+    // in a crash, is skipped on replay and left for MailSearch to catch up on with the mails before it.
+    public static void appendDelivered(Path dir, long id, Set<String> mailTerms) throws IOException {
+        ByteBuffer record = logRecord(id, mailTerms, true);
+        try (FileChannel channel = FileChannel.open(dir.resolve(LOG_FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining())
+                channel.write(record);
+        }
+    }
+
+    // Ids of the mails that satisfy every clause, in increasing order. A clause matches a mail holding any of
+    // its terms.
+    public synchronized long[] matches(List<List<String>> clauses) {
+        long[] result = null;
+        for (List<String> clause : clauses) {
+            long[] ids = new long[0];
+            for (String term : clause) {
+                Postings postings = terms.get(term);
+                if (postings != null)
+                    ids = union(ids, postings.ids());
+            }
+            result = result == null ? ids : intersect(result, ids);
+            if (result.length == 0)
+                break;
+        }
+        return result == null ? new long[0] : result;
+    }
+
+    // Forgets everything, for a mailbox that was replaced by a shorter one.
+    public synchronized void reset() throws IOException {
+        closeLog();
+        clear();
+        Files.deleteIfExists(dir.resolve(LOG_FILE_NAME));
+        Files.deleteIfExists(dir.resolve(SNAPSHOT_FILE_NAME));
+    }
+
+    public synchronized void close() {
+        closeLog();
+    }
+
+    // The terms of a mail. Words are runs of letters and digits, lower-cased; single letters and very long runs
+    // are left out, numbers are kept at any length.
+    public static Set<String> terms(String from, String title, CharSequence body) {
+        Set<String> out = new HashSet<>();
+        if (from != null && !from.isEmpty())
+            out.add("f:" + from.toLowerCase());
+        if (title != null)
+            words(title, "t:", out);
+        if (body != null)
+            words(body, "b:", out);
+        return out;
+    }
+
+    // "from:alice title:report budget" is three clauses: the sender, a title word, and a word in any field.
+    public static List<List<String>> parseQuery(String query) {
+        List<List<String>> clauses = new ArrayList<>();
+        for (String token : query.trim().split("\\s+")) {
+            if (token.isEmpty())
+                continue;
+            int colon = token.indexOf(':');
+            String field = colon > 0 ? token.substring(0, colon).toLowerCase() : "";
+            String value = colon > 0 ? token.substring(colon + 1) : token;
+            if (field.equals("from")) {
+                if (!value.isEmpty())
+                    clauses.add(List.of("f:" + value.toLowerCase()));
+                continue;
+            }
+            String prefix = field.equals("title") ? "t:" : field.equals("body") ? "b:" : null;
+            if (prefix == null)
+                value = token;
+            Set<String> words = new HashSet<>();
+            words(value, "", words);
+            for (String word : words) {
+                if (prefix != null)
+                    clauses.add(List.of(prefix + word));
+                else
+                    clauses.add(List.of("t:" + word, "b:" + word, "f:" + word));
+            }
+        }
+        if (clauses.isEmpty())
+            throw new IllegalArgumentException("Search for at least one number or word of " + MIN_WORD_LENGTH
+                    + " or more letters");
+        return clauses;
+    }
+
+    private static void words(CharSequence text, String prefix, Set<String> out) {
+        StringBuilder word = new StringBuilder(prefix);
+        int length = 0;
+        boolean number = true;
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? Character.codePointAt(text, i) : ' ';
+            i += i < text.length() ? Character.charCount(c) : 1;
+            if (Character.isLetterOrDigit(c)) {
+                word.appendCodePoint(Character.toLowerCase(c));
+                number &= Character.isDigit(c);
+                length++;
+                continue;
+            }
+            if (length > 0 && (length >= MIN_WORD_LENGTH || number) && length <= MAX_WORD_LENGTH)
+                out.add(word.toString());
+            word.setLength(prefix.length());
+            length = 0;
+            number = true;
+        }
+    }
+
+    private void index(long id, Set<String> mailTerms) {
+        for (String term : mailTerms)
+            terms.computeIfAbsent(term, t -> new Postings()).add(id);
+        lastId = id;
+    }
+
+    private void clear() {
+        terms.clear();
+        lastId = 0;
+        snapshotBytes = 0;
+        logBytes = 0;
+    }
+
+    private void appendLog(long id, Set<String> mailTerms) throws IOException {
+        ByteBuffer record = logRecord(id, mailTerms, false);
+        if (log == null) {
+            Files.createDirectories(dir);
+            log = FileChannel.open(dir.resolve(LOG_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        logBytes += record.remaining();
+        while (record.hasRemaining())
+            log.write(record);
+    }
+
+    // Log record: int length, with the top bit set for a mail logged by appendDelivered, int CRC32 of the
+    // payload, then varint id, varint term count, and the terms as varint length + UTF-8.
+    private static ByteBuffer logRecord(long id, Set<String> mailTerms, boolean delivered) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(16 + mailTerms.size() * 12);
+        writeVarint(payload, id);
+        writeVarint(payload, mailTerms.size());
+        for (String term : mailTerms) {
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            writeVarint(payload, bytes.length);
+            payload.write(bytes, 0, bytes.length);
+        }
+        byte[] body = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+        record.putInt(delivered ? body.length | Integer.MIN_VALUE : body.length).putInt((int) crc.getValue())
+                .put(body).flip();
+        return record;
+    }
+
+    private void replayLog() throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(dir.resolve(LOG_FILE_NAME));
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        while (in.remaining() >= 8) {
+            int start = in.position();
+            int length = in.getInt();
+            boolean delivered = length < 0;
+            length &= Integer.MAX_VALUE;
+            int expected = in.getInt();
+            if (length > in.remaining())
+                break;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, in.position(), length);
+            if ((int) crc.getValue() != expected)
+                break;
+            ByteBuffer payload = in.slice();
+            payload.limit(length);
+            in.position(in.position() + length);
+            long id;
+            Set<String> mailTerms = new HashSet<>();
+            try {
+                id = readVarint(payload);
+                int count = (int) readVarint(payload);
+                for (int i = 0; i < count; i++) {
+                    int termLength = (int) readVarint(payload);
+                    mailTerms.add(new String(bytes, start + 8 + payload.position(), termLength,
+                            StandardCharsets.UTF_8));
+                    payload.position(payload.position() + termLength);
+                }
+            } catch (RuntimeException e) {
+                break;
+            }
+            if (delivered ? id == lastId + 1 : id > lastId)
+                index(id, mailTerms);
+            logBytes = in.position();
+        }
+        if (logBytes < bytes.length) {
+            // A torn tail from a crash; cut it off so new records are not appended after garbage.
+            try (FileChannel channel = FileChannel.open(dir.resolve(LOG_FILE_NAME), StandardOpenOption.WRITE)) {
+                channel.truncate(logBytes);
+            }
+        }
+    }
+
+    // Snapshot: int magic, long lastId, int term count, then per term varint length + UTF-8, varint count,
+    // long last id, varint byte length and the posting bytes; a CRC32 of everything before it at the end.
+    private boolean loadSnapshot() throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(dir.resolve(SNAPSHOT_FILE_NAME));
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+        if (bytes.length < 20)
+            return false;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (in.getInt(bytes.length - 4) != (int) crc.getValue() || in.getInt() != SNAPSHOT_MAGIC)
+            return false;
+        try {
+            lastId = in.getLong();
+            int termCount = in.getInt();
+            for (int i = 0; i < termCount; i++) {
+                int termLength = (int) readVarint(in);
+                String term = new String(bytes, in.position(), termLength, StandardCharsets.UTF_8);
+                in.position(in.position() + termLength);
+                int count = (int) readVarint(in);
+                long last = in.getLong();
+                byte[] data = new byte[(int) readVarint(in)];
+                in.get(data);
+                terms.put(term, new Postings(data, count, last));
+            }
+        } catch (RuntimeException e) {
+            ServerLog.warn("Ignoring damaged search index " + dir.resolve(SNAPSHOT_FILE_NAME) + ": " + e);
+            return false;
+        }
+        snapshotBytes = bytes.length;
+        return true;
+    }
+
+    private void snapshot() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE / 2,
+                snapshotBytes + logBytes));
+        ByteBuffer fixed = ByteBuffer.allocate(16);
+        fixed.putInt(SNAPSHOT_MAGIC).putLong(lastId).putInt(terms.size());
+        out.write(fixed.array(), 0, 16);
+        for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+            byte[] term = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            Postings postings = entry.getValue();
+            writeVarint(out, term.length);
+            out.write(term, 0, term.length);
+            writeVarint(out, postings.count);
+            fixed.clear();
+            fixed.putLong(postings.last);
+            out.write(fixed.array(), 0, 8);
+            writeVarint(out, postings.length);
+            out.write(postings.data, 0, postings.length);
+        }
+        CRC32 crc = new CRC32();
+        byte[] bytes = out.toByteArray();
+        crc.update(bytes);
+        Path target = dir.resolve(SNAPSHOT_FILE_NAME);
+        Path tmp = dir.resolve(SNAPSHOT_FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            ByteBuffer tail = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+            tail.flip();
+            while (tail.hasRemaining())
+                channel.write(tail);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Records up to lastId are in the snapshot now; a log that survives a crash here is skipped on replay.
+        closeLog();
+        Files.deleteIfExists(dir.resolve(LOG_FILE_NAME));
+        snapshotBytes = bytes.length + 4;
+        logBytes = 0;
+    }
+
+    private void closeLog() {
+        if (log == null)
+            return;
+        try {
+            log.close();
+        } catch (IOException ignored) {
+        }
+        log = null;
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        if (a.length == 0)
+            return b;
+        long[] out = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                out[n++] = a[i++];
+            else if (a[i] > b[j])
+                out[n++] = b[j++];
+            else {
+                out[n++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length)
+            out[n++] = a[i++];
+        while (j < b.length)
+            out[n++] = b[j++];
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] out = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                out[n++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
@@ -0,0 +1,731 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+// Stores each mailbox as a sequence of append-only segment files under <user>/segments. Every record is
+// [magic][payload length][crc32 of payload][payload] and the payload starts with a type byte and the message id,
+// so a torn tail is detected and the header index can always be rebuilt from the segments alone. A shared mail
+// record has the same layout with the key of a BodyStore body in place of the content. Removing a mail appends a
+// tombstone; compaction drops both later. Other folders repeat the layout under <user>/folders/<name>.
+public class SegmentMailStore implements MailStore {
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    static final int RECORD_MAGIC = 0x4D524543;
+    static final int RECORD_HEADER_BYTES = 12;
+    static final byte TYPE_MAIL = 1;
+    static final byte TYPE_TOMBSTONE = 2;
+    static final byte TYPE_SHARED_MAIL = 3;
+
+    private static final String SEGMENTS_DIR = "segments";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_FILE_NAME = "segments.idx";
+    private static final int MAX_OPEN_WRITERS = 256;
+    private static final int MAX_MAPPED_SEGMENTS = 128;
+
+    public static class Record {
+        public final byte type;
+        public final long id;
+        public final String from;
+        public final String date;
+        public final String title;
+        public final String content;
+        final int encodedSize;
+
+        Record(byte type, long id, String from, String date, String title, String content) {
+            this(type, id, from, date, title, content, 0);
+        }
+
+        Record(byte type, long id, String from, String date, String title, String content, int encodedSize) {
+            this.encodedSize = encodedSize;
+            this.type = type;
+            this.id = id;
+            this.from = from;
+            this.date = date;
+            this.title = title;
+            this.content = content;
+        }
+    }
+
+    private static class SegmentWriter {
+        final int segmentNo;
+        final FileChannel channel;
+        long size;
+        boolean dirty;
+
+        SegmentWriter(int segmentNo, FileChannel channel, long size) {
+            this.segmentNo = segmentNo;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private final File mailboxesDir;
+    private final long segmentBytes;
+    private final MailboxIndexCache indexes;
+    private final BodyStore bodies;
+    private final Map<String, SegmentWriter> writers;
+    // Folders appended to since the last sync, whose index and directory entries sync forces too.
+    private final Set<Path> unsyncedFolders = ConcurrentHashMap.newKeySet();
+    private final Map<Path, MappedByteBuffer> mappings = new LinkedHashMap<Path, MappedByteBuffer>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, MappedByteBuffer> eldest) {
+            return size() > MAX_MAPPED_SEGMENTS;
+        }
+    };
+    // Bumped under the mappings lock whenever mappings are dropped because their files were replaced or removed.
+    private long mappingsCleared;
+
+    public SegmentMailStore(File mailboxesDir, int cachedIndexes, long segmentBytes) {
+        this(mailboxesDir, cachedIndexes, segmentBytes, MailStore.sharedBodies(mailboxesDir));
+    }
+
+    public SegmentMailStore(File mailboxesDir, int cachedIndexes, long segmentBytes, BodyStore bodies) {
+        this.mailboxesDir = mailboxesDir;
+        this.segmentBytes = segmentBytes;
+        this.bodies = bodies;
+        this.indexes = new MailboxIndexCache(this::loadIndex, cachedIndexes);
+        this.writers = new LinkedHashMap<String, SegmentWriter>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SegmentWriter> eldest) {
+                if (size() <= MAX_OPEN_WRITERS)
+                    return false;
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public MailboxIndex.Entry deliver(String recipient, long id, String from, String date, String title,
+            String content) throws IOException {
+        return append(recipient, id, TYPE_MAIL, from, date, title, content);
+    }
+
+    @Override
+    public String shareBody(String content, int references) throws IOException {
+        return bodies.put(content, references);
+    }
+
+    @Override
+    public void retainBody(String bodyKey) throws IOException {
+        bodies.retain(bodyKey, 1);
+    }
+
+    @Override
+    public void releaseBody(String bodyKey) throws IOException {
+        bodies.release(bodyKey);
+    }
+
+    @Override
+    public MailboxIndex.Entry deliverShared(String recipient, long id, String from, String date, String title,
+            String bodyKey) throws IOException {
+        return append(recipient, id, TYPE_SHARED_MAIL, from, date, title, bodyKey);
+    }
+
+    BodyStore bodies() {
+        return bodies;
+    }
+
+    private MailboxIndex.Entry append(String recipient, long id, byte type, String from, String date, String title,
+            String content) throws IOException {
+        synchronized (indexes.lockFor(recipient)) {
+            MailboxIndex index = indexes.get(recipient, INBOX);
+            if (id > 0 && id < index.nextId())
+                throw new IOException("Message id " + id + " of " + recipient + " is taken, next is " + index.nextId());
+            if (id <= 0)
+                id = index.nextId();
+            String location = write(recipient, INBOX, new Record(type, id, from, date, title, content));
+            return index.append(new MailboxIndex.Entry(id, location, date, from, title));
+        }
+    }
+
+    // Appends one record to the active segment of a folder and returns its location. Callers hold the user's lock.
+    private String write(String username, String folder, Record record) throws IOException {
+        ByteBuffer encoded = encode(record);
+        SegmentWriter writer = writerFor(username, folder);
+        if (writer.size > 0 && writer.size + encoded.remaining() > segmentBytes) {
+            writer = roll(username, folder, writer);
+        }
+        long offset = writer.size;
+        try {
+            writeFully(writer.channel, encoded, offset);
+        } catch (ClosedChannelException e) {
+            // Another mailbox evicted this writer from the open-writer cache; reopen and retry once.
+            synchronized (writers) {
+                writers.remove(MailboxIndexCache.key(username, folder), writer);
+            }
+            writer = writerFor(username, folder);
+            offset = writer.size;
+            encoded.rewind();
+            writeFully(writer.channel, encoded, offset);
+        }
+        writer.size = offset + encoded.limit();
+        writer.dirty = true;
+        unsyncedFolders.add(folderDir(username, folder).toPath());
+        return writer.segmentNo + ":" + offset;
+    }
+
+    @Override
+    public MailboxIndex index(String username, String folder) throws IOException {
+        return indexes.get(username, folder);
+    }
+
+    // Tombstones go to the segments before the index forgets the mails, so a crash in between only brings back
+    // an index that still lists them until it is rebuilt.
+    @Override
+    public List<MailboxIndex.Entry> expunge(String username, String folder, Collection<Long> ids)
+            throws IOException {
+        List<String> released = new ArrayList<>();
+        List<MailboxIndex.Entry> removed;
+        synchronized (indexes.lockFor(username)) {
+            MailboxIndex index = indexes.get(username, folder);
+            List<Long> found = new ArrayList<>();
+            for (long id : ids) {
+                MailboxIndex.Entry entry = index.find(id);
+                if (entry == null)
+                    continue;
+                Record record = readRecord(username, folder, entry);
+                write(username, folder, new Record(TYPE_TOMBSTONE, id, null, null, null, null));
+                if (record.type == TYPE_SHARED_MAIL)
+                    released.add(record.content);
+                found.add(id);
+            }
+            removed = index.remove(found);
+        }
+        for (String bodyKey : released)
+            bodies.release(bodyKey);
+        return removed;
+    }
+
+    // Copies each record into the target folder under a new id, then tombstones the original. A shared body
+    // keeps its one reference, which now belongs to the copy.
+    @Override
+    public List<MailboxIndex.Entry> move(String username, String folder, Collection<Long> ids, String target)
+            throws IOException {
+        if (INBOX.equals(target))
+            throw new IllegalArgumentException("Mail cannot be moved into the inbox");
+        List<MailboxIndex.Entry> moved = new ArrayList<>();
+        if (folder.equals(target))
+            return moved;
+        synchronized (indexes.lockFor(username)) {
+            MailboxIndex from = indexes.get(username, folder);
+            MailboxIndex to = indexes.get(username, target);
+            List<Long> found = new ArrayList<>();
+            for (long id : ids) {
+                MailboxIndex.Entry entry = from.find(id);
+                if (entry == null)
+                    continue;
+                Record record = readRecord(username, folder, entry);
+                long newId = to.nextId();
+                String location = write(username, target, new Record(record.type, newId, record.from,
+                        record.date, record.title, record.content));
+                moved.add(to.append(new MailboxIndex.Entry(newId, location, entry.date, entry.from, entry.title)));
+                write(username, folder, new Record(TYPE_TOMBSTONE, id, null, null, null, null));
+                found.add(id);
+            }
+            from.remove(found);
+        }
+        return moved;
+    }
+
+    private Record readRecord(String username, String folder, MailboxIndex.Entry entry) throws IOException {
+        int sep = entry.location.indexOf(':');
+        Path segment = segmentFile(username, folder, Integer.parseInt(entry.location.substring(0, sep)));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            Record record = readRecord(channel, Long.parseLong(entry.location.substring(sep + 1)));
+            if (record == null || record.type == TYPE_TOMBSTONE || record.id != entry.id)
+                throw new IOException("Mail record at " + entry.location + " does not match id " + entry.id);
+            return record;
+        }
+    }
+
+    @Override
+    public void compact(String username, Throttle throttle) throws IOException {
+        for (String folder : folders(username))
+            compact(username, folder, throttle);
+    }
+
+    // Rewrites the sealed segments of a folder, dropping removed mails and torn records, and repacks the
+    // survivors into as few segments as fit. Sealed segments never change, so they are read and rewritten without
+    // the user's lock, at the throttle's pace; only swapping the results in takes it. The active segment is left
+    // alone, and so are sealed segments that hold nothing to drop.
+    private void compact(String username, String folder, Throttle throttle) throws IOException {
+        List<Integer> segments = listSegments(username, folder);
+        if (segments.size() < 2)
+            return;
+        List<Integer> sealed = segments.subList(0, segments.size() - 1);
+
+        int active = segments.get(segments.size() - 1);
+        Set<Long> deleted = new HashSet<>();
+        long before = 0;
+        long sealedRecords = 0;
+        boolean torn = false;
+        for (int segmentNo : segments) {
+            Path segment = segmentFile(username, folder, segmentNo);
+            long size = Files.size(segment);
+            throttle.pace(size);
+            long valid = 0;
+            List<Record> records = readSegment(segment);
+            for (Record record : records) {
+                if (record.type == TYPE_TOMBSTONE)
+                    deleted.add(record.id);
+                valid += record.encodedSize;
+            }
+            if (segmentNo != active) {
+                sealedRecords += records.size();
+                before += size;
+                torn |= valid < size;
+            }
+        }
+        // Every sealed record the index still lists is kept; anything else is worth a rewrite.
+        Set<Integer> sealedSet = new HashSet<>(sealed);
+        long live = 0;
+        for (MailboxIndex.Entry entry : indexes.get(username, folder).entries())
+            if (sealedSet.contains(Integer.parseInt(entry.location.substring(0, entry.location.indexOf(':')))))
+                live++;
+        if (!torn && live >= sealedRecords)
+            return;
+
+        long after = 0;
+        List<Path> outputs = new ArrayList<>();
+        FileChannel out = null;
+        long position = 0;
+        try {
+            for (int segmentNo : sealed) {
+                for (Record record : readSegment(segmentFile(username, folder, segmentNo))) {
+                    if (record.type == TYPE_TOMBSTONE || deleted.contains(record.id))
+                        continue;
+                    ByteBuffer encoded = encode(record);
+                    throttle.pace(encoded.limit());
+                    boolean full = position > 0 && position + encoded.limit() > segmentBytes;
+                    if (out == null || (full && outputs.size() < sealed.size())) {
+                        if (out != null) {
+                            out.force(true);
+                            out.close();
+                        }
+                        Path target = segmentFile(username, folder, sealed.get(outputs.size()));
+                        Path tmp = target.resolveSibling(target.getFileName() + ".compact");
+                        outputs.add(tmp);
+                        out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+                        position = 0;
+                    }
+                    writeFully(out, encoded, position);
+                    position += encoded.limit();
+                    after += encoded.limit();
+                }
+            }
+            if (out != null)
+                out.force(true);
+        } finally {
+            if (out != null)
+                out.close();
+        }
+
+        synchronized (indexes.lockFor(username)) {
+            // A stale index is rebuilt from the new segments on its next load, still knowing the ids it handed out.
+            Path indexFile = indexFile(username, folder).toPath();
+            if (Files.exists(indexFile))
+                Files.setLastModifiedTime(indexFile, FileTime.fromMillis(0));
+            for (int i = 0; i < sealed.size(); i++) {
+                Path target = segmentFile(username, folder, sealed.get(i));
+                if (i < outputs.size())
+                    Files.move(outputs.get(i), target, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                else
+                    Files.deleteIfExists(target);
+            }
+            indexes.invalidate(username, folder);
+            synchronized (mappings) {
+                mappings.keySet().removeIf(path -> path.startsWith(segmentsDir(username, folder)));
+                mappingsCleared++;
+            }
+        }
+        ServerLog.info("Compacted " + sealed.size() + " segment(s) of " + MailboxIndexCache.key(username, folder)
+                + " into " + outputs.size() + ": " + before + " -> " + after + " bytes");
+    }
+
+    @Override
+    public void sync() throws IOException {
+        bodies.sync();
+        List<SegmentWriter> dirty = new ArrayList<>();
+        synchronized (writers) {
+            for (SegmentWriter writer : writers.values()) {
+                if (writer.dirty) {
+                    writer.dirty = false;
+                    dirty.add(writer);
+                }
+            }
+        }
+        for (SegmentWriter writer : dirty) {
+            try {
+                writer.channel.force(false);
+            } catch (ClosedChannelException ignored) {
+                // evicted writers are forced as they are closed
+            }
+        }
+        // New segments and a new folder are entries in <folder>/segments, <folder> and the mailbox directory.
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Path folderDir : unsyncedFolders) {
+            unsyncedFolders.remove(folderDir);
+            MailStore.force(folderDir.resolve(INDEX_FILE_NAME));
+            dirs.add(folderDir.resolve(SEGMENTS_DIR));
+            dirs.add(folderDir);
+            dirs.add(folderDir.getParent());
+        }
+        for (Path dir : dirs)
+            MailStore.forceDirectory(dir);
+    }
+
+    @Override
+    public void evict(String username) {
+        synchronized (indexes.lockFor(username)) {
+            List<SegmentWriter> closing = new ArrayList<>();
+            synchronized (writers) {
+                writers.entrySet().removeIf(entry -> {
+                    String key = entry.getKey();
+                    if (!key.equals(username) && !key.startsWith(username + "/"))
+                        return false;
+                    closing.add(entry.getValue());
+                    return true;
+                });
+            }
+            for (SegmentWriter writer : closing)
+                closeQuietly(writer);
+            indexes.invalidate(username);
+            Path mailboxDir = mailboxDir(username).toPath();
+            synchronized (mappings) {
+                mappings.keySet().removeIf(path -> path.startsWith(mailboxDir));
+                mappingsCleared++;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (writers) {
+            for (SegmentWriter writer : writers.values())
+                closeQuietly(writer);
+            writers.clear();
+        }
+    }
+
+    // Returns a read-only view of the body straight out of the memory-mapped segment.
+    @Override
+    public ByteBuffer readBody(String username, String folder, MailboxIndex.Entry entry) throws IOException {
+        int sep = entry.location.indexOf(':');
+        Path segment = segmentFile(username, folder, Integer.parseInt(entry.location.substring(0, sep)));
+        long offset = Long.parseLong(entry.location.substring(sep + 1));
+        ByteBuffer body = readMapped(segment, offset, entry);
+        if (body == null) {
+            // The mapping may be of a segment compaction has replaced since; map the file again before giving up.
+            synchronized (mappings) {
+                mappings.remove(segment);
+            }
+            body = readMapped(segment, offset, entry);
+        }
+        if (body == null)
+            throw new IOException("Mail record at " + entry.location + " does not match id " + entry.id);
+        return body;
+    }
+
+    // null if the mapping holds no record of the entry at its offset.
+    private ByteBuffer readMapped(Path segment, long offset, MailboxIndex.Entry entry) throws IOException {
+        ByteBuffer view = mapped(segment, offset + RECORD_HEADER_BYTES).duplicate();
+        view.position((int) offset);
+        if (view.getInt() != RECORD_MAGIC)
+            return null;
+        int length = view.getInt();
+        view.getInt();
+        long end = offset + RECORD_HEADER_BYTES + length;
+        if (end > view.capacity()) {
+            view = mapped(segment, end).duplicate();
+            view.position((int) offset + RECORD_HEADER_BYTES);
+        }
+        view.limit((int) end);
+        byte type = view.get();
+        if ((type != TYPE_MAIL && type != TYPE_SHARED_MAIL) || view.getLong() != entry.id)
+            return null;
+        for (int field = 0; field < 3; field++) {
+            int fieldLength = view.getInt();
+            view.position(view.position() + fieldLength);
+        }
+        int contentLength = view.getInt();
+        view.limit(view.position() + contentLength);
+        if (type == TYPE_SHARED_MAIL)
+            return bodies.read(StandardCharsets.UTF_8.decode(view).toString());
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    // A mapping is only cached if no compaction or eviction dropped mappings while the file was being opened,
+    // so a read that raced a compaction cannot put back a mapping of the segment it replaced.
+    private MappedByteBuffer mapped(Path segment, long requiredEnd) throws IOException {
+        long cleared;
+        synchronized (mappings) {
+            MappedByteBuffer mapping = mappings.get(segment);
+            if (mapping != null && mapping.capacity() >= requiredEnd)
+                return mapping;
+            cleared = mappingsCleared;
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < requiredEnd)
+                throw new IOException("Segment " + segment + " is shorter than expected");
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Segment " + segment + " is too large to map");
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            synchronized (mappings) {
+                if (mappingsCleared == cleared)
+                    mappings.put(segment, mapping);
+            }
+            return mapping;
+        }
+    }
+
+    private SegmentWriter writerFor(String username, String folder) throws IOException {
+        String key = MailboxIndexCache.key(username, folder);
+        synchronized (writers) {
+            SegmentWriter writer = writers.get(key);
+            if (writer != null)
+                return writer;
+        }
+        List<Integer> segments = listSegments(username, folder);
+        int segmentNo = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        SegmentWriter writer = openWriter(username, folder, segmentNo);
+        synchronized (writers) {
+            writers.put(key, writer);
+        }
+        return writer;
+    }
+
+    private SegmentWriter roll(String username, String folder, SegmentWriter current) throws IOException {
+        current.channel.force(true);
+        current.dirty = false;
+        closeQuietly(current);
+        SegmentWriter next = openWriter(username, folder, current.segmentNo + 1);
+        synchronized (writers) {
+            writers.put(MailboxIndexCache.key(username, folder), next);
+        }
+        return next;
+    }
+
+    // Opens a segment for appending, truncating whatever a crash left behind after the last valid record.
+    private SegmentWriter openWriter(String username, String folder, int segmentNo) throws IOException {
+        Path segment = segmentFile(username, folder, segmentNo);
+        Files.createDirectories(segment.getParent());
+        FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long validEnd = 0;
+        while (true) {
+            Record record = readRecord(channel, validEnd);
+            if (record == null)
+                break;
+            validEnd += record.encodedSize;
+        }
+        if (validEnd < channel.size()) {
+            ServerLog.warn("Truncating torn tail of " + segment + " at " + validEnd);
+            channel.truncate(validEnd);
+        }
+        return new SegmentWriter(segmentNo, channel, validEnd);
+    }
+
+    private MailboxIndex loadIndex(String username, String folder) throws IOException {
+        return MailboxIndex.open(indexFile(username, folder).toPath(), new MailboxIndex.Source() {
+            @Override
+            public long lastModified() {
+                long newest = 0;
+                for (int segmentNo : listSegments(username, folder))
+                    newest = Math.max(newest, segmentFile(username, folder, segmentNo).toFile().lastModified());
+                return newest;
+            }
+
+            @Override
+            public void scan(List<MailboxIndex.Entry> out) throws IOException {
+                List<MailboxIndex.Entry> mails = new ArrayList<>();
+                Set<Long> deleted = new HashSet<>();
+                for (int segmentNo : listSegments(username, folder)) {
+                    Path segment = segmentFile(username, folder, segmentNo);
+                    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                        long position = 0;
+                        Record record;
+                        while ((record = readRecord(channel, position)) != null) {
+                            if (record.type == TYPE_TOMBSTONE)
+                                deleted.add(record.id);
+                            else
+                                mails.add(new MailboxIndex.Entry(record.id, segmentNo + ":" + position,
+                                        record.date, record.from, record.title));
+                            position += record.encodedSize;
+                        }
+                    }
+                }
+                mails.sort((a, b) -> Long.compare(a.id, b.id));
+                for (MailboxIndex.Entry mail : mails)
+                    if (!deleted.contains(mail.id))
+                        out.add(mail);
+            }
+        });
+    }
+
+    List<Integer> listSegments(String username, String folder) {
+        List<Integer> segments = new ArrayList<>();
+        String[] names = segmentsDir(username, folder).toFile().list((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    segments.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    boolean hasSegments(String username) {
+        return !listSegments(username, INBOX).isEmpty();
+    }
+
+    @Override
+    public File mailboxDir(String username) {
+        return new File(mailboxesDir, username);
+    }
+
+    private Path segmentsDir(String username, String folder) {
+        return new File(folderDir(username, folder), SEGMENTS_DIR).toPath();
+    }
+
+    private Path segmentFile(String username, String folder, int segmentNo) {
+        return segmentsDir(username, folder).resolve(String.format("%08d%s", segmentNo, SEGMENT_SUFFIX));
+    }
+
+    @Override
+    public File indexFile(String username, String folder) {
+        return new File(folderDir(username, folder), INDEX_FILE_NAME);
+    }
+
+    static List<Record> readSegment(Path segment) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long position = 0;
+            Record record;
+            while ((record = readRecord(channel, position)) != null) {
+                records.add(record);
+                position += record.encodedSize;
+            }
+        }
+        return records;
+    }
+
+    static ByteBuffer encode(Record record) {
+        byte[][] fields = record.type != TYPE_TOMBSTONE
+                ? new byte[][] { utf8(record.from), utf8(record.date), utf8(record.title), utf8(record.content) }
+                : new byte[0][];
+        int payload = 1 + 8;
+        for (byte[] field : fields)
+            payload += 4 + field.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload);
+        buffer.putInt(RECORD_MAGIC).putInt(payload).putInt(0);
+        buffer.put(record.type).putLong(record.id);
+        for (byte[] field : fields)
+            buffer.putInt(field.length).put(field);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_HEADER_BYTES, payload);
+        buffer.putInt(8, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    // Returns the record at position, or null at the end of the segment or at the first invalid record.
+    static Record readRecord(FileChannel channel, long position) throws IOException {
+        if (position + RECORD_HEADER_BYTES > channel.size())
+            return null;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(channel, header, position);
+        header.flip();
+        int magic = header.getInt();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (magic != RECORD_MAGIC || length < 9 || position + RECORD_HEADER_BYTES + length > channel.size())
+            return null;
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, position + RECORD_HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, length);
+        if ((int) crc.getValue() != checksum)
+            return null;
+
+        payload.flip();
+        byte type = payload.get();
+        long id = payload.getLong();
+        int encodedSize = RECORD_HEADER_BYTES + length;
+        if (type == TYPE_TOMBSTONE)
+            return new Record(type, id, null, null, null, null, encodedSize);
+        if (type != TYPE_MAIL && type != TYPE_SHARED_MAIL)
+            return null;
+        try {
+            return new Record(type, id, readString(payload), readString(payload), readString(payload),
+                    readString(payload), encodedSize);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer payload) {
+        int length = payload.getInt();
+        String value = new String(payload.array(), payload.arrayOffset() + payload.position(), length,
+                StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return value;
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new EOFException("Unexpected end of segment");
+            position += n;
+        }
+    }
+
+    private static void closeQuietly(SegmentWriter writer) {
+        try {
+            if (writer.dirty)
+                writer.channel.force(false);
+            writer.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
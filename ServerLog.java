@@ -0,0 +1,196 @@
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server log. Callers only put a record on a bounded queue; one daemon thread formats and prints them, so a slow
+// console never stalls a worker. When the queue is full records are dropped and counted instead of blocking.
+// The level (mail.logLevel) can be changed at runtime through JMX. Per-request lines are DEBUG and sampled:
+// only one request in mail.logSample is logged, so DEBUG stays usable under load.
+public final class ServerLog {
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG, TRACE
+    }
+
+    private static final class Record {
+        final long time;
+        final Level level;
+        final String thread;
+        final String message;
+        final Throwable error;
+
+        Record(Level level, String message, Throwable error) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+    private static final int BATCH = 256;
+
+    private static final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(
+            Math.max(16, Integer.getInteger("mail.logQueue", 8192)));
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Level level = parseLevel(System.getProperty("mail.logLevel", "INFO"), Level.INFO);
+    private static volatile int sampleEvery = Math.max(1, Integer.getInteger("mail.logSample", 100));
+    private static long reportedDrops;
+
+    static {
+        Thread writer = new Thread(ServerLog::writeLoop, "mail-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::flush, "mail-log-flush"));
+    }
+
+    private ServerLog() {
+    }
+
+    public static boolean enabled(Level wanted) {
+        return wanted.ordinal() <= level.ordinal();
+    }
+
+    public static boolean debugEnabled() {
+        return enabled(Level.DEBUG);
+    }
+
+    // True for about one call in mail.logSample while DEBUG is on; guards per-request lines.
+    public static boolean sampled() {
+        if (!debugEnabled())
+            return false;
+        int every = sampleEvery;
+        return every == 1 || ThreadLocalRandom.current().nextInt(every) == 0;
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void log(Level at, String message, Throwable error) {
+        if (!enabled(at))
+            return;
+        if (!queue.offer(new Record(at, message, error)))
+            dropped.increment();
+    }
+
+    public static Level level() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static int sampleEvery() {
+        return sampleEvery;
+    }
+
+    public static void setSampleEvery(int every) {
+        sampleEvery = Math.max(1, every);
+    }
+
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    public static int queueDepth() {
+        return queue.size();
+    }
+
+    // Prints whatever is queued on the calling thread; used at shutdown, when the writer may not get to run.
+    public static synchronized void flush() {
+        List<Record> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        print(batch);
+    }
+
+    static Level parseLevel(String name, Level fallback) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    private static void writeLoop() {
+        List<Record> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                Record first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, BATCH - 1);
+                synchronized (ServerLog.class) {
+                    print(batch);
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void print(List<Record> batch) {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        boolean wroteOut = false;
+        boolean wroteErr = false;
+        StringBuilder sb = new StringBuilder(128);
+        for (Record record : batch) {
+            sb.setLength(0);
+            TIME.formatTo(Instant.ofEpochMilli(record.time), sb);
+            sb.append(' ').append(String.format("%-5s", record.level)).append(" [").append(record.thread)
+                    .append("] ").append(record.message);
+            if (record.error != null) {
+                StringWriter trace = new StringWriter();
+                record.error.printStackTrace(new PrintWriter(trace));
+                sb.append(System.lineSeparator()).append(trace.toString().stripTrailing());
+            }
+            if (record.level.ordinal() <= Level.WARN.ordinal()) {
+                err.println(sb);
+                wroteErr = true;
+            } else {
+                out.println(sb);
+                wroteOut = true;
+            }
+        }
+        if (wroteOut)
+            out.flush();
+        if (wroteErr)
+            err.flush();
+        long lost = dropped.sum();
+        if (lost > reportedDrops) {
+            err.println("(log queue full, " + (lost - reportedDrops) + " line(s) dropped)");
+            reportedDrops = lost;
+        }
+    }
+}
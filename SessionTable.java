@@ -0,0 +1,186 @@
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// Logged-in sessions, one per user, found by token (binary requests) or by username plus the sender's address
+// (text requests). Sessions that stop sending anything for longer than the timeout are dropped by a hashed
+// timer wheel. Activity only stamps lastSeen; a session is moved to a later slot when its current slot comes
+// up and it turns out to be still alive, so a request never touches the wheel.
+public class SessionTable {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 90_000;
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+
+    public static final class Session {
+        public final long token;
+        public final String username;
+        public final InetSocketAddress address;
+        public final boolean binary;
+        // The folder LIST, READ, SEARCH, SYNC, DELETE and MOVE act on; SELECT changes it.
+        public volatile String folder = MailStore.INBOX;
+        private volatile long lastSeen;
+        private volatile boolean closed;
+
+        private Session(long token, String username, InetSocketAddress address, boolean binary, long now) {
+            this.token = token;
+            this.username = username;
+            this.address = address;
+            this.binary = binary;
+            this.lastSeen = now;
+        }
+
+        public boolean isOpen() {
+            return !closed;
+        }
+    }
+
+    private final Map<Long, Session> byToken = new ConcurrentHashMap<>();
+    private final Map<String, Session> byUser = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long timeoutMillis;
+    private final long tickMillis;
+    private final ArrayList<Session>[] wheel;
+    private final Consumer<Session> onExpire;
+    private long cursorTick;
+    private volatile boolean running;
+    private Thread thread;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public SessionTable(long timeoutMillis, long tickMillis, Consumer<Session> onExpire) {
+        this.timeoutMillis = timeoutMillis;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.onExpire = onExpire;
+        int slots = (int) Math.min(4096, timeoutMillis / this.tickMillis + 2);
+        this.wheel = new ArrayList[Math.max(2, slots)];
+        for (int i = 0; i < wheel.length; i++)
+            wheel[i] = new ArrayList<>();
+        this.cursorTick = System.currentTimeMillis() / this.tickMillis;
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this::wheelLoop, "mail-session-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Opens a session for a user who just logged in, replacing any session the user already had.
+    public Session open(String username, InetSocketAddress address, boolean binary) {
+        long now = System.currentTimeMillis();
+        Session session;
+        do {
+            session = new Session(random.nextLong(), username, address, binary, now);
+        } while (session.token == 0 || byToken.putIfAbsent(session.token, session) != null);
+        Session previous = byUser.put(username, session);
+        if (previous != null)
+            drop(previous);
+        schedule(session, now + timeoutMillis);
+        return session;
+    }
+
+    // The open session behind a token, if the request really comes from that session's address.
+    public Session byToken(long token, InetSocketAddress from) {
+        return touch(byToken.get(token), from);
+    }
+
+    // The open session of a user, if the request really comes from that session's address.
+    public Session byUser(String username, InetSocketAddress from) {
+        return touch(byUser.get(username), from);
+    }
+
+    // The open session of a user regardless of who asks, used to push notifications.
+    public Session online(String username) {
+        Session session = byUser.get(username);
+        return session == null || session.closed ? null : session;
+    }
+
+    // Ends a session; false if it had already ended.
+    public boolean close(Session session) {
+        if (!drop(session))
+            return false;
+        byUser.remove(session.username, session);
+        return true;
+    }
+
+    public int size() {
+        return byToken.size();
+    }
+
+    public void shutdown() {
+        running = false;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    private Session touch(Session session, InetSocketAddress from) {
+        if (session == null || session.closed || !session.address.equals(from))
+            return null;
+        session.lastSeen = System.currentTimeMillis();
+        return session;
+    }
+
+    private boolean drop(Session session) {
+        synchronized (session) {
+            if (session.closed)
+                return false;
+            session.closed = true;
+        }
+        byToken.remove(session.token, session);
+        return true;
+    }
+
+    // Files the session under the first tick after its deadline, so that slot always finds it due unless it
+    // was active in the meantime.
+    private void schedule(Session session, long deadline) {
+        ArrayList<Session> slot = wheel[(int) ((deadline / tickMillis + 1) % wheel.length)];
+        synchronized (slot) {
+            slot.add(session);
+        }
+    }
+
+    private void wheelLoop() {
+        while (running) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                if (!running)
+                    return;
+            }
+            long now = System.currentTimeMillis();
+            long nowTick = now / tickMillis;
+            // A late tick catches up on every slot it skipped, but never walks the wheel more than once.
+            long from = Math.max(cursorTick + 1, nowTick - wheel.length + 1);
+            for (long tick = from; tick <= nowTick; tick++)
+                expireSlot(wheel[(int) (tick % wheel.length)], now);
+            cursorTick = nowTick;
+        }
+    }
+
+    private void expireSlot(ArrayList<Session> slot, long now) {
+        ArrayList<Session> due;
+        synchronized (slot) {
+            if (slot.isEmpty())
+                return;
+            due = new ArrayList<>(slot);
+            slot.clear();
+        }
+        for (Session session : due) {
+            if (session.closed)
+                continue;
+            long deadline = session.lastSeen + timeoutMillis;
+            if (deadline > now) {
+                schedule(session, deadline);
+            } else if (close(session)) {
+                try {
+                    onExpire.accept(session);
+                } catch (RuntimeException e) {
+                    ServerLog.error("Error expiring session of " + session.username + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
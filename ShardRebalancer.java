@@ -0,0 +1,134 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Moves every user whose record is not on the shard the ring assigns them to. The server runs it in the
+// background after starting on a shard list that changed, at mail.rebalanceRate users per second, while mail
+// keeps flowing. A mailbox is copied while its user keeps getting mail, and only that user waits, for the short
+// last pass that picks up what arrived during the copy. It can also be run on its own against a stopped server:
+//   java -Dmail.shards=... ShardRebalancer [--dry-run]
+public class ShardRebalancer implements Runnable {
+    private static final Metrics.Counter moved = Metrics.counter("mail_rebalance_moved_total",
+            "Users moved to the shard the ring assigns them to");
+    private static final Metrics.Counter failed = Metrics.counter("mail_rebalance_failed_total",
+            "User moves that failed and were left on their old shard");
+
+    private final ShardedMailStore store;
+    private final UserDirectory users;
+    private final double usersPerSecond;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public ShardRebalancer(ShardedMailStore store, UserDirectory users, double usersPerSecond) {
+        this.store = store;
+        this.users = users;
+        this.usersPerSecond = usersPerSecond;
+        Metrics.gauge("mail_rebalance_pending_users", "Users still waiting to be moved to their shard",
+                pending::get);
+    }
+
+    // Starts a background pass unless mail.rebalance=off; null when there is nothing to run it on.
+    public static Thread startIfSharded(MailStore store, UserDirectory users) {
+        if (!(store instanceof ShardedMailStore)
+                || "off".equalsIgnoreCase(System.getProperty("mail.rebalance", "on").trim()))
+            return null;
+        ShardRebalancer rebalancer = new ShardRebalancer((ShardedMailStore) store, users,
+                Double.parseDouble(System.getProperty("mail.rebalanceRate", "50")));
+        Thread thread = new Thread(rebalancer, "mail-rebalance");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        try {
+            int removed = store.removeLeftovers();
+            if (removed > 0)
+                ServerLog.info("Removed " + removed + " leftover mailbox copies from interrupted moves");
+        } catch (IOException e) {
+            ServerLog.warn("Failed to clear leftovers of interrupted moves: " + e.getMessage());
+        }
+        List<String> misplaced = misplaced();
+        if (misplaced.isEmpty())
+            return;
+        ServerLog.info("Rebalancing " + misplaced.size() + " user(s) across " + store.ring().size() + " shards");
+        pending.set(misplaced.size());
+        long pauseNanos = usersPerSecond > 0 ? (long) (1e9 / usersPerSecond) : 0;
+        long next = System.nanoTime();
+        int done = 0;
+        for (String username : misplaced) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            next = Math.max(next, System.nanoTime() - pauseNanos) + pauseNanos;
+            if (move(username))
+                done++;
+            pending.decrementAndGet();
+        }
+        ServerLog.info("Rebalance finished: " + done + " of " + misplaced.size() + " user(s) moved");
+    }
+
+    private boolean move(String username) {
+        int target = store.ring().owner(username);
+        try {
+            if (!store.moveMailbox(username, target))
+                return false;
+            moved.increment();
+            if (ServerLog.debugEnabled())
+                ServerLog.debug("Moved '" + username + "' to shard " + store.ring().shard(target).name);
+            return true;
+        } catch (IOException e) {
+            failed.increment();
+            ServerLog.warn("Failed to move '" + username + "' to shard " + store.ring().shard(target).name + ": "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    private List<String> misplaced() {
+        List<String> misplaced = new ArrayList<>();
+        for (String username : users.usernames()) {
+            int shard = users.shardOf(username);
+            if (shard >= 0 && shard != store.ring().owner(username))
+                misplaced.add(username);
+        }
+        misplaced.sort(null);
+        return misplaced;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean dryRun = args.length > 0 && args[0].equals("--dry-run");
+        String dataDir = System.getProperty("mail.dataDir", "server_data");
+        ShardRing ring = ShardRing.fromConfig(dataDir);
+        UserDirectory users = UserDirectory.forShards(ring);
+        users.load();
+        MailStore store = ShardedMailStore.fromConfig(ring, users, new File(dataDir));
+        if (!(store instanceof ShardedMailStore)) {
+            System.out.println("Only one shard is configured; set mail.shards to the full shard list.");
+            return;
+        }
+        ShardRebalancer rebalancer = new ShardRebalancer((ShardedMailStore) store, users, 0);
+        List<String> misplaced = rebalancer.misplaced();
+        Map<String, Integer> plan = new TreeMap<>();
+        for (String username : misplaced)
+            plan.merge(ring.shard(users.shardOf(username)).name + " -> " + ring.shard(ring.owner(username)).name,
+                    1, Integer::sum);
+        plan.forEach((route, count) -> System.out.println(route + ": " + count + " user(s)"));
+        System.out.println(misplaced.size() + " of " + users.size() + " user(s) to move");
+        if (!dryRun) {
+            rebalancer.run();
+            store.close();
+        }
+        ServerLog.flush();
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Storage shards and the consistent-hash ring that places users on them. A shard is a root directory, ideally on
+// a volume of its own, holding the users/ and mailboxes/ trees for the users it owns. Each shard is put on the
+// ring at many points derived from its name, so adding a shard takes over roughly 1/N of the users, spread evenly
+// over the old shards, and no user moves between two shards that were already there.
+//
+// mail.shards lists the shards as name=directory pairs, e.g. "a=/disk1/mail,b=/disk2/mail". Placement follows the
+// names, so a shard directory can be moved as long as its name stays. Without mail.shards the data directory is
+// the only shard, which is the layout the server always had.
+public class ShardRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    public static final class Shard {
+        public final int index;
+        public final String name;
+        public final File root;
+
+        Shard(int index, String name, File root) {
+            this.index = index;
+            this.name = name;
+            this.root = root;
+        }
+
+        public File usersDir() {
+            return new File(root, "users");
+        }
+
+        public File mailboxesDir() {
+            return new File(root, "mailboxes");
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + root;
+        }
+    }
+
+    private final List<Shard> shards;
+    private final long[] points;
+    private final int[] owners;
+
+    public ShardRing(List<Shard> shards, int virtualNodes) {
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("At least one shard is needed");
+        this.shards = List.copyOf(shards);
+        int perShard = Math.max(1, virtualNodes);
+        long[][] ring = new long[shards.size() * perShard][];
+        int n = 0;
+        for (Shard shard : shards)
+            for (int v = 0; v < perShard; v++)
+                ring[n++] = new long[] { hash(shard.name + "#" + v), shard.index };
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[ring.length];
+        owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+    }
+
+    public static ShardRing fromConfig(String dataDir) {
+        String spec = System.getProperty("mail.shards", "").trim();
+        int virtualNodes = Integer.getInteger("mail.shardVirtualNodes", DEFAULT_VIRTUAL_NODES);
+        List<Shard> shards = new ArrayList<>();
+        if (spec.isEmpty()) {
+            shards.add(new Shard(0, "default", new File(dataDir)));
+            return new ShardRing(shards, virtualNodes);
+        }
+        Set<String> names = new HashSet<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            int eq = entry.indexOf('=');
+            if (eq <= 0 || eq == entry.length() - 1)
+                throw new IllegalArgumentException("mail.shards entry '" + entry + "' is not name=directory");
+            String name = entry.substring(0, eq).trim();
+            if (!names.add(name))
+                throw new IllegalArgumentException("Shard '" + name + "' is listed twice in mail.shards");
+            shards.add(new Shard(shards.size(), name, new File(entry.substring(eq + 1).trim())));
+        }
+        return new ShardRing(shards, virtualNodes);
+    }
+
+    // The shard a user belongs on: the first ring point at or after the user's hash, wrapping around.
+    public int owner(String username) {
+        if (shards.size() == 1)
+            return 0;
+        int i = Arrays.binarySearch(points, hash(username));
+        if (i < 0)
+            i = -i - 1;
+        return owners[i == points.length ? 0 : i];
+    }
+
+    public Shard shard(int index) {
+        return shards.get(index);
+    }
+
+    public List<Shard> shards() {
+        return shards;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    // FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer: stable across JVMs and well spread.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,452 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// One MailStore per storage shard, with every call routed to the shard the user's record lives on. Shared
+// bodies stay in one BodyStore for all shards, so moving a mailbox never touches a reference count.
+//
+// Every user has a lock of their own. Moving a mailbox copies the tree without it while mail keeps arriving,
+// in passes that each copy only what changed during the one before. Only the last pass, which picks up the
+// mail of the last moments, runs under the user's write lock, so deliveries and reads for that one user, and
+// the delivery writer if it has mail for them, wait for a short catch-up rather than for the whole copy. The
+// copy is made durable under a temporary name, renamed into place, the user record is switched over, and only
+// then is the old tree deleted. A crash at any point leaves the user served from the shard the record names;
+// leftovers are cleared by removeLeftovers.
+public class ShardedMailStore implements MailStore {
+    private static final String MOVING_SUFFIX = ".moving";
+    // Unlocked passes stop once one copies less than this, or after the last of them.
+    private static final int MAX_UNLOCKED_PASSES = 4;
+    private static final long LOCKED_PASS_BYTES = 256 * 1024;
+    private static final long LOCK_POLL_NANOS = 1_000_000L;
+
+    // What the copy of a file was taken from, to tell which files changed since.
+    private static final class Copied {
+        final Object fileKey;
+        final long size;
+        final FileTime modified;
+
+        Copied(Object fileKey, long size, FileTime modified) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        boolean same(BasicFileAttributes attrs) {
+            return Objects.equals(fileKey, attrs.fileKey()) && size == attrs.size()
+                    && modified.equals(attrs.lastModifiedTime());
+        }
+
+        // Segments, indexes and logs are only appended to; anything else about them is replaced by a rename.
+        boolean grownTo(BasicFileAttributes attrs) {
+            return fileKey != null && fileKey.equals(attrs.fileKey()) && attrs.size() > size;
+        }
+    }
+
+    private final ShardRing ring;
+    private final List<MailStore> stores;
+    private final UserDirectory users;
+    private final Map<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+
+    public ShardedMailStore(ShardRing ring, List<MailStore> stores, UserDirectory users) {
+        this.ring = ring;
+        this.stores = List.copyOf(stores);
+        this.users = users;
+    }
+
+    // A plain store when there is only one shard, which keeps the unsharded layout and code path as they were.
+    public static MailStore fromConfig(ShardRing ring, UserDirectory users, File dataDir) {
+        BodyStore bodies = new BodyStore(new File(dataDir, "bodies"));
+        if (ring.size() == 1)
+            return MailStore.fromConfig(ring.shard(0).mailboxesDir(), bodies);
+        List<MailStore> stores = new ArrayList<>();
+        for (ShardRing.Shard shard : ring.shards())
+            stores.add(MailStore.fromConfig(shard.mailboxesDir(), bodies));
+        ServerLog.info("Mail stored on " + ring.size() + " shards: " + ring.shards());
+        return new ShardedMailStore(ring, stores, users);
+    }
+
+    @Override
+    public MailboxIndex.Entry deliver(String recipient, long id, String from, String date, String title,
+            String content) throws IOException {
+        ReadWriteLock lock = lockFor(recipient);
+        lock.readLock().lock();
+        try {
+            return storeFor(recipient).deliver(recipient, id, from, date, title, content);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String shareBody(String content, int references) throws IOException {
+        return stores.get(0).shareBody(content, references);
+    }
+
+    @Override
+    public void retainBody(String bodyKey) throws IOException {
+        stores.get(0).retainBody(bodyKey);
+    }
+
+    @Override
+    public void releaseBody(String bodyKey) throws IOException {
+        stores.get(0).releaseBody(bodyKey);
+    }
+
+    @Override
+    public MailboxIndex.Entry deliverShared(String recipient, long id, String from, String date, String title,
+            String bodyKey) throws IOException {
+        ReadWriteLock lock = lockFor(recipient);
+        lock.readLock().lock();
+        try {
+            return storeFor(recipient).deliverShared(recipient, id, from, date, title, bodyKey);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public MailboxIndex index(String username, String folder) throws IOException {
+        ReadWriteLock lock = lockFor(username);
+        lock.readLock().lock();
+        try {
+            return storeFor(username).index(username, folder);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public File mailboxDir(String username) {
+        int shard = users.shardOf(username);
+        return mailboxDir(shard >= 0 ? shard : ring.owner(username), username).toFile();
+    }
+
+    @Override
+    public File indexFile(String username, String folder) {
+        return storeFor(username).indexFile(username, folder);
+    }
+
+    // A mapped body stays readable after a move deletes its file, so the buffer may outlive the lock.
+    @Override
+    public ByteBuffer readBody(String username, String folder, MailboxIndex.Entry entry) throws IOException {
+        ReadWriteLock lock = lockFor(username);
+        lock.readLock().lock();
+        try {
+            return storeFor(username).readBody(username, folder, entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<MailboxIndex.Entry> expunge(String username, String folder, Collection<Long> ids)
+            throws IOException {
+        ReadWriteLock lock = lockFor(username);
+        lock.readLock().lock();
+        try {
+            return storeFor(username).expunge(username, folder, ids);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<MailboxIndex.Entry> move(String username, String folder, Collection<Long> ids, String target)
+            throws IOException {
+        ReadWriteLock lock = lockFor(username);
+        lock.readLock().lock();
+        try {
+            return storeFor(username).move(username, folder, ids, target);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Holds the read lock throughout, so the last pass of a move waits for the compaction instead of copying
+    // its half-written files.
+    @Override
+    public void compact(String username, Throttle throttle) throws IOException {
+        ReadWriteLock lock = lockFor(username);
+        lock.readLock().lock();
+        try {
+            storeFor(username).compact(username, throttle);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void evict(String username) {
+        for (MailStore store : stores)
+            store.evict(username);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (MailStore store : stores)
+            store.sync();
+    }
+
+    @Override
+    public void close() {
+        for (MailStore store : stores)
+            store.close();
+    }
+
+    public ShardRing ring() {
+        return ring;
+    }
+
+    // Moves a user's mailbox and record to the given shard; false if the user is unknown or already there.
+    public boolean moveMailbox(String username, int target) throws IOException {
+        int source = users.shardOf(username);
+        if (source < 0 || source == target)
+            return false;
+        Path sourceTree = mailboxDir(source, username);
+        Path targetTree = mailboxDir(target, username);
+        Path moving = targetTree.resolveSibling("." + username + MOVING_SUFFIX);
+        deleteTree(moving);
+        Map<Path, Copied> copied = new HashMap<>();
+        long changed = Long.MAX_VALUE;
+        for (int pass = 0; pass < MAX_UNLOCKED_PASSES && changed > LOCKED_PASS_BYTES; pass++)
+            changed = copyChanges(sourceTree, moving, copied);
+        ReadWriteLock lock = lockFor(username);
+        acquire(lock.writeLock());
+        try {
+            if (users.shardOf(username) != source)
+                return false;
+            // The source store lets go of the user's cached indexes and open segments; nothing writes there now.
+            stores.get(source).evict(username);
+            // Anything already at the target is a stale copy from an earlier move that never committed.
+            deleteTree(targetTree);
+            if (!Files.isDirectory(sourceTree)) {
+                deleteTree(moving);
+            } else {
+                copyChanges(sourceTree, moving, copied);
+                Files.move(moving, targetTree, StandardCopyOption.ATOMIC_MOVE);
+                // The rename must be on disk before the record names this shard and the source is deleted.
+                MailStore.forceDirectory(targetTree.getParent());
+            }
+            stores.get(target).evict(username);
+            users.move(username, target);
+            deleteTree(sourceTree);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Deletes what interrupted moves leave behind: half-copied trees, and old trees of users whose move was
+    // committed but not cleaned up. A tree is only removed when the user's own shard has a mailbox too.
+    public int removeLeftovers() throws IOException {
+        int removed = 0;
+        for (ShardRing.Shard shard : ring.shards()) {
+            File[] entries = shard.mailboxesDir().listFiles(File::isDirectory);
+            if (entries == null)
+                continue;
+            for (File entry : entries) {
+                String name = entry.getName();
+                if (name.startsWith(".") && name.endsWith(MOVING_SUFFIX)) {
+                    String username = name.substring(1, name.length() - MOVING_SUFFIX.length());
+                    if (removeLeftover(username, shard.index, entry.toPath()))
+                        removed++;
+                    continue;
+                }
+                int owner = users.shardOf(name);
+                if (owner >= 0 && owner != shard.index && Files.isDirectory(mailboxDir(owner, name))
+                        && removeLeftover(name, shard.index, entry.toPath()))
+                    removed++;
+            }
+        }
+        return removed;
+    }
+
+    private boolean removeLeftover(String username, int shard, Path tree) throws IOException {
+        ReadWriteLock lock = lockFor(username);
+        acquire(lock.writeLock());
+        try {
+            // Checked again under the lock: a move may have made this the live tree in the meantime.
+            if (!tree.getFileName().toString().endsWith(MOVING_SUFFIX) && users.shardOf(username) == shard)
+                return false;
+            stores.get(shard).evict(username);
+            deleteTree(tree);
+            ServerLog.info("Removed leftover mailbox copy " + tree);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private MailStore storeFor(String username) {
+        int shard = users.shardOf(username);
+        return stores.get(shard >= 0 ? shard : ring.owner(username));
+    }
+
+    private Path mailboxDir(int shard, String username) {
+        return new File(ring.shard(shard).mailboxesDir(), username).toPath();
+    }
+
+    private ReadWriteLock lockFor(String username) {
+        ReadWriteLock lock = locks.get(username);
+        return lock != null ? lock : locks.computeIfAbsent(username, u -> new ReentrantReadWriteLock());
+    }
+
+    // Polls instead of queueing: a writer waiting in line, say for a compaction to finish, would hold up every
+    // delivery and read of the user behind it.
+    private static void acquire(Lock lock) throws InterruptedIOException {
+        while (!lock.tryLock()) {
+            LockSupport.parkNanos(LOCK_POLL_NANOS);
+            if (Thread.interrupted())
+                throw new InterruptedIOException("Interrupted waiting for a mailbox lock");
+        }
+    }
+
+    // Brings the copy in line with the source tree and returns the bytes copied. New and changed files are copied
+    // with their times and forced, a file that only grew gets just its new tail, what the source no longer has is
+    // removed, and every directory is forced so nothing copied is missing after a crash. Without the lock files
+    // may change or vanish under a pass; the next one picks that up.
+    private static long copyChanges(Path source, Path target, Map<Path, Copied> copied) throws IOException {
+        if (!Files.isDirectory(source))
+            return 0;
+        long[] bytes = new long[1];
+        Set<Path> seen = new HashSet<>();
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path relative = source.relativize(dir);
+                seen.add(relative);
+                Files.createDirectories(target.resolve(relative));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path relative = source.relativize(file);
+                Copied previous = copied.get(relative);
+                seen.add(relative);
+                if (previous != null && previous.same(attrs))
+                    return FileVisitResult.CONTINUE;
+                try {
+                    long from = previous != null && previous.grownTo(attrs) ? previous.size : 0;
+                    long size = copyFile(file, target.resolve(relative), from, attrs.lastModifiedTime());
+                    bytes[0] += size - from;
+                    copied.put(relative, new Copied(attrs.fileKey(), size, attrs.lastModifiedTime()));
+                } catch (NoSuchFileException e) {
+                    seen.remove(relative);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException)
+                    return FileVisitResult.CONTINUE;
+                throw e;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null && !(e instanceof NoSuchFileException))
+                    throw e;
+                Path copy = target.resolve(source.relativize(dir));
+                try {
+                    Files.setLastModifiedTime(copy, Files.getLastModifiedTime(dir));
+                } catch (NoSuchFileException ignored) {
+                }
+                MailStore.forceDirectory(copy);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Files.walkFileTree(target, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path relative = target.relativize(file);
+                if (!seen.contains(relative)) {
+                    Files.deleteIfExists(file);
+                    copied.remove(relative);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null)
+                    throw e;
+                if (!seen.contains(target.relativize(dir)))
+                    Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return bytes[0];
+    }
+
+    // Copies the file from the given offset on, over a copy that already holds everything before it, and
+    // returns the copy's size.
+    private static long copyFile(Path file, Path copy, long from, FileTime modified) throws IOException {
+        long position = from;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(copy, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.truncate(from);
+            out.position(from);
+            for (long end = in.size(), n; position < end; position += n) {
+                n = in.transferTo(position, end - position, out);
+                if (n <= 0)
+                    break;
+            }
+            out.force(true);
+        }
+        Files.setLastModifiedTime(copy, modified);
+        return position;
+    }
+
+    private static void deleteTree(Path tree) throws IOException {
+        if (!Files.exists(tree))
+            return;
+        Files.walkFileTree(tree, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException)
+                    return FileVisitResult.CONTINUE;
+                throw e;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null)
+                    throw e;
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,383 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+// The user records, one <name>.txt file each. With storage shards every shard has a users directory of its own;
+// a user's file lives on the shard that holds the mailbox, and the record remembers which one that is. A record
+// also keeps the modification time and size its file had when it was read, so records taken from a
+// MetadataSnapshot can be checked against the files without reading them again.
+public class UserDirectory {
+    public static class User {
+        public final String username;
+        public final String passwordHash;
+        public final String createdAt;
+        public final int shard;
+        // 0 when unknown, which never matches a file.
+        public final long fileModified;
+        public final long fileSize;
+
+        public User(String username, String passwordHash, String createdAt) {
+            this(username, passwordHash, createdAt, 0);
+        }
+
+        public User(String username, String passwordHash, String createdAt, int shard) {
+            this(username, passwordHash, createdAt, shard, 0, 0);
+        }
+
+        public User(String username, String passwordHash, String createdAt, int shard, long fileModified,
+                long fileSize) {
+            this.username = username;
+            this.passwordHash = passwordHash;
+            this.createdAt = createdAt;
+            this.shard = shard;
+            this.fileModified = fileModified;
+            this.fileSize = fileSize;
+        }
+
+        boolean matches(int shard, BasicFileAttributes file) {
+            return this.shard == shard && fileModified != 0 && fileModified == file.lastModifiedTime().toMillis()
+                    && fileSize == file.size();
+        }
+    }
+
+    private static final String USER_FILE_SUFFIX = ".txt";
+
+    private final List<Path> usersDirs;
+    private final ToIntFunction<String> placement;
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Integer> watchedDirs = new ConcurrentHashMap<>();
+    private WatchService watcher;
+    // Set while preloaded records have not been checked yet; a name not found then is looked for on disk.
+    private volatile boolean unverified;
+
+    public UserDirectory(Path usersDir) {
+        this(List.of(usersDir), username -> 0);
+    }
+
+    // placement picks the directory a new user is registered in.
+    public UserDirectory(List<Path> usersDirs, ToIntFunction<String> placement) {
+        this.usersDirs = List.copyOf(usersDirs);
+        this.placement = placement;
+    }
+
+    public static UserDirectory forShards(ShardRing ring) {
+        List<Path> dirs = new ArrayList<>();
+        for (ShardRing.Shard shard : ring.shards())
+            dirs.add(shard.usersDir().toPath());
+        return new UserDirectory(dirs, ring::owner);
+    }
+
+    public void load() throws IOException {
+        Set<String> seen = new HashSet<>();
+        for (int shard = 0; shard < usersDirs.size(); shard++) {
+            Path usersDir = usersDirs.get(shard);
+            Files.createDirectories(usersDir);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(usersDir, "*" + USER_FILE_SUFFIX)) {
+                for (Path file : files) {
+                    if (reload(file, shard)) {
+                        String name = file.getFileName().toString();
+                        seen.add(name.substring(0, name.length() - USER_FILE_SUFFIX.length()));
+                    }
+                }
+            }
+        }
+        users.keySet().retainAll(seen);
+        int loaded = seen.size();
+        ServerLog.info("Loaded " + loaded + " user record(s) from "
+                + (usersDirs.size() == 1 ? usersDirs.get(0) : usersDirs.size() + " shards"));
+    }
+
+    // Takes records from a snapshot instead of reading the files at startup; verify checks them afterwards.
+    public void preload(Collection<User> records) {
+        for (User user : records)
+            users.put(user.username, user);
+        unverified = true;
+    }
+
+    // Rereads every user file whose time or size differs from its record, reads files that have no record and
+    // drops records of the given preloaded users whose file is gone. Returns how many files were read again.
+    public int verify(Collection<String> preloaded) throws IOException {
+        Set<String> seen = new HashSet<>();
+        int reread = 0;
+        for (int shard = 0; shard < usersDirs.size(); shard++) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(usersDirs.get(shard),
+                    "*" + USER_FILE_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    String username = name.substring(0, name.length() - USER_FILE_SUFFIX.length());
+                    seen.add(username);
+                    User current = users.get(username);
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        attributes = null;
+                    }
+                    if (current == null || attributes == null || !current.matches(shard, attributes)) {
+                        reload(file, shard);
+                        reread++;
+                    }
+                }
+            }
+        }
+        for (String username : preloaded) {
+            User current = users.get(username);
+            if (current != null && !seen.contains(username)) {
+                reload(userFile(current.shard, username), current.shard);
+                reread++;
+            }
+        }
+        unverified = false;
+        return reread;
+    }
+
+    // Keeps the in-memory view in sync with edits made to the user files by other tools.
+    public void watch() throws IOException {
+        watcher = usersDirs.get(0).getFileSystem().newWatchService();
+        for (int shard = 0; shard < usersDirs.size(); shard++) {
+            WatchKey key = usersDirs.get(shard).register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watchedDirs.put(key, shard);
+        }
+        Thread thread = new Thread(this::watchLoop, "user-directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public boolean exists(String username) {
+        return lookup(username) != null;
+    }
+
+    // The names among usernames that have no account, in the order given; one pass for a whole recipient list.
+    public List<String> missing(Collection<String> usernames) {
+        List<String> missing = new ArrayList<>();
+        for (String username : usernames)
+            if (lookup(username) == null)
+                missing.add(username);
+        return missing;
+    }
+
+    public User get(String username) {
+        return lookup(username);
+    }
+
+    // The shard whose directory holds the user's file, or -1 for an unknown user.
+    public int shardOf(String username) {
+        User user = users.get(username);
+        return user == null ? -1 : user.shard;
+    }
+
+    public List<String> usernames() {
+        return new ArrayList<>(users.keySet());
+    }
+
+    public List<User> records() {
+        return new ArrayList<>(users.values());
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    // Writes the user file first and only then publishes the record; returns false if the name is taken.
+    public synchronized boolean register(String username, String passwordHash, String createdAt) throws IOException {
+        if (users.containsKey(username))
+            return false;
+        int shard = placement.applyAsInt(username);
+        Path userFile = userFile(shard, username);
+        try (BufferedWriter writer = Files.newBufferedWriter(userFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writer.write("username: " + username);
+            writer.newLine();
+            writer.write("password: " + passwordHash);
+            writer.newLine();
+            writer.write("createdAt: " + createdAt);
+            writer.newLine();
+        } catch (FileAlreadyExistsException e) {
+            reload(userFile, shard);
+            return false;
+        }
+        users.put(username, stamped(username, passwordHash, createdAt, shard, userFile));
+        return true;
+    }
+
+    // Replaces the password line of a user file if it still holds expectedHash; other lines are kept as they are.
+    public synchronized boolean updatePassword(String username, String expectedHash, String newHash)
+            throws IOException {
+        User user = users.get(username);
+        if (user == null || !user.passwordHash.equals(expectedHash))
+            return false;
+        Path userFile = userFile(user.shard, username);
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(userFile, StandardCharsets.UTF_8))
+            lines.add(line.startsWith("password: ") ? "password: " + newHash : line);
+        Path tmp = userFile.resolveSibling(userFile.getFileName() + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, userFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        users.put(username, stamped(username, newHash, user.createdAt, user.shard, userFile));
+        return true;
+    }
+
+    // Moves a user's file to another shard: the copy is made durable and published under its real name before
+    // the record points at it, and only then is the old file removed.
+    public synchronized boolean move(String username, int shard) throws IOException {
+        User user = users.get(username);
+        if (user == null || user.shard == shard)
+            return false;
+        Path source = userFile(user.shard, username);
+        Path target = userFile(shard, username);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.createDirectories(target.getParent());
+        Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The users directory may be new too; both entries must be on disk before the source goes.
+        MailStore.forceDirectory(target.getParent());
+        MailStore.forceDirectory(target.getParent().getParent());
+        users.put(username, stamped(username, user.passwordHash, user.createdAt, shard, target));
+        Files.deleteIfExists(source);
+        return true;
+    }
+
+    // An account registered after the snapshot was written is found before verify gets to its file.
+    private User lookup(String username) {
+        User user = users.get(username);
+        if (user != null || !unverified || username.isEmpty() || username.startsWith(".")
+                || username.indexOf('/') >= 0 || username.indexOf('\\') >= 0 || username.indexOf('\0') >= 0)
+            return user;
+        try {
+            for (int shard = 0; shard < usersDirs.size(); shard++) {
+                Path file = userFile(shard, username);
+                if (Files.isRegularFile(file) && reload(file, shard))
+                    return users.get(username);
+            }
+        } catch (InvalidPathException e) {
+            // not a name any user file could have
+        }
+        return null;
+    }
+
+    // A record with the time and size of the file just written; a failed stat only costs a reread in verify.
+    private static User stamped(String username, String passwordHash, String createdAt, int shard, Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return new User(username, passwordHash, createdAt, shard, attributes.lastModifiedTime().toMillis(),
+                    attributes.size());
+        } catch (IOException e) {
+            return new User(username, passwordHash, createdAt, shard);
+        }
+    }
+
+    private Path userFile(int shard, String username) {
+        return usersDirs.get(shard).resolve(username + USER_FILE_SUFFIX);
+    }
+
+    private boolean reload(Path file, int shard) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(USER_FILE_SUFFIX))
+            return false;
+        String username = name.substring(0, name.length() - USER_FILE_SUFFIX.length());
+        User current = users.get(username);
+        if (!Files.isRegularFile(file)) {
+            if (current != null && current.shard == shard)
+                users.remove(username);
+            return false;
+        }
+        // A user found on two shards is a move that was cut short; the copy on the owning shard is the one kept.
+        if (current != null && current.shard != shard && current.shard == placement.applyAsInt(username))
+            return true;
+        String passwordHash = null;
+        String createdAt = "";
+        BasicFileAttributes attributes;
+        // Taken before the read, so a write racing with it leaves a record that no longer matches its file.
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("password: "))
+                    passwordHash = line.substring(10);
+                else if (line.startsWith("createdAt: "))
+                    createdAt = line.substring(11);
+            }
+        } catch (IOException e) {
+            ServerLog.warn("Error reading user file: " + file);
+            return false;
+        }
+        if (passwordHash == null) {
+            // A file that is still being written has no password line yet; the next modify event picks it up.
+            return false;
+        }
+        users.put(username, new User(username, passwordHash, createdAt, shard,
+                attributes.lastModifiedTime().toMillis(), attributes.size()));
+        return true;
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            int shard = watchedDirs.getOrDefault(key, 0);
+            Path usersDir = usersDirs.get(shard);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    try {
+                        load();
+                    } catch (IOException e) {
+                        ServerLog.warn("Failed to rescan " + usersDir + ": " + e.getMessage());
+                    }
+                    continue;
+                }
+                Path file = usersDir.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    // Only the file the record was loaded from counts; a move deletes the copy it left behind.
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(USER_FILE_SUFFIX))
+                        users.computeIfPresent(name.substring(0, name.length() - USER_FILE_SUFFIX.length()),
+                                (username, user) -> user.shard == shard ? null : user);
+                } else {
+                    reload(file, shard);
+                }
+            }
+            if (!key.reset())
+                return;
+        }
+    }
+}
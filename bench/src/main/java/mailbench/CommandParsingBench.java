@@ -0,0 +1,86 @@
+package mailbench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// handlePacket on cheap commands, so the time is mostly decoding, parsing, the session lookup and the reply.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParsingBench {
+    private static final byte HEARTBEAT = 8;
+    private static final byte SEND = 5;
+    private static final byte LOGIN = 3;
+
+    private ServerFixture server;
+    private ByteBuffer textHeartbeat;
+    private ByteBuffer binaryHeartbeat;
+    private ByteBuffer unknownCommand;
+    private ByteBuffer sendFrame;
+    private MethodHandle parse;
+
+    @Setup
+    public void setup() throws Throwable {
+        server = new ServerFixture(Map.of("mail.pbkdf2Iterations", "1000"));
+        server.callOk("REGISTER textuser secret");
+        server.callOk("LOGIN textuser secret");
+        server.callOk("REGISTER binuser secret");
+        server.packet(ServerFixture.frame(LOGIN, 1, "binuser", "secret"));
+        long token = ServerFixture.number(server.take(), 1);
+
+        textHeartbeat = ServerFixture.text("HEARTBEAT textuser");
+        binaryHeartbeat = ServerFixture.frame(HEARTBEAT, 2, token);
+        unknownCommand = ServerFixture.text("NOOP textuser some arguments");
+        sendFrame = ServerFixture.frame(SEND, 3, token, "textuser", "A title with | a pipe",
+                "A short body of the kind most mails have.");
+        parse = MethodHandles.publicLookup().findStatic(Class.forName("MailProtocol"), "parse",
+                MethodType.methodType(Class.forName("MailProtocol$Frame"), ByteBuffer.class));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Benchmark
+    public int textHeartbeat() throws Throwable {
+        server.packet(textHeartbeat);
+        return server.drain();
+    }
+
+    @Benchmark
+    public int binaryHeartbeat() throws Throwable {
+        server.packet(binaryHeartbeat);
+        return server.drain();
+    }
+
+    @Benchmark
+    public int unknownCommand() throws Throwable {
+        server.packet(unknownCommand);
+        return server.drain();
+    }
+
+    @Benchmark
+    public Object parseSendFrame() throws Throwable {
+        return parse.invoke(sendFrame.duplicate());
+    }
+}
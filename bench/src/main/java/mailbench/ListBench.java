@@ -0,0 +1,69 @@
+package mailbench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// LIST against one inbox of the given size, for both storage engines.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ListBench {
+    @Param({ "10", "1000", "100000" })
+    public int inboxSize;
+
+    @Param({ "file", "segment" })
+    public String store;
+
+    private ServerFixture server;
+    private String middlePage;
+    private String sinceRecent;
+
+    @Setup
+    public void setup() throws Throwable {
+        server = new ServerFixture(Map.of("mail.store", store, "mail.pbkdf2Iterations", "1000"));
+        server.callOk("REGISTER reader secret");
+        server.callOk("REGISTER sender secret");
+        for (int i = 1; i <= inboxSize; i++)
+            server.deliver("reader", "sender", "2025-01-01 12:00:00", "Mail number " + i,
+                    "Body of mail number " + i + "\n");
+        server.callOk("LOGIN reader secret");
+        middlePage = "LIST reader " + inboxSize / 2 + " 50";
+        sinceRecent = "LIST reader SINCE " + Math.max(0, inboxSize - 10);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Benchmark
+    public String newestPage() throws Throwable {
+        return server.call("LIST reader");
+    }
+
+    @Benchmark
+    public String middlePage() throws Throwable {
+        return server.call(middlePage);
+    }
+
+    @Benchmark
+    public String sinceRecent() throws Throwable {
+        return server.call(sinceRecent);
+    }
+}
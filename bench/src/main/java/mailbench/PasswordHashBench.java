@@ -0,0 +1,72 @@
+package mailbench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of one LOGIN check and one REGISTER hash in each password format. The server classes live in the
+// default package, which a benchmark package cannot import, so they are called through method handles.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PasswordHashBench {
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Param({ "10000", "100000", "310000" })
+    public int iterations;
+
+    private MethodHandle legacyHash;
+    private MethodHandle hash;
+    private MethodHandle verify;
+    private String legacyStored;
+    private String pbkdf2Stored;
+
+    @Setup
+    public void setup() throws Throwable {
+        Class<?> type = Class.forName("PasswordHasher");
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        Object hasher = type.getConstructor(int.class).newInstance(iterations);
+        legacyHash = lookup.findStatic(type, "legacyHash", MethodType.methodType(String.class, String.class));
+        hash = lookup.findVirtual(type, "hash", MethodType.methodType(String.class, String.class)).bindTo(hasher);
+        verify = lookup.findVirtual(type, "verify",
+                MethodType.methodType(boolean.class, String.class, String.class)).bindTo(hasher);
+        legacyStored = (String) legacyHash.invoke(PASSWORD);
+        pbkdf2Stored = (String) hash.invoke(PASSWORD);
+    }
+
+    @Benchmark
+    public String hashLegacy() throws Throwable {
+        return (String) legacyHash.invoke(PASSWORD);
+    }
+
+    @Benchmark
+    public String hashPbkdf2() throws Throwable {
+        return (String) hash.invoke(PASSWORD);
+    }
+
+    @Benchmark
+    public boolean verifyLegacy() throws Throwable {
+        return (boolean) verify.invoke(PASSWORD, legacyStored);
+    }
+
+    @Benchmark
+    public boolean verifyPbkdf2() throws Throwable {
+        return (boolean) verify.invoke(PASSWORD, pbkdf2Stored);
+    }
+}
@@ -0,0 +1,62 @@
+package mailbench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// sendResponse encoding a reply into a datagram; the transport only copies it. Vietnamese text exercises the
+// multi-byte UTF-8 path.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseEncodingBench {
+    private static final String ASCII_SAMPLE = "OK Mail sent successfully to bob. ";
+    // "Thư đã được gửi thành công. "
+    private static final String VIETNAMESE_SAMPLE = "Th\u01b0 \u0111\u00e3 \u0111\u01b0\u1ee3c g\u1eedi "
+            + "th\u00e0nh c\u00f4ng. ";
+    @Param({ "32", "4000" })
+    public int chars;
+
+    @Param({ "ascii", "vietnamese" })
+    public String text;
+
+    private ServerFixture server;
+    private String reply;
+
+    @Setup
+    public void setup() throws Throwable {
+        server = new ServerFixture(Map.of());
+        String sample = text.equals("ascii") ? ASCII_SAMPLE : VIETNAMESE_SAMPLE;
+        StringBuilder sb = new StringBuilder(chars);
+        while (sb.length() < chars)
+            sb.append(sample);
+        sb.setLength(chars);
+        reply = sb.toString();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Benchmark
+    public int sendResponse() throws Throwable {
+        server.sendResponse(reply);
+        return server.drain();
+    }
+}
@@ -0,0 +1,62 @@
+package mailbench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One SEND from handlePacket until its acknowledgement, which comes once the delivery writer has logged and
+// stored the mail. With fsync "always" every call pays for a disk flush, since nothing else is in the batch.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SendBench {
+    @Param({ "file", "segment" })
+    public String store;
+
+    @Param({ "always", "never" })
+    public String fsync;
+
+    @Param({ "256", "4096" })
+    public int bodyBytes;
+
+    private ServerFixture server;
+    private String command;
+
+    @Setup
+    public void setup() throws Throwable {
+        server = new ServerFixture(Map.of("mail.store", store, "mail.fsync", fsync, "mail.pbkdf2Iterations", "1000"));
+        server.callOk("REGISTER alice secret");
+        server.callOk("REGISTER bob secret");
+        server.callOk("LOGIN alice secret");
+        StringBuilder body = new StringBuilder(bodyBytes);
+        while (body.length() < bodyBytes)
+            body.append("Lorem ipsum dolor sit amet. ");
+        body.setLength(bodyBytes);
+        command = "SEND bob alice Benchmark mail|" + body;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Benchmark
+    public String send() throws Throwable {
+        return server.call(command);
+    }
+}
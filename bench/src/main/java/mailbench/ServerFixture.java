@@ -0,0 +1,176 @@
+package mailbench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// An in-process MailServer over a scratch server_data directory, driven through handlePacket with replies
+// captured instead of sent. The server classes live in the default package, so they are reached through a
+// private lookup (benchmarks and server share the unnamed module). MailServer reads its mail.* properties once,
+// when it is first loaded, so a fixture has to be the first thing in its JVM to touch it; JMH forks give each
+// benchmark a fresh JVM.
+final class ServerFixture implements AutoCloseable {
+    static final InetSocketAddress CLIENT = new InetSocketAddress(InetAddress.getLoopbackAddress(), 40000);
+    static final byte FRAME_MAGIC = (byte) 0xB5;
+
+    private final Path dataDir;
+    private final PrintStream console = System.out;
+    private final BlockingQueue<ByteBuffer> replies = new LinkedBlockingQueue<>();
+    private final Object transport;
+    private final Object mailStore;
+    private final MethodHandle handlePacket;
+    private final MethodHandle sendResponse;
+    private final MethodHandle deliver;
+    private final MethodHandle stopServices;
+
+    ServerFixture(Map<String, String> properties) throws Throwable {
+        dataDir = Files.createTempDirectory("mail-bench");
+        System.setProperty("mail.dataDir", dataDir.resolve("server_data").toString());
+        // Every request comes from CLIENT, which the admission limits would throttle long before JMH is done.
+        System.setProperty("mail.limits", "off");
+        properties.forEach(System::setProperty);
+        // Startup and store messages still reach stdout through ServerLog; keep them off the JMH output.
+        if (!Boolean.getBoolean("mail.bench.verbose"))
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Class<?> server = Class.forName("MailServer");
+        Class<?> transportType = Class.forName("MailTransport");
+        Class<?> storeType = Class.forName("MailStore");
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(server, MethodHandles.lookup());
+        handlePacket = lookup.findStatic(server, "handlePacket",
+                MethodType.methodType(void.class, transportType, InetSocketAddress.class, ByteBuffer.class));
+        sendResponse = lookup.findStatic(server, "sendResponse",
+                MethodType.methodType(void.class, transportType, InetAddress.class, int.class, String.class));
+        stopServices = lookup.findStatic(server, "stopServices", MethodType.methodType(void.class));
+        mailStore = lookup.findStaticGetter(server, "mailStore", storeType).invoke();
+        deliver = MethodHandles.publicLookup().findVirtual(storeType, "deliver",
+                MethodType.methodType(Class.forName("MailboxIndex$Entry"), String.class, String.class, String.class,
+                        String.class, String.class));
+        transport = Proxy.newProxyInstance(transportType.getClassLoader(), new Class<?>[] { transportType },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "send":
+                            ByteBuffer data = (ByteBuffer) args[1];
+                            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+                            copy.put(data).flip();
+                            replies.add(copy);
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return "ServerFixture transport";
+                    }
+                });
+
+        MethodHandle startServices = lookup.findStatic(server, "startServices", MethodType.methodType(boolean.class));
+        if (!(boolean) startServices.invoke())
+            throw new IllegalStateException("MailServer services did not start, see stderr");
+    }
+
+    // Hands one packet to the server as the receive loop would; replies pile up until taken.
+    void packet(ByteBuffer data) throws Throwable {
+        handlePacket.invoke(transport, CLIENT, data.duplicate());
+    }
+
+    // Sends a text command and waits for its reply, which may come from another server thread.
+    String call(String command) throws Throwable {
+        packet(text(command));
+        return string(take());
+    }
+
+    void callOk(String command) throws Throwable {
+        String reply = call(command);
+        if (!reply.startsWith("OK"))
+            throw new IllegalStateException(command.split(" ")[0] + " failed: " + reply);
+    }
+
+    ByteBuffer take() throws InterruptedException {
+        ByteBuffer reply = replies.poll(30, TimeUnit.SECONDS);
+        if (reply == null)
+            throw new IllegalStateException("No reply from the server within 30 s");
+        return reply;
+    }
+
+    // Replies that need no waiting, e.g. after a synchronous command; returns how many were dropped.
+    int drain() {
+        int count = 0;
+        while (replies.poll() != null)
+            count++;
+        return count;
+    }
+
+    void sendResponse(String text) throws Throwable {
+        sendResponse.invoke(transport, CLIENT.getAddress(), CLIENT.getPort(), text);
+    }
+
+    // Stores a mail straight into a mailbox, bypassing SEND, to fill inboxes quickly.
+    void deliver(String recipient, String from, String date, String title, String content) throws Throwable {
+        deliver.invoke(mailStore, recipient, from, date, title, content);
+    }
+
+    static ByteBuffer text(String command) {
+        return ByteBuffer.wrap(command.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String string(ByteBuffer data) {
+        return StandardCharsets.UTF_8.decode(data.duplicate()).toString();
+    }
+
+    // A binary request frame: magic, version 1, opcode, status 0, request id, then each field length-prefixed.
+    // Long values become 8-byte number fields, anything else a UTF-8 string.
+    static ByteBuffer frame(byte opcode, int requestId, Object... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int size = 8;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i] instanceof Long
+                    ? ByteBuffer.allocate(8).putLong((Long) fields[i]).array()
+                    : fields[i].toString().getBytes(StandardCharsets.UTF_8);
+            size += 4 + encoded[i].length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.put(FRAME_MAGIC).put((byte) 1).put(opcode).put((byte) 0).putInt(requestId);
+        for (byte[] field : encoded)
+            frame.putInt(field.length).put(field);
+        frame.flip();
+        return frame;
+    }
+
+    // The number in field i of a reply frame.
+    static long number(ByteBuffer frame, int i) {
+        int pos = 8;
+        for (int f = 0; f < i; f++)
+            pos += 4 + frame.getInt(pos);
+        return frame.getLong(pos + 4);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stopServices.invoke();
+        } catch (Throwable e) {
+            System.err.println("Failed to stop MailServer services: " + e);
+        }
+        System.setOut(console);
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,445 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// Headless load generator: simulated users REGISTER, LOGIN, SEND and LIST against a running MailServer through
+// the same MailConnection the GUI client uses. Requests use the binary protocol, whose request ids let thousands
+// of users share a handful of sockets while every reply is still matched to its request.
+//
+// The run has three phases. In setup every user registers and logs in, with a fixed number of requests in
+// flight. In warmup the mix runs and nothing is reported. In the measured phase the mix runs open-loop at a
+// fixed rate, and latency counts from the moment a request was due, so a stalled server shows up as latency
+// instead of as a lower send rate.
+//
+//   java -jar loadgen.jar [--host 127.0.0.1] [--port 9999] [--users 1000] [--sockets 16] [--rate 2000]
+//       [--duration 30] [--warmup 5] [--mix send=50,list=40,login=8,register=2] [--body-bytes 512]
+//       [--timeout-ms 2000] [--setup-concurrency 32] [--framed]
+public class MailLoadGenerator {
+    enum Op {
+        REGISTER, LOGIN, SEND, LIST
+    }
+
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(5);
+    private static final int MAX_ERROR_KINDS = 20;
+    private static final String PASSWORD = "load-test";
+
+    private static final class User {
+        final String name;
+        final Lane lane;
+        volatile long token;
+        volatile boolean registered;
+        volatile boolean active;
+        volatile boolean loggingIn;
+
+        User(String name, Lane lane) {
+            this.name = name;
+            this.lane = lane;
+        }
+    }
+
+    private static final class Pending {
+        final Op op;
+        final User user;
+        final long token;
+        final long dueNanos;
+
+        Pending(Op op, User user, long token, long dueNanos) {
+            this.op = op;
+            this.user = user;
+            this.token = token;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    private static final class Stats {
+        final Recorder latency = new Recorder(MAX_LATENCY_MICROS, 3);
+        final LongAdder sent = new LongAdder();
+        final LongAdder ok = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder lost = new LongAdder();
+    }
+
+    // One socket and the requests waiting on it.
+    private final class Lane implements MailConnection.Listener {
+        final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+        MailConnection connection;
+
+        @Override
+        public void onMessage(byte[] data, int offset, int length) {
+            if (!MailProtocol.isFrame(data, offset, length))
+                return;
+            long now = System.nanoTime();
+            MailProtocol.Frame frame;
+            try {
+                frame = MailProtocol.parse(ByteBuffer.wrap(data, offset, length));
+            } catch (ProtocolException e) {
+                return;
+            }
+            // Pushes (NEW_MAIL, CHUNK) carry request id 0 or no request of ours.
+            Pending request = frame.requestId() == 0 ? null : pending.remove(frame.requestId());
+            if (request == null) {
+                if (frame.requestId() != 0)
+                    lateReplies.increment();
+                return;
+            }
+            complete(request, now, frame);
+        }
+
+        @Override
+        public void onError(IOException error) {
+            System.err.println("Socket failed: " + error.getMessage());
+        }
+    }
+
+    private final InetAddress host;
+    private final int port;
+    private final int userCount;
+    private final int socketCount;
+    private final double rate;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final Map<Op, Integer> mix;
+    private final int bodyBytes;
+    private final long timeoutNanos;
+    private final int setupConcurrency;
+    private final boolean framed;
+
+    private final String prefix = "lg" + Long.toString(System.currentTimeMillis(), 36);
+    private final List<Lane> lanes = new ArrayList<>();
+    private final List<User> users = new ArrayList<>();
+    private final List<User> ready = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Op, Stats> stats = new EnumMap<>(Op.class);
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder lateReplies = new LongAdder();
+    private final String body;
+    private Semaphore inFlight;
+    private int registeredDuringMix;
+
+    private MailLoadGenerator(Map<String, String> options) throws IOException {
+        host = InetAddress.getByName(options.getOrDefault("host", "127.0.0.1"));
+        port = Integer.parseInt(options.getOrDefault("port", "9999"));
+        userCount = Integer.parseInt(options.getOrDefault("users", "1000"));
+        socketCount = Integer.parseInt(options.getOrDefault("sockets", "16"));
+        rate = Double.parseDouble(options.getOrDefault("rate", "2000"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        mix = parseMix(options.getOrDefault("mix", "send=50,list=40,login=8,register=2"));
+        bodyBytes = Integer.parseInt(options.getOrDefault("body-bytes", "512"));
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.getOrDefault("timeout-ms", "2000")));
+        setupConcurrency = Integer.parseInt(options.getOrDefault("setup-concurrency", "32"));
+        framed = options.containsKey("framed");
+        for (Op op : Op.values())
+            stats.put(op, new Stats());
+        StringBuilder sb = new StringBuilder(bodyBytes);
+        while (sb.length() < bodyBytes)
+            sb.append("The quick brown fox jumps over the lazy dog. ");
+        sb.setLength(bodyBytes);
+        body = sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                System.err.println("Unexpected argument " + args[i]);
+                return;
+            }
+            String key = args[i].substring(2);
+            boolean flag = i + 1 >= args.length || args[i + 1].startsWith("--");
+            options.put(key, flag ? "true" : args[++i]);
+        }
+        new MailLoadGenerator(options).run();
+    }
+
+    private void run() throws Exception {
+        for (int i = 0; i < socketCount; i++) {
+            Lane lane = new Lane();
+            lane.connection = new MailConnection(host, port, framed, lane);
+            lane.connection.start("loadgen-receive-" + i);
+            lanes.add(lane);
+        }
+        for (int i = 0; i < userCount; i++)
+            users.add(new User(prefix + "_" + i, lanes.get(i % lanes.size())));
+
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "loadgen-timeouts");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::expireRequests, 50, 50, TimeUnit.MILLISECONDS);
+
+        System.out.println("Load generator: " + userCount + " users on " + socketCount + " socket(s) against "
+                + host.getHostAddress() + ":" + port + (framed ? " (framed)" : " (plain datagrams)"));
+        long start = System.nanoTime();
+        inFlight = new Semaphore(setupConcurrency);
+        for (User user : users)
+            issueClosed(Op.REGISTER, user);
+        awaitIdle();
+        for (User user : users)
+            if (user.registered)
+                issueClosed(Op.LOGIN, user);
+        awaitIdle();
+        inFlight = null;
+        report("setup", System.nanoTime() - start);
+        if (ready.isEmpty()) {
+            System.err.println("No user could log in; is the server running?");
+            return;
+        }
+
+        if (warmupSeconds > 0) {
+            runMix(TimeUnit.SECONDS.toNanos(warmupSeconds));
+            awaitIdle();
+            reset();
+        }
+        start = System.nanoTime();
+        runMix(TimeUnit.SECONDS.toNanos(durationSeconds));
+        awaitIdle();
+        report("measured", System.nanoTime() - start);
+
+        sweeper.shutdownNow();
+        for (Lane lane : lanes)
+            lane.connection.close();
+    }
+
+    // Open loop: request n is due at start + n / rate whether or not earlier ones were answered.
+    private void runMix(long durationNanos) {
+        int totalWeight = 0;
+        for (int weight : mix.values())
+            totalWeight += weight;
+        long interval = (long) (1_000_000_000L / rate);
+        long start = System.nanoTime();
+        long due = start;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (due - start < durationNanos) {
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            int pick = random.nextInt(totalWeight);
+            Op op = Op.SEND;
+            for (Map.Entry<Op, Integer> entry : mix.entrySet()) {
+                pick -= entry.getValue();
+                if (pick < 0) {
+                    op = entry.getKey();
+                    break;
+                }
+            }
+            User user;
+            if (op == Op.REGISTER) {
+                user = new User(prefix + "_n" + registeredDuringMix++, lanes.get(random.nextInt(lanes.size())));
+            } else {
+                // A user whose session lapsed logs in again before doing anything else; one already doing so is
+                // passed over, so a burst of failures does not turn into a burst of logins for the same user.
+                user = ready.get(random.nextInt(ready.size()));
+                for (int tries = 0; user.loggingIn && tries < 8; tries++)
+                    user = ready.get(random.nextInt(ready.size()));
+                if (user.token == 0)
+                    op = Op.LOGIN;
+            }
+            issue(op, user, due);
+            due += interval;
+        }
+    }
+
+    private void issueClosed(Op op, User user) throws InterruptedException {
+        inFlight.acquire();
+        issue(op, user, System.nanoTime());
+    }
+
+    private void issue(Op op, User user, long dueNanos) {
+        MailConnection connection = user.lane.connection;
+        int requestId = connection.nextRequestId();
+        MailProtocol.Writer frame = new MailProtocol.Writer(ByteBuffer.allocate(256 + bodyBytes),
+                opcode(op), MailProtocol.STATUS_OK, requestId);
+        switch (op) {
+            case REGISTER:
+            case LOGIN:
+                frame.string(user.name).string(PASSWORD);
+                break;
+            case SEND:
+                User recipient = ready.get(ThreadLocalRandom.current().nextInt(ready.size()));
+                frame.number(user.token).string(recipient.name).string("Load test").string(body);
+                break;
+            case LIST:
+                frame.number(user.token).number(-1).number(0).number(50);
+                break;
+        }
+        if (op == Op.LOGIN)
+            user.loggingIn = true;
+        user.lane.pending.put(requestId, new Pending(op, user, user.token, dueNanos));
+        stats.get(op).sent.increment();
+        connection.sendFrame(frame).whenComplete((ok, error) -> {
+            if (error != null && user.lane.pending.remove(requestId) != null) {
+                user.loggingIn = false;
+                finish(op, false, "send failed: " + error.getMessage());
+            }
+        });
+    }
+
+    private void complete(Pending request, long now, MailProtocol.Frame frame) {
+        Stats opStats = stats.get(request.op);
+        opStats.latency.recordValue(Math.min(MAX_LATENCY_MICROS, Math.max(0, (now - request.dueNanos) / 1000)));
+        boolean ok = frame.status() == MailProtocol.STATUS_OK;
+        if (request.op == Op.LOGIN)
+            request.user.loggingIn = false;
+        String error = null;
+        try {
+            if (ok && request.op == Op.LOGIN) {
+                request.user.token = frame.number(1);
+                if (!request.user.active) {
+                    request.user.active = true;
+                    ready.add(request.user);
+                }
+            } else if (ok && request.op == Op.REGISTER) {
+                request.user.registered = true;
+                // Users registered during the mix join the others once logged in.
+                if (inFlight == null)
+                    issue(Op.LOGIN, request.user, System.nanoTime());
+            } else if (!ok) {
+                error = frame.fieldCount() > 0 ? frame.string(0) : "error";
+                // Only the session this request used is gone; a newer login may already have replaced it.
+                boolean sessionLost = error.startsWith("You must be logged in") || error.startsWith("Session expired");
+                if (sessionLost && request.user.token == request.token)
+                    request.user.token = 0;
+            }
+        } catch (ProtocolException e) {
+            ok = false;
+            error = "malformed reply: " + e.getMessage();
+        }
+        finish(request.op, ok, error);
+    }
+
+    private void finish(Op op, boolean ok, String error) {
+        Stats opStats = stats.get(op);
+        if (ok) {
+            opStats.ok.increment();
+        } else {
+            opStats.failed.increment();
+            if (errors.size() < MAX_ERROR_KINDS || errors.containsKey(error))
+                errors.computeIfAbsent(op + ": " + error, k -> new LongAdder()).increment();
+        }
+        Semaphore permits = inFlight;
+        if (permits != null)
+            permits.release();
+    }
+
+    private void expireRequests() {
+        long now = System.nanoTime();
+        for (Lane lane : lanes) {
+            lane.pending.entrySet().removeIf(entry -> {
+                Pending request = entry.getValue();
+                if (now - request.dueNanos < timeoutNanos)
+                    return false;
+                stats.get(request.op).lost.increment();
+                if (request.op == Op.LOGIN)
+                    request.user.loggingIn = false;
+                Semaphore permits = inFlight;
+                if (permits != null)
+                    permits.release();
+                return true;
+            });
+        }
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos * 2;
+        while (System.nanoTime() < deadline) {
+            boolean idle = true;
+            for (Lane lane : lanes)
+                idle &= lane.pending.isEmpty();
+            if (idle)
+                return;
+            Thread.sleep(20);
+        }
+    }
+
+    private void reset() {
+        for (Stats opStats : stats.values()) {
+            opStats.latency.reset();
+            opStats.sent.reset();
+            opStats.ok.reset();
+            opStats.failed.reset();
+            opStats.lost.reset();
+        }
+        errors.clear();
+        lateReplies.reset();
+    }
+
+    private void report(String phase, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%n== %s (%.1f s) ==%n", phase, seconds);
+        System.out.printf("%-9s %9s %9s %8s %8s %7s %9s %8s %8s %8s %8s %8s%n", "op", "sent", "ok", "failed",
+                "lost", "loss%", "ok/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        long totalOk = 0;
+        for (Op op : Op.values()) {
+            Stats opStats = stats.get(op);
+            long sent = opStats.sent.sumThenReset();
+            long ok = opStats.ok.sumThenReset();
+            long failed = opStats.failed.sumThenReset();
+            long lost = opStats.lost.sumThenReset();
+            Histogram latency = opStats.latency.getIntervalHistogram();
+            if (sent == 0)
+                continue;
+            totalOk += ok;
+            System.out.printf("%-9s %9d %9d %8d %8d %7.2f %9.1f %8.2f %8.2f %8.2f %8.2f %8.2f%n", op, sent, ok,
+                    failed, lost, 100.0 * lost / sent, ok / seconds, millis(latency, 50), millis(latency, 90),
+                    millis(latency, 99), millis(latency, 99.9), latency.getMaxValue() / 1000.0);
+        }
+        System.out.printf("throughput: %.1f ok/s, late replies: %d%n", totalOk / seconds, lateReplies.sumThenReset());
+        if (!errors.isEmpty()) {
+            System.out.println("errors:");
+            errors.forEach((message, count) -> System.out.println("  " + count.sum() + "  " + message));
+            errors.clear();
+        }
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getTotalCount() == 0 ? 0 : histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private static byte opcode(Op op) {
+        switch (op) {
+            case REGISTER:
+                return MailProtocol.REGISTER;
+            case LOGIN:
+                return MailProtocol.LOGIN;
+            case SEND:
+                return MailProtocol.SEND;
+            default:
+                return MailProtocol.LIST;
+        }
+    }
+
+    // "send=50,list=40,login=8,register=2"; operations left out never run.
+    private static Map<Op, Integer> parseMix(String spec) {
+        Map<Op, Integer> mix = new EnumMap<>(Op.class);
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            if (kv.length != 2)
+                throw new IllegalArgumentException("Bad --mix entry '" + part + "', expected op=weight");
+            int weight = Integer.parseInt(kv[1].trim());
+            if (weight > 0)
+                mix.put(Op.valueOf(kv[0].trim().toUpperCase()), weight);
+        }
+        if (mix.isEmpty())
+            throw new IllegalArgumentException("--mix has no operation with a positive weight");
+        return mix;
+    }
+}